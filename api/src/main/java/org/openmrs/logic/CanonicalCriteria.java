@@ -0,0 +1,360 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.openmrs.Concept;
+import org.openmrs.logic.impl.LogicCriteriaImpl;
+import org.openmrs.logic.op.Operand;
+import org.openmrs.logic.op.OperandCollection;
+import org.openmrs.logic.op.OperandConcept;
+import org.openmrs.logic.op.OperandDate;
+import org.openmrs.logic.op.OperandNumeric;
+import org.openmrs.logic.op.OperandText;
+import org.openmrs.logic.op.Operator;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * An immutable, canonical form of a {@link LogicCriteria}. Canonical criteria and their expressions
+ * are interned (hash-consed): structurally equal criteria are represented by the same instance, and
+ * every node computes its hash code once, when it is created. This makes them cheap to use as keys,
+ * e.g. in the {@link LogicCache}, where a LogicCriteria would walk its whole expression tree on
+ * each hashCode and equals call. The canonical form is a snapshot: it is built again by every call
+ * to {@link #of(LogicCriteria)}, since the expression and parameters of a criteria can be changed
+ * in place, so callers build it once per evaluation and hand it to every cache lookup and read of
+ * that evaluation. <br/>
+ * Unlike {@link LogicExpressionBinary}, the order of operands matters when comparing canonical
+ * expressions.
+ *
+ * @see #of(LogicCriteria)
+ */
+public final class CanonicalCriteria {
+
+	/**
+	 * Number of separately locked parts of the intern table, so that threads building keys at the
+	 * same time rarely wait for each other
+	 */
+	private static final int INTERN_STRIPES = 32;
+
+	private static final List<Map<Object, WeakReference<Object>>> internTables = new ArrayList<Map<Object, WeakReference<Object>>>(
+	        INTERN_STRIPES);
+
+	static {
+		for (int i = 0; i < INTERN_STRIPES; ++i)
+			internTables.add(new WeakHashMap<Object, WeakReference<Object>>());
+	}
+
+	private final Node expression;
+
+	private final Map<String, Object> logicParameters;
+
+	private final String rootToken;
+
+	private final int hashCode;
+
+	private volatile String keyString;
+
+	private CanonicalCriteria(Node expression, Map<String, Object> logicParameters, String rootToken) {
+		this.expression = expression;
+		this.logicParameters = logicParameters;
+		this.rootToken = rootToken;
+		this.hashCode = 31 * (expression == null ? 0 : expression.hashCode())
+		        + (logicParameters == null ? 0 : logicParameters.hashCode());
+	}
+
+	/**
+	 * Gets the canonical form of the given criteria, as it is now
+	 *
+	 * @param criteria
+	 * @return the interned canonical form of criteria
+	 * @should return the same instance for equal criteria
+	 * @should distinguish criteria with different transforms
+	 * @should reflect changes made to the expression and parameters of the criteria
+	 */
+	public static CanonicalCriteria of(LogicCriteria criteria) {
+		if (criteria == null)
+			return null;
+		Map<String, Object> parameters = criteria.getLogicParameters() == null ? null : Collections
+		        .unmodifiableMap(new HashMap<String, Object>(criteria.getLogicParameters()));
+		Node expression = (Node) canonicalize(criteria.getExpression());
+		return intern(new CanonicalCriteria(expression, parameters, criteria.getRootToken()));
+	}
+
+	/**
+	 * @return the token this criteria is evaluated against
+	 */
+	public String getRootToken() {
+		return rootToken;
+	}
+
+	/**
+	 * @return the parameters of this criteria (unmodifiable)
+	 */
+	public Map<String, Object> getLogicParameters() {
+		return logicParameters;
+	}
+
+	/**
+	 * @return a new, mutable criteria equal to this one, that can be changed without affecting this
+	 *         canonical form
+	 */
+	public LogicCriteria toCriteria() {
+		LogicExpression copy = expression == null ? null : (LogicExpression) expression.toOperand();
+		return new LogicCriteriaImpl(copy, logicParameters == null ? null : new HashMap<String, Object>(
+		        logicParameters));
+	}
+
+	/**
+	 * Gets a string that identifies this criteria across restarts, e.g. to find persisted results.
+	 * Criteria with parameters, or with operands that can't be written down unambiguously, have no
+	 * such string.
+	 *
+	 * @return the key string, or null if this criteria can't be identified by a string
+	 */
+	public String getKeyString() {
+		if (keyString == null && (logicParameters == null || logicParameters.isEmpty())) {
+			StringBuilder sb = new StringBuilder();
+			if (appendKey(sb, expression))
+				keyString = sb.toString();
+		}
+		return keyString;
+	}
+
+	private static boolean appendKey(StringBuilder sb, Object operand) {
+		if (operand == null) {
+			sb.append("_");
+		} else if (operand instanceof Node) {
+			Node node = (Node) operand;
+			sb.append(node.unary ? "(U " : "(B ").append(node.operator).append(' ').append(node.transformOperator).append(
+			    ' ').append(node.numResults).append(' ');
+			appendText(sb, node.sortColumn);
+			for (Object o : node.operands) {
+				sb.append(' ');
+				if (!appendKey(sb, o))
+					return false;
+			}
+			sb.append(')');
+		} else if (operand instanceof OperandText) {
+			sb.append("T");
+			appendText(sb, ((OperandText) operand).asString());
+		} else if (operand instanceof OperandNumeric) {
+			sb.append("N").append(((OperandNumeric) operand).asDouble());
+		} else if (operand instanceof OperandDate) {
+			sb.append("D").append(((OperandDate) operand).getTime());
+		} else if (operand instanceof OperandConcept) {
+			Concept concept = ((OperandConcept) operand).asConcept();
+			if (concept == null || concept.getConceptId() == null)
+				return false;
+			sb.append("C").append(concept.getConceptId());
+		} else if (operand instanceof Duration) {
+			Duration duration = (Duration) operand;
+			sb.append("W").append(duration.getDuration()).append(duration.getUnits());
+		} else if (operand instanceof OperandCollection) {
+			sb.append("L[");
+			for (Object o : ((OperandCollection) operand).asCollection()) {
+				if (o instanceof Concept)
+					sb.append("C").append(((Concept) o).getConceptId());
+				else if (o instanceof String || o instanceof Number)
+					appendText(sb, o.toString());
+				else
+					return false;
+				sb.append(',');
+			}
+			sb.append("]");
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Appends a length-prefixed string, so that no string can be mistaken for the rest of the key
+	 */
+	private static void appendText(StringBuilder sb, String text) {
+		if (text == null)
+			sb.append("-");
+		else
+			sb.append(text.length()).append(':').append(text);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof CanonicalCriteria))
+			return false;
+		CanonicalCriteria other = (CanonicalCriteria) obj;
+		return hashCode == other.hashCode && expression == other.expression
+		        && OpenmrsUtil.nullSafeEquals(logicParameters, other.logicParameters);
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(expression);
+	}
+
+	/**
+	 * Turns an operand into its canonical form: expressions become interned {@link Node}s, while
+	 * other operands are kept (dates are copied, since they are mutable)
+	 */
+	private static Object canonicalize(Operand operand) {
+		if (operand instanceof LogicExpression) {
+			LogicExpression expression = (LogicExpression) operand;
+			List<Object> operands = new ArrayList<Object>();
+			for (Operand o : expression.getOperands())
+				operands.add(canonicalize(o));
+			LogicTransform transform = null;
+			if (expression instanceof LogicExpressionBinary)
+				transform = ((LogicExpressionBinary) expression).getOwnTransform();
+			else if (expression instanceof LogicExpressionUnary)
+				transform = ((LogicExpressionUnary) expression).getOwnTransform();
+			return intern(new Node(expression instanceof LogicExpressionUnary, expression.getOperator(), transform,
+			        operands));
+		} else if (operand instanceof OperandDate) {
+			return new OperandDate((OperandDate) operand);
+		}
+		return operand;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T intern(T value) {
+		Map<Object, WeakReference<Object>> internTable = internTables.get((value.hashCode() & 0x7fffffff)
+		        % INTERN_STRIPES);
+		synchronized (internTable) {
+			WeakReference<Object> ref = internTable.get(value);
+			Object existing = ref == null ? null : ref.get();
+			if (existing != null)
+				return (T) existing;
+			internTable.put(value, new WeakReference<Object>(value));
+			return value;
+		}
+	}
+
+	/**
+	 * A canonical logic expression
+	 */
+	private static final class Node {
+
+		private final boolean unary;
+
+		private final Operator operator;
+
+		private final Operator transformOperator;
+
+		private final Integer numResults;
+
+		private final String sortColumn;
+
+		private final List<Object> operands;
+
+		private final int hashCode;
+
+		Node(boolean unary, Operator operator, LogicTransform transform, List<Object> operands) {
+			this.unary = unary;
+			this.operator = operator;
+			this.transformOperator = transform == null ? null : transform.getTransformOperator();
+			this.numResults = transform == null ? null : transform.getNumResults();
+			this.sortColumn = transform == null ? null : transform.getSortColumn();
+			this.operands = operands;
+			int hash = unary ? 1 : 0;
+			hash = 31 * hash + (operator == null ? 0 : operator.hashCode());
+			hash = 31 * hash + (transformOperator == null ? 0 : transformOperator.hashCode());
+			hash = 31 * hash + (numResults == null ? 0 : numResults.hashCode());
+			hash = 31 * hash + (sortColumn == null ? 0 : sortColumn.hashCode());
+			hash = 31 * hash + operands.hashCode();
+			this.hashCode = hash;
+		}
+
+		/**
+		 * @return a new, mutable expression equivalent to this node
+		 */
+		Operand toOperand() {
+			List<Operand> copies = new ArrayList<Operand>();
+			for (Object o : operands) {
+				if (o instanceof Node)
+					copies.add(((Node) o).toOperand());
+				else if (o instanceof OperandDate)
+					copies.add(new OperandDate((OperandDate) o));
+				else
+					copies.add((Operand) o);
+			}
+			LogicExpression expression;
+			if (unary)
+				expression = new LogicExpressionUnary(copies.get(0), operator);
+			else
+				expression = new LogicExpressionBinary(copies.get(0), copies.get(1), operator);
+			if (transformOperator != null) {
+				LogicTransform transform = new LogicTransform(transformOperator);
+				if (numResults != null)
+					transform.setNumResults(numResults);
+				if (sortColumn != null)
+					transform.setSortColumn(sortColumn);
+				expression.setTransform(transform);
+			}
+			return expression;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Node))
+				return false;
+			Node other = (Node) obj;
+			if (hashCode != other.hashCode || unary != other.unary)
+				return false;
+			if (!OpenmrsUtil.nullSafeEquals(operator, other.operator)
+			        || !OpenmrsUtil.nullSafeEquals(transformOperator, other.transformOperator)
+			        || !OpenmrsUtil.nullSafeEquals(numResults, other.numResults)
+			        || !OpenmrsUtil.nullSafeEquals(sortColumn, other.sortColumn))
+				return false;
+			if (operands.size() != other.operands.size())
+				return false;
+			for (int i = 0; i < operands.size(); ++i) {
+				Object mine = operands.get(i);
+				Object theirs = other.operands.get(i);
+				// child nodes are interned, so they are only equal if they are the same instance
+				if (mine instanceof Node ? mine != theirs : !OpenmrsUtil.nullSafeEquals(mine, theirs))
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public String toString() {
+			String s = unary ? operator + " " + operands.get(0) : operands.get(0) + " " + operator + " "
+			        + operands.get(1);
+			if (transformOperator != null)
+				s = transformOperator + (numResults == null ? "" : " " + numResults) + " {" + s + "}";
+			return "(" + s + ")";
+		}
+	}
+}
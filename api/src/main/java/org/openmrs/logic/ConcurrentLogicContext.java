@@ -0,0 +1,48 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic;
+
+import java.util.List;
+import java.util.Map;
+
+import org.openmrs.logic.result.Result;
+
+/**
+ * A logic context that can evaluate several independent criteria at the same time, so that rules
+ * which combine the results of several criteria don't have to wait for them one after the other.
+ * The logic contexts of this module implement it.
+ */
+public interface ConcurrentLogicContext extends LogicContext {
+	
+	/**
+	 * Evaluates the criteria concurrently on the logic evaluation threads, and waits for all of
+	 * them. Criteria whose results are cached are not evaluated again, and the others are evaluated
+	 * one after the other if only one of them is left, if evaluations are not run in parallel, if
+	 * this is already one of the evaluation threads, or if the context has more than one patient
+	 * (criteria are then evaluated for the whole cohort at once, so all but the first patient find
+	 * them cached). Results evaluated on other threads are
+	 * {@link org.openmrs.logic.util.ReadOnlyResult read-only copies}, as the sessions they were
+	 * evaluated in are closed.
+	 * 
+	 * @param patientId
+	 * @param criteria criteria that don't depend on each other
+	 * @param parameters
+	 * @return the results, in the order of the criteria
+	 * @throws LogicException if evaluating any of the criteria failed
+	 * @see org.openmrs.logic.util.LogicTaskExecutor
+	 */
+	public List<Result> eval(Integer patientId, List<LogicCriteria> criteria, Map<String, Object> parameters)
+	                                                                                                       throws LogicException;
+	
+}
@@ -0,0 +1,86 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic;
+
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.openmrs.Cohort;
+import org.openmrs.logic.result.Result;
+
+/**
+ * Additions of this module to the {@link LogicService} of the core API. The logic service returned
+ * by <code>Context.getLogicService()</code> implements this interface too; it can also be looked up
+ * with <code>Context.getService(ExtendedLogicService.class)</code>.
+ */
+public interface ExtendedLogicService extends LogicService {
+	
+	/**
+	 * @see #eval(Cohort, LogicCriteria, Map, LogicResultHandler)
+	 */
+	public void eval(Cohort who, LogicCriteria criteria, LogicResultHandler handler) throws LogicException;
+	
+	/**
+	 * Evaluates a criteria for a cohort, and hands the result of each patient to the handler
+	 * instead of returning them all. The cohort is evaluated in slices of
+	 * {@link LogicConstants#QUERY_CHUNK_SIZE} patients, each in a new logic context. Once the
+	 * handler has been given the results of a slice, the objects loaded into the session while
+	 * evaluating and handling that slice are evicted from it (without being flushed), so the
+	 * handler must not keep them, nor change them expecting the changes to be saved. Memory use is
+	 * therefore bounded by the size of a slice, no matter how large the cohort is (unless the shared
+	 * logic cache is enabled, which keeps results up to its own limits). Objects the session held
+	 * before this method was called stay in it, and the session is not flushed.
+	 * 
+	 * @param who
+	 * @param criteria
+	 * @param parameters
+	 * @param handler
+	 * @throws LogicException
+	 * @should hand the result of every patient to the handler
+	 * @should keep the objects the session held before
+	 */
+	public void eval(Cohort who, LogicCriteria criteria, Map<String, Object> parameters, LogicResultHandler handler)
+	                                                                                                          throws LogicException;
+	
+	/**
+	 * Starts evaluating a criteria for a patient on one of the logic evaluation threads, and returns
+	 * right away. Several evaluations can be started this way, and waited for together. The criteria
+	 * is copied first, so the caller is free to change it afterwards. <br/>
+	 * The task runs in its own session and transaction, as the current user, so it doesn't see
+	 * changes the caller hasn't committed yet. Its session is closed when it is done, so the result
+	 * is a {@link org.openmrs.logic.util.ReadOnlyResult read-only copy}: observations it was created
+	 * from are loaded again in the caller's session when asked for, and any other objects (like the
+	 * concept of a coded value) are detached.
+	 * 
+	 * @param patientId
+	 * @param criteria
+	 * @return the result of the patient, once it is evaluated
+	 * @see org.openmrs.logic.util.LogicTaskExecutor
+	 * @should evaluate the criteria as it was when called
+	 * @should return a read only copy of the result
+	 */
+	public Future<Result> evalAsync(Integer patientId, LogicCriteria criteria);
+	
+	/**
+	 * Starts evaluating a criteria for a cohort on one of the logic evaluation threads, and returns
+	 * right away
+	 * 
+	 * @param who
+	 * @param criteria
+	 * @return the results of the patients (read-only copies), once they are evaluated
+	 * @see #evalAsync(Integer, LogicCriteria)
+	 */
+	public Future<Map<Integer, Result>> evalAsync(Cohort who, LogicCriteria criteria);
+	
+}
@@ -13,91 +13,652 @@
  */
 package org.openmrs.logic;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.logic.datasource.LogicDataSource;
 import org.openmrs.logic.result.Result;
+import org.openmrs.logic.util.ImmutableEmptyResult;
+import org.openmrs.logic.util.PatientResultMap;
+import org.openmrs.logic.util.ReadOnlyResult;
 
 /**
  * A caching mechanism used by LogicContext to avoid recalculating a re-fetching the same results
- * more than once during a single request of the logic service.
+ * more than once during a single request of the logic service. Results are keyed by the index date
+ * they were computed as of, so a context and its ASOF child contexts can share one cache. Entries are per-cohort result maps
+ * which expire after the TTL of the rule or data source that produced them. The cache is bounded
+ * both by a number of entries and by an (estimated) memory budget; when either is exceeded the
+ * least recently used entries are evicted. <br/>
+ * Results can be computed while a patient's data is being changed, so every invalidation gets a new
+ * {@link #getVersion() version}: results that are put with a version taken before the patient was
+ * last invalidated are not stored.
  */
 public class LogicCache {
-	
+
 	private static Log log = LogFactory.getLog(LogicCache.class);
+
+	/**
+	 * Default maximum number of result maps held by a cache
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 500;
+
+	/**
+	 * Default memory budget of a cache, in bytes
+	 */
+	public static final long DEFAULT_MAX_MEMORY = 32L * 1024 * 1024;
+
+	/**
+	 * Rough size of a single {@link Result}, used to estimate the memory held by an entry
+	 */
+	private static final int RESULT_SIZE_ESTIMATE = 160;
+
+	/**
+	 * Rough size of the per-patient map entry and of the cache entry itself
+	 */
+	private static final int MAP_ENTRY_SIZE_ESTIMATE = 48;
+
+	/**
+	 * Number of recently invalidated patients whose invalidation version is remembered
+	 */
+	private static final int MAX_TRACKED_INVALIDATIONS = 10000;
+
+	private final int maxEntries;
+
+	private final long maxMemory;
+
+	private long memoryUsed = 0;
+
+	private LinkedHashMap<LogicCacheEntryKey, LogicCacheEntry> cache;
 	
-	// TODO: implement the cache -- currently no caching is performed
-	
-	private Map<LogicCacheEntryKey, Map<Integer, Result>> cache;
+	/**
+	 * The entries holding a result for each patient, so that one patient's results can be
+	 * invalidated without looking at every entry
+	 */
+	private Map<Integer, Set<LogicCacheEntry>> patientIndex = new HashMap<Integer, Set<LogicCacheEntry>>();
 	
-	public Result get(Integer patientId, LogicCriteria criteria, Map<String, Object> parameters) {
-		return null;
-//		LogicCacheEntryKey key = new LogicCacheEntryKey(criteria, parameters, 0);
-//		return get(key, patientId);
+	/**
+	 * Entries ordered by the time they expire
+	 */
+	private PriorityQueue<LogicCacheEntry> expiryQueue;
+
+	/**
+	 * Incremented by every invalidation
+	 */
+	private long version = 0;
+
+	/**
+	 * The version at which each of the recently invalidated patients was last invalidated
+	 */
+	private LinkedHashMap<Integer, Long> invalidatedVersions = new LinkedHashMap<Integer, Long>();
+
+	/**
+	 * The latest version of the invalidations that are no longer remembered per patient (or of the
+	 * last time the cache was cleared); nothing computed before it can be stored
+	 */
+	private long forgottenVersion = 0;
+
+	/**
+	 * Whether results are stored as {@link ReadOnlyResult}s
+	 */
+	private volatile boolean readOnlyCopies = false;
+
+	/**
+	 * Optional tier that keeps results across restarts
+	 */
+	private volatile LogicCacheDiskStore diskStore;
+
+	/**
+	 * Creates a cache with the default entry and memory limits
+	 */
+	public LogicCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_MEMORY);
 	}
-	
-	public Result get(Integer patientId, LogicDataSource dataSource, LogicCriteria criteria) {
-		return null;
-//		LogicCacheEntryKey key = new LogicCacheEntryKey(dataSource, criteria);
-//		Result r = get(key, patientId);
-//		if (log.isDebugEnabled())
-//			log.debug("Searching cache for " + key.toString() + " - " + (r == null ? "NOT" : "") + " found");
-//		logCacheContents();
-//		return r;
+
+	/**
+	 * Creates a cache with the given limits
+	 *
+	 * @param maxEntries maximum number of result maps to hold
+	 * @param maxMemory estimated maximum number of bytes to hold
+	 */
+	public LogicCache(int maxEntries, long maxMemory) {
+		this.maxEntries = maxEntries;
+		this.maxMemory = maxMemory;
+	}
+
+	public Result get(Integer patientId, Date indexDate, LogicCriteria criteria, Map<String, Object> parameters) {
+		return get(patientId, indexDate, CanonicalCriteria.of(criteria), parameters);
+	}
+
+	/**
+	 * Gets the cached result of a rule. Callers that look up or store the same criteria more than
+	 * once build its canonical form once and use these methods, rather than the ones taking a
+	 * LogicCriteria, which build it on every call.
+	 */
+	public Result get(Integer patientId, Date indexDate, CanonicalCriteria criteria, Map<String, Object> parameters) {
+		LogicCacheEntryKey key = new LogicCacheEntryKey(indexDate, criteria, parameters, 0);
+		Result r = get(key, patientId);
+		return r == null ? getFromDisk(key, patientId) : r;
+	}
+
+	public Result get(Integer patientId, Date indexDate, LogicDataSource dataSource, LogicCriteria criteria) {
+		return get(patientId, indexDate, dataSource, CanonicalCriteria.of(criteria));
+	}
+
+	/**
+	 * @see #get(Integer, Date, CanonicalCriteria, Map)
+	 */
+	public Result get(Integer patientId, Date indexDate, LogicDataSource dataSource, CanonicalCriteria criteria) {
+		LogicCacheEntryKey key = new LogicCacheEntryKey(indexDate, dataSource, criteria);
+		Result r = get(key, patientId);
+		if (r == null)
+			r = getFromDisk(key, patientId);
+		if (log.isDebugEnabled())
+			log.debug("Searching cache for " + key.toString() + " - " + (r == null ? "NOT" : "") + " found");
+		logCacheContents();
+		return r;
+	}
+
+	/**
+	 * Gets the cached results of a data source read for a number of patients at once
+	 *
+	 * @param indexDate
+	 * @param dataSource
+	 * @param criteria
+	 * @param patientIds
+	 * @return the results of all the given patients, or null unless all of them are cached
+	 */
+	public Map<Integer, Result> getAll(Date indexDate, LogicDataSource dataSource, LogicCriteria criteria,
+	                                   Collection<Integer> patientIds) {
+		return getAll(indexDate, dataSource, CanonicalCriteria.of(criteria), patientIds);
+	}
+
+	/**
+	 * @see #getAll(Date, LogicDataSource, LogicCriteria, Collection)
+	 */
+	public synchronized Map<Integer, Result> getAll(Date indexDate, LogicDataSource dataSource,
+	                                                CanonicalCriteria criteria, Collection<Integer> patientIds) {
+		LogicCacheEntry entry = getCache().get(new LogicCacheEntryKey(indexDate, dataSource, criteria));
+		if (entry == null || entry.getKey().getExpires() < System.currentTimeMillis())
+			return null;
+		Map<Integer, Result> ret = new PatientResultMap(patientIds.size());
+		for (Integer patientId : patientIds) {
+			Result r = entry.getResults().get(patientId);
+			if (r == null)
+				return null;
+			ret.put(patientId, r);
+		}
+		return ret;
+	}
+
+	public void put(Date indexDate, LogicDataSource dataSource, LogicCriteria criteria, Map<Integer, Result> resultMap) {
+		put(indexDate, dataSource, CanonicalCriteria.of(criteria), resultMap, Long.MAX_VALUE);
+	}
+
+	public void put(Date indexDate, LogicDataSource dataSource, CanonicalCriteria criteria,
+	                Map<Integer, Result> resultMap) {
+		put(indexDate, dataSource, criteria, resultMap, Long.MAX_VALUE);
+	}
+
+	public void put(Date indexDate, LogicCriteria criteria, Map<String, Object> parameters, int ttl,
+	                Map<Integer, Result> resultMap) {
+		put(indexDate, CanonicalCriteria.of(criteria), parameters, ttl, resultMap, Long.MAX_VALUE);
+	}
+
+	public void put(Date indexDate, CanonicalCriteria criteria, Map<String, Object> parameters, int ttl,
+	                Map<Integer, Result> resultMap) {
+		put(indexDate, criteria, parameters, ttl, resultMap, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Stores the results of a data source read that was made with data as of the given version
+	 *
+	 * @param indexDate
+	 * @param dataSource
+	 * @param criteria
+	 * @param resultMap
+	 * @param version the {@link #getVersion() version} of this cache before the results were read;
+	 *            results of patients invalidated since then are not stored
+	 */
+	public void put(Date indexDate, LogicDataSource dataSource, LogicCriteria criteria, Map<Integer, Result> resultMap,
+	                long version) {
+		put(indexDate, dataSource, CanonicalCriteria.of(criteria), resultMap, version);
+	}
+
+	/**
+	 * @see #put(Date, LogicDataSource, LogicCriteria, Map, long)
+	 */
+	public void put(Date indexDate, LogicDataSource dataSource, CanonicalCriteria criteria,
+	                Map<Integer, Result> resultMap, long version) {
+		LogicCacheEntryKey key = new LogicCacheEntryKey(indexDate, dataSource, criteria);
+		Map<Integer, Result> stored = put(key, resultMap, version);
+		if (stored != null)
+			putOnDisk(key, stored, version);
+	}
+
+	/**
+	 * Stores the results of a rule that was evaluated with data as of the given version
+	 *
+	 * @param indexDate
+	 * @param criteria
+	 * @param parameters
+	 * @param ttl
+	 * @param resultMap
+	 * @param version the {@link #getVersion() version} of this cache before the rule was evaluated;
+	 *            results of patients invalidated since then are not stored
+	 */
+	public void put(Date indexDate, LogicCriteria criteria, Map<String, Object> parameters, int ttl,
+	                Map<Integer, Result> resultMap, long version) {
+		put(indexDate, CanonicalCriteria.of(criteria), parameters, ttl, resultMap, version);
+	}
+
+	/**
+	 * @see #put(Date, LogicCriteria, Map, int, Map, long)
+	 */
+	public void put(Date indexDate, CanonicalCriteria criteria, Map<String, Object> parameters, int ttl,
+	                Map<Integer, Result> resultMap, long version) {
+		LogicCacheEntryKey key = new LogicCacheEntryKey(indexDate, criteria, parameters, ttl);
+		Map<Integer, Result> stored = put(key, resultMap, version);
+		if (stored != null)
+			putOnDisk(key, stored, version);
+	}
+
+	/**
+	 * Results must be computed from data at least as recent as the version they are put with, so
+	 * callers take the version before they start reading data
+	 *
+	 * @return the current version of this cache
+	 * @should not store results of patients invalidated after the version was taken
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @param readOnlyCopies whether to store {@link ReadOnlyResult} copies of results, as a cache
+	 *            whose results are handed to other sessions and threads must
+	 */
+	void setReadOnlyCopies(boolean readOnlyCopies) {
+		this.readOnlyCopies = readOnlyCopies;
+	}
+
+	/**
+	 * @param diskStore the tier to keep results in across restarts, or null for none
+	 */
+	void setDiskStore(LogicCacheDiskStore diskStore) {
+		this.diskStore = diskStore;
+	}
+
+	LogicCacheDiskStore getDiskStore() {
+		return diskStore;
+	}
+
+	/**
+	 * Looks for a result on disk, and keeps it in memory (until the persisted entry expires) if found
+	 */
+	private Result getFromDisk(LogicCacheEntryKey key, Integer patientId) {
+		LogicCacheDiskStore store = diskStore;
+		String fingerprint = store == null ? null : key.getFingerprint();
+		if (fingerprint == null)
+			return null;
+		long version = getVersion();
+		LogicCacheDiskStore.Hit hit = store.get(fingerprint, patientId);
+		if (hit == null)
+			return null;
+		Map<Integer, Result> stored = put(key.expiringAt(hit.getExpires()), Collections.singletonMap(patientId, hit
+		        .getResult()), version);
+		return stored == null ? hit.getResult() : stored.get(patientId);
+	}
+
+	/**
+	 * Runs outside the lock; the store itself leaves out the results of patients invalidated after
+	 * the version
+	 */
+	private void putOnDisk(LogicCacheEntryKey key, Map<Integer, Result> resultMap, long version) {
+		LogicCacheDiskStore store = diskStore;
+		String fingerprint = store == null ? null : key.getFingerprint();
+		if (fingerprint != null)
+			store.put(fingerprint, key.getExpires(), resultMap, version);
+	}
+
+	private synchronized Result get(LogicCacheEntryKey key, Integer patientId) {
+		LogicCacheEntry entry = getCache().get(key);
+		if (entry != null && entry.getKey().getExpires() < System.currentTimeMillis()) {
+			removeEntry(entry);
+			entry = null;
+		}
+		Result r = entry == null ? null : entry.getResults().get(patientId);
+		log.debug("Logic cache: " + (r == null ? "NOT FOUND" : "FOUND"));
+		return r;
 	}
 	
-	public void put(LogicDataSource dataSource, LogicCriteria criteria, Map<Integer, Result> resultMap) {
-//		LogicCacheEntryKey key = new LogicCacheEntryKey(dataSource, criteria);
-//		put(key, resultMap);
+	/**
+	 * Stores results under the given key. Patients that are already cached under the same key keep
+	 * their earlier result unless it is replaced here, so maps computed for different cohorts can be
+	 * accumulated in a shared cache. A patient only counts as cached if the map contains an entry for
+	 * that patient, so callers must put an empty result for patients without data. Results of
+	 * patients that were invalidated after the given version are left out.
+	 * 
+	 * @should not cache results with a zero ttl
+	 * @should not return results for patients that were not put
+	 * @should evict the least recently used entry when full
+	 * @should store read only copies of the results
+	 * @return the results that are still current (and may be kept on disk), or null if the results
+	 *         must not be cached because they already expired or are all out of date
+	 */
+	private Map<Integer, Result> put(LogicCacheEntryKey key, Map<Integer, Result> value, long version) {
+		if (key.getExpires() <= System.currentTimeMillis()) {
+			// a zero TTL means the result must not be cached at all
+			return null;
+		}
+		long size = estimateSize(value);
+		if (size > maxMemory) {
+			if (log.isDebugEnabled())
+				log.debug("Not caching " + key.toString() + ", it is larger than the cache itself");
+			return value;
+		}
+		if (readOnlyCopies)
+			value = copy(value);
+		synchronized (this) {
+			if (version < forgottenVersion)
+				return null;
+			if (log.isDebugEnabled())
+				log.debug("Adding to logic cache: " + key.toString());
+			clean();
+			LogicCacheEntry entry = getCache().get(key);
+			long added = 0;
+			if (entry == null) {
+				entry = new LogicCacheEntry(key);
+				getCache().put(key, entry);
+				getExpiryQueue().add(entry);
+				added += MAP_ENTRY_SIZE_ESTIMATE;
+			}
+			Map<Integer, Result> stored = new PatientResultMap(value.size());
+			for (Map.Entry<Integer, Result> e : value.entrySet()) {
+				Long invalidated = invalidatedVersions.get(e.getKey());
+				if (invalidated != null && invalidated > version) {
+					if (log.isDebugEnabled())
+						log.debug("Not caching the result of patient " + e.getKey() + ", it was computed before an update");
+					continue;
+				}
+				Result r = ImmutableEmptyResult.compact(e.getValue());
+				Result previous = entry.getResults().put(e.getKey(), r);
+				if (previous != null) {
+					added -= estimateSize(previous);
+				} else {
+					added += MAP_ENTRY_SIZE_ESTIMATE;
+					getEntriesFor(e.getKey(), true).add(entry);
+				}
+				added += estimateSize(r);
+				stored.put(e.getKey(), r);
+			}
+			entry.addSize(added);
+			memoryUsed += added;
+			if (entry.getResults().isEmpty())
+				removeEntry(entry);
+			evict();
+			return stored.isEmpty() ? null : stored;
+		}
+	}
+
+	/**
+	 * @return a map of read-only copies of the results
+	 */
+	private Map<Integer, Result> copy(Map<Integer, Result> resultMap) {
+		Map<Integer, Result> ret = new PatientResultMap(resultMap.size());
+		for (Map.Entry<Integer, Result> e : resultMap.entrySet())
+			ret.put(e.getKey(), ReadOnlyResult.copyOf(e.getValue()));
+		return ret;
 	}
 	
-	public void put(LogicCriteria criteria, Map<String, Object> parameters, int ttl, Map<Integer, Result> resultMap) {
-//		LogicCacheEntryKey key = new LogicCacheEntryKey(criteria, parameters, ttl);
-//		put(key, resultMap);
+	/**
+	 * Removes every cached result for the given patient, leaving the results of other patients in
+	 * the same entries intact. This only touches the entries that contain the patient. Results of
+	 * the patient computed before this call are not stored anymore, see {@link #getVersion()}.
+	 * 
+	 * @param patientId
+	 * @should only remove results of the given patient
+	 */
+	public void invalidate(Integer patientId) {
+		long invalidated = invalidateInMemory(patientId);
+		LogicCacheDiskStore store = diskStore;
+		if (store != null)
+			store.invalidate(patientId, invalidated);
+	}
+
+	/**
+	 * @return the version of the invalidation
+	 */
+	private synchronized long invalidateInMemory(Integer patientId) {
+		invalidatedVersions.remove(patientId);
+		invalidatedVersions.put(patientId, ++version);
+		if (invalidatedVersions.size() > MAX_TRACKED_INVALIDATIONS) {
+			Iterator<Long> eldest = invalidatedVersions.values().iterator();
+			forgottenVersion = Math.max(forgottenVersion, eldest.next());
+			eldest.remove();
+		}
+		Set<LogicCacheEntry> entries = getEntriesFor(patientId, false);
+		if (entries == null)
+			return version;
+		patientIndex.remove(patientId);
+		for (LogicCacheEntry entry : entries) {
+			Result removed = entry.getResults().remove(patientId);
+			if (removed != null) {
+				long size = MAP_ENTRY_SIZE_ESTIMATE + estimateSize(removed);
+				entry.addSize(-size);
+				memoryUsed -= size;
+			}
+			if (entry.getResults().isEmpty())
+				removeEntry(entry);
+		}
+		return version;
 	}
 	
-	private Result get(LogicCacheEntryKey key, Integer patientId) {
-		Map<Integer, Result> entry = getCache().get(key);
-		log.debug("Logic cache: " + (entry == null ? "NOT FOUND" : "FOUND"));
-		if (entry == null)
-			return null;
-		Result r = entry.get(patientId);
-		if (r == null)
-			r = Result.emptyResult();
-		return r;
+	/**
+	 * Removes least recently used entries until the cache is within its limits again
+	 */
+	private void evict() {
+		while ((getCache().size() > maxEntries || memoryUsed > maxMemory) && !getCache().isEmpty()) {
+			LogicCacheEntry eldest = getCache().values().iterator().next();
+			if (log.isDebugEnabled())
+				log.debug("Evicting from logic cache: " + eldest.getKey().toString());
+			removeEntry(eldest);
+		}
 	}
 	
-	private void put(LogicCacheEntryKey key, Map<Integer, Result> value) {
-		if (log.isDebugEnabled())
-			log.debug("Adding to logic cache: " + key.toString());
-		getCache().put(key, value);
+	/**
+	 * Removes an entry from the cache and from the patient index. The expiry queue is cleaned up
+	 * lazily, see {@link #clean()}.
+	 * 
+	 * @param entry
+	 */
+	private void removeEntry(LogicCacheEntry entry) {
+		if (entry.isRemoved())
+			return;
+		entry.setRemoved(true);
+		getCache().remove(entry.getKey());
+		memoryUsed -= entry.getSize();
+		for (Integer patientId : entry.getResults().keySet()) {
+			Set<LogicCacheEntry> entries = getEntriesFor(patientId, false);
+			if (entries != null) {
+				entries.remove(entry);
+				if (entries.isEmpty())
+					patientIndex.remove(patientId);
+			}
+		}
 	}
 	
-	private Map<LogicCacheEntryKey, Map<Integer, Result>> getCache() {
+	private LinkedHashMap<LogicCacheEntryKey, LogicCacheEntry> getCache() {
 		if (cache == null)
-			cache = new Hashtable<LogicCacheEntryKey, Map<Integer, Result>>();
+			cache = new LinkedHashMap<LogicCacheEntryKey, LogicCacheEntry>(16, 0.75f, true);
 		return cache;
 	}
 	
+	private PriorityQueue<LogicCacheEntry> getExpiryQueue() {
+		if (expiryQueue == null)
+			expiryQueue = new PriorityQueue<LogicCacheEntry>(16, new Comparator<LogicCacheEntry>() {
+				
+				public int compare(LogicCacheEntry left, LogicCacheEntry right) {
+					long l = left.getKey().getExpires();
+					long r = right.getKey().getExpires();
+					return l < r ? -1 : (l == r ? 0 : 1);
+				}
+			});
+		return expiryQueue;
+	}
+	
+	/**
+	 * @param patientId
+	 * @param create whether to create the set if the patient has no cached results yet
+	 * @return the entries holding a result for the given patient
+	 */
+	private Set<LogicCacheEntry> getEntriesFor(Integer patientId, boolean create) {
+		Set<LogicCacheEntry> entries = patientIndex.get(patientId);
+		if (entries == null && create) {
+			entries = new HashSet<LogicCacheEntry>();
+			patientIndex.put(patientId, entries);
+		}
+		return entries;
+	}
+	
+	/**
+	 * Estimates the number of bytes held by a result map
+	 *
+	 * @param resultMap
+	 * @return the estimated size
+	 */
+	private long estimateSize(Map<Integer, Result> resultMap) {
+		long size = MAP_ENTRY_SIZE_ESTIMATE;
+		for (Result r : resultMap.values())
+			size += MAP_ENTRY_SIZE_ESTIMATE + estimateSize(r);
+		return size;
+	}
+
+	private long estimateSize(Result result) {
+		// the shared empty result costs nothing but the map entry
+		if (result == null || result == ImmutableEmptyResult.INSTANCE)
+			return 0;
+		long size = RESULT_SIZE_ESTIMATE;
+		for (Result r : result)
+			size += estimateSize(r);
+		return size;
+	}
+
+	/**
+	 * @return the number of result maps currently held
+	 */
+	public synchronized int size() {
+		return getCache().size();
+	}
+
+	/**
+	 * @return the estimated number of bytes currently held
+	 */
+	public synchronized long getMemoryUsed() {
+		return memoryUsed;
+	}
+
+	/**
+	 * Removes all entries from the cache, including the ones on disk
+	 */
+	public void clear() {
+		long cleared = clearInMemory();
+		LogicCacheDiskStore store = diskStore;
+		if (store != null)
+			store.clear(cleared);
+	}
+
+	/**
+	 * @return the version the cache was cleared at
+	 */
+	private synchronized long clearInMemory() {
+		for (LogicCacheEntry entry : getCache().values())
+			entry.setRemoved(true);
+		getCache().clear();
+		getExpiryQueue().clear();
+		patientIndex.clear();
+		memoryUsed = 0;
+		invalidatedVersions.clear();
+		forgottenVersion = ++version;
+		return version;
+	}
+	
 	/**
-	 * Clean out expired values from the cache
+	 * Clean out expired values from the cache. Entries are kept in a queue ordered by expiry time,
+	 * so only the entries that have expired (or were already removed) are looked at.
 	 */
-	public void clean() {
-		long now = new Date().getTime();
-		for (LogicCacheEntryKey key : getCache().keySet())
-			if (key.getExpires() < now)
-				getCache().remove(key);
+	public synchronized void clean() {
+		long now = System.currentTimeMillis();
+		PriorityQueue<LogicCacheEntry> queue = getExpiryQueue();
+		while (!queue.isEmpty() && (queue.peek().isRemoved() || queue.peek().getKey().getExpires() < now))
+			removeEntry(queue.poll());
+		// entries that were evicted or invalidated linger in the queue until they expire; don't let them pile up
+		if (queue.size() > 2 * getCache().size() + 16) {
+			queue.clear();
+			queue.addAll(getCache().values());
+		}
 	}
 	
 	private void logCacheContents() {
 		if (log.isDebugEnabled()) {
-			log.debug("Logic Cache - " + getCache().size() + " entries");
-			for (LogicCacheEntryKey key : getCache().keySet())
-				log.debug("  " + key.toString() + " - " + getCache().get(key));
+			synchronized (this) {
+				log.debug("Logic Cache - " + getCache().size() + " entries, ~" + memoryUsed + " bytes");
+				for (LogicCacheEntry entry : getCache().values())
+					log.debug("  " + entry.getKey().toString() + " - " + entry.getResults());
+			}
+		}
+	}
+
+	/**
+	 * A cached result map, along with the key it was first stored under (which knows when it
+	 * expires) and its estimated size
+	 */
+	private static class LogicCacheEntry {
+		
+		private final LogicCacheEntryKey key;
+		
+		private final Map<Integer, Result> results = new PatientResultMap();
+		
+		private long size = 0;
+		
+		private boolean removed = false;
+		
+		LogicCacheEntry(LogicCacheEntryKey key) {
+			this.key = key;
+		}
+		
+		LogicCacheEntryKey getKey() {
+			return key;
+		}
+		
+		Map<Integer, Result> getResults() {
+			return results;
+		}
+		
+		long getSize() {
+			return size;
+		}
+		
+		void addSize(long delta) {
+			size += delta;
+		}
+		
+		boolean isRemoved() {
+			return removed;
+		}
+		
+		void setRemoved(boolean removed) {
+			this.removed = removed;
 		}
 	}
 }
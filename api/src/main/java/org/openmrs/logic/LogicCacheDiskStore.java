@@ -0,0 +1,825 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.api.context.Context;
+import org.openmrs.logic.datasource.LazyObsResult;
+import org.openmrs.logic.db.LogicPersonDAO;
+import org.openmrs.logic.result.EmptyResult;
+import org.openmrs.logic.result.Result;
+import org.openmrs.logic.result.Result.Datatype;
+import org.openmrs.logic.util.ImmutableEmptyResult;
+import org.openmrs.logic.util.ReadOnlyResult;
+
+/**
+ * The on-disk tier of the shared {@link LogicCache}, which lets cached results survive a restart.
+ * Results are appended to a single segment file, together with tombstones for invalidated
+ * patients. When the store is opened the file is scanned once to build an in-memory index of where
+ * each patient's result is; results themselves are only decoded when they are asked for. Records
+ * are written by a background thread in the order they were put, so callers never wait for the
+ * disk; a result can only be read back once it has been written. The file is compacted once most
+ * of it is dead. <br/>
+ * Like the in-memory cache, the store remembers the {@link LogicCache#getVersion() version} at which
+ * each patient was last invalidated, and leaves out the results of patients that were invalidated
+ * after the version they were put with, so a put that races with an invalidation can't store a
+ * result behind the tombstone. <br/>
+ * When opening, the results of patients whose data changed after the oldest entry was written (e.g.
+ * while this node was down) are dropped, and so are expired entries. Only the value of a result is
+ * stored (datatype, dates, value and nested results), so results created from an observation or
+ * another object are not stored at all: read back, they could not give that object.
+ */
+class LogicCacheDiskStore {
+
+	private static final Log log = LogFactory.getLog(LogicCacheDiskStore.class);
+
+	private static final int MAGIC = 0x4C4F4743;
+
+	private static final int VERSION = 1;
+
+	private static final byte RECORD_ENTRY = 1;
+
+	private static final byte RECORD_TOMBSTONE = 2;
+
+	private static final byte RESULT_EMPTY = 0;
+
+	private static final byte RESULT_LIST = 1;
+
+	private static final byte RESULT_SINGLE = 2;
+
+	/**
+	 * Patient id of a tombstone that invalidates every patient
+	 */
+	private static final int ALL_PATIENTS = -1;
+
+	/**
+	 * Smaller files are never compacted
+	 */
+	private static final long MIN_COMPACTION_LENGTH = 1024 * 1024;
+
+	/**
+	 * Number of recently invalidated patients whose invalidation version is remembered
+	 */
+	private static final int MAX_TRACKED_INVALIDATIONS = 10000;
+
+	private final File file;
+
+	private RandomAccessFile data;
+
+	private final Map<String, DiskEntry> index = new HashMap<String, DiskEntry>();
+
+	/**
+	 * The fingerprints of the entries holding a result for each patient, so that one patient's
+	 * results can be invalidated without looking at every entry
+	 */
+	private final Map<Integer, Set<String>> patientIndex = new HashMap<Integer, Set<String>>();
+
+	/**
+	 * The version at which each of the recently invalidated patients was last invalidated
+	 */
+	private final LinkedHashMap<Integer, Long> invalidatedVersions = new LinkedHashMap<Integer, Long>();
+
+	/**
+	 * The latest version of the invalidations that are no longer remembered per patient (or of the
+	 * last time the store was cleared); nothing put with an earlier version is stored
+	 */
+	private long forgottenVersion = 0;
+
+	private final ExecutorService writer;
+
+	/**
+	 * The length of the file once all queued records are written
+	 */
+	private long reservedLength;
+
+	/**
+	 * The length of the file up to which all records are written
+	 */
+	private long writtenLength;
+
+	private int pendingWrites = 0;
+
+	/**
+	 * The file is checked for waste again when it grows to this length
+	 */
+	private long nextCompactionCheck = MIN_COMPACTION_LENGTH;
+
+	private boolean closed = false;
+
+	private boolean failed = false;
+
+	/**
+	 * Opens (or creates) the store in the given file
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	LogicCacheDiskStore(File file) throws IOException {
+		this.file = file;
+		long validLength = scan();
+		data = new RandomAccessFile(file, "rw");
+		if (data.length() == 0) {
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+		} else if (validLength < data.length()) {
+			log.warn("Discarding " + (data.length() - validLength) + " unreadable bytes at the end of " + file);
+			data.setLength(validLength);
+		}
+		reservedLength = writtenLength = data.length();
+		writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Logic cache writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		dropChangedPatients();
+		synchronized (this) {
+			if (pendingWrites == 0)
+				compactIfWasteful();
+		}
+	}
+
+	/**
+	 * Looks up the persisted result of a patient
+	 *
+	 * @param fingerprint the {@link LogicCacheEntryKey#getFingerprint() fingerprint} of the key
+	 * @param patientId
+	 * @return the result with its expiry time, or null if none is stored
+	 */
+	Hit get(String fingerprint, Integer patientId) {
+		byte[] bytes;
+		long expires;
+		synchronized (this) {
+			DiskEntry entry = index.get(fingerprint);
+			if (entry == null)
+				return null;
+			if (entry.expires < System.currentTimeMillis()) {
+				removeEntry(fingerprint);
+				return null;
+			}
+			Long position = entry.positions.get(patientId);
+			if (position == null || position >= writtenLength)
+				return null;
+			expires = entry.expires;
+			try {
+				data.seek(position);
+				bytes = new byte[data.readInt()];
+				data.readFully(bytes);
+			}
+			catch (IOException ex) {
+				log.warn("Unable to read logic cache entry from " + file, ex);
+				entry.positions.remove(patientId);
+				return null;
+			}
+		}
+		try {
+			return new Hit(readResult(new DataInputStream(new ByteArrayInputStream(bytes))), expires);
+		}
+		catch (IOException ex) {
+			log.warn("Unable to decode logic cache entry from " + file, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Queues results to be appended to the store. Results that can't be encoded, those created from
+	 * an object, and those of patients invalidated after the given version are left out.
+	 *
+	 * @param fingerprint the {@link LogicCacheEntryKey#getFingerprint() fingerprint} of the key
+	 * @param expires when the results expire
+	 * @param results
+	 * @param version the {@link LogicCache#getVersion() version} the results were computed as of
+	 * @should make results readable once they are written
+	 * @should not store results created from an object
+	 * @should compact the file once most of it is dead
+	 * @should not store results of patients invalidated after the version
+	 */
+	void put(String fingerprint, long expires, Map<Integer, Result> results, long version) {
+		// the results are encoded before taking the lock, which only has to assemble the record
+		Map<Integer, byte[]> encoded = new LinkedHashMap<Integer, byte[]>();
+		for (Map.Entry<Integer, Result> e : results.entrySet()) {
+			byte[] bytes = encode(e.getValue());
+			if (bytes != null)
+				encoded.put(e.getKey(), bytes);
+		}
+		if (encoded.isEmpty())
+			return;
+
+		synchronized (this) {
+			if (!isWritable() || version < forgottenVersion)
+				return;
+			Iterator<Integer> i = encoded.keySet().iterator();
+			while (i.hasNext()) {
+				Long invalidated = invalidatedVersions.get(i.next());
+				if (invalidated != null && invalidated > version)
+					i.remove();
+			}
+			if (encoded.isEmpty())
+				return;
+
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(buffer);
+			Map<Integer, Integer> offsets = new HashMap<Integer, Integer>();
+			try {
+				out.writeByte(RECORD_ENTRY);
+				out.writeLong(System.currentTimeMillis());
+				out.writeLong(expires);
+				writeText(out, fingerprint);
+				out.writeInt(encoded.size());
+				for (Map.Entry<Integer, byte[]> e : encoded.entrySet()) {
+					out.writeInt(e.getKey());
+					offsets.put(e.getKey(), out.size());
+					out.writeInt(e.getValue().length);
+					out.write(e.getValue());
+				}
+				out.flush();
+			}
+			catch (IOException ex) {
+				// writing to memory doesn't fail
+				throw new IllegalStateException(ex);
+			}
+			long start = append(buffer.toByteArray());
+			DiskEntry entry = getEntryForWrite(fingerprint, expires);
+			for (Map.Entry<Integer, Integer> e : offsets.entrySet())
+				addPosition(fingerprint, entry, e.getKey(), start + e.getValue());
+		}
+	}
+
+	/**
+	 * Forgets the results of a patient, also after a restart
+	 *
+	 * @param patientId
+	 * @param version the {@link LogicCache#getVersion() version} of the invalidation
+	 * @should forget the results of the patient also after a restart
+	 */
+	synchronized void invalidate(Integer patientId, long version) {
+		invalidatedVersions.remove(patientId);
+		invalidatedVersions.put(patientId, version);
+		if (invalidatedVersions.size() > MAX_TRACKED_INVALIDATIONS) {
+			Iterator<Long> eldest = invalidatedVersions.values().iterator();
+			forgottenVersion = Math.max(forgottenVersion, eldest.next());
+			eldest.remove();
+		}
+		forget(patientId);
+	}
+
+	/**
+	 * Forgets all results, also after a restart
+	 *
+	 * @param version the {@link LogicCache#getVersion() version} the cache was cleared at
+	 */
+	synchronized void clear(long version) {
+		forgottenVersion = Math.max(forgottenVersion, version);
+		invalidatedVersions.clear();
+		if (isWritable())
+			appendTombstone(ALL_PATIENTS);
+		clearIndex();
+	}
+
+	/**
+	 * Waits until everything put in the store so far has been written
+	 *
+	 * @throws InterruptedException
+	 */
+	void flush() throws InterruptedException {
+		try {
+			writer.submit(new Runnable() {
+
+				public void run() {
+				}
+			}).get();
+		}
+		catch (ExecutionException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Writes the queued records and closes the file
+	 */
+	void close() {
+		synchronized (this) {
+			closed = true;
+		}
+		writer.shutdown();
+		try {
+			if (!writer.awaitTermination(30, TimeUnit.SECONDS))
+				log.warn("Gave up waiting for the logic cache to be written to " + file);
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			try {
+				data.close();
+			}
+			catch (IOException ex) {
+				log.warn("Unable to close " + file, ex);
+			}
+		}
+	}
+
+	private boolean isWritable() {
+		return !closed && !failed;
+	}
+
+	/**
+	 * Reserves room for a record at the end of the file and queues it to be written there
+	 *
+	 * @return where the record will be
+	 */
+	private long append(final byte[] record) {
+		final long start = reservedLength;
+		reservedLength += record.length;
+		++pendingWrites;
+		writer.execute(new Runnable() {
+
+			public void run() {
+				write(start, record);
+			}
+		});
+		return start;
+	}
+
+	/**
+	 * Runs on the writer thread. Once it catches up with the callers, the file is compacted if it
+	 * has grown enough since it was last checked.
+	 */
+	private synchronized void write(long start, byte[] record) {
+		--pendingWrites;
+		if (failed)
+			return;
+		try {
+			data.seek(start);
+			data.write(record);
+			writtenLength = start + record.length;
+			if (pendingWrites == 0 && writtenLength >= nextCompactionCheck)
+				compactIfWasteful();
+		}
+		catch (IOException ex) {
+			log.warn("Unable to write to " + file + ", logic cache results will no longer be stored on disk", ex);
+			failed = true;
+			clearIndex();
+		}
+	}
+
+	private void appendTombstone(int patientId) {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(13);
+		DataOutputStream out = new DataOutputStream(buffer);
+		try {
+			out.writeByte(RECORD_TOMBSTONE);
+			out.writeLong(System.currentTimeMillis());
+			out.writeInt(patientId);
+		}
+		catch (IOException ex) {
+			// writing to memory doesn't fail
+			throw new IllegalStateException(ex);
+		}
+		append(buffer.toByteArray());
+	}
+
+	/**
+	 * Writes a tombstone for the patient and drops the patient from the index
+	 */
+	private void forget(Integer patientId) {
+		if (isWritable())
+			appendTombstone(patientId);
+		removePatient(patientId);
+	}
+
+	/**
+	 * Only touches the entries that hold a result of the patient
+	 */
+	private void removePatient(Integer patientId) {
+		Set<String> fingerprints = patientIndex.remove(patientId);
+		if (fingerprints == null)
+			return;
+		for (String fingerprint : fingerprints) {
+			DiskEntry entry = index.get(fingerprint);
+			if (entry == null)
+				continue;
+			entry.positions.remove(patientId);
+			if (entry.positions.isEmpty())
+				index.remove(fingerprint);
+		}
+	}
+
+	private void removeEntry(String fingerprint) {
+		DiskEntry entry = index.remove(fingerprint);
+		if (entry == null)
+			return;
+		for (Integer patientId : entry.positions.keySet()) {
+			Set<String> fingerprints = patientIndex.get(patientId);
+			if (fingerprints != null) {
+				fingerprints.remove(fingerprint);
+				if (fingerprints.isEmpty())
+					patientIndex.remove(patientId);
+			}
+		}
+	}
+
+	private void addPosition(String fingerprint, DiskEntry entry, Integer patientId, long position) {
+		entry.positions.put(patientId, position);
+		Set<String> fingerprints = patientIndex.get(patientId);
+		if (fingerprints == null) {
+			fingerprints = new HashSet<String>();
+			patientIndex.put(patientId, fingerprints);
+		}
+		fingerprints.add(fingerprint);
+	}
+
+	private void clearIndex() {
+		index.clear();
+		patientIndex.clear();
+	}
+
+	/**
+	 * Results stored under the same key are merged, like they are in memory, unless the earlier
+	 * ones have expired
+	 */
+	private DiskEntry getEntryForWrite(String fingerprint, long expires) {
+		DiskEntry entry = index.get(fingerprint);
+		if (entry == null || entry.expires < System.currentTimeMillis()) {
+			removeEntry(fingerprint);
+			entry = new DiskEntry(expires, System.currentTimeMillis());
+			index.put(fingerprint, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Reads the whole file to build the index, skipping over the results themselves
+	 *
+	 * @return the length of the readable part of the file
+	 */
+	private long scan() throws IOException {
+		if (!file.exists() || file.length() == 0)
+			return 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		long position = 0;
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				log.warn(file + " is not a logic cache file of a known version, ignoring it");
+				return 0;
+			}
+			position = 8;
+			long now = System.currentTimeMillis();
+			while (true) {
+				byte type;
+				try {
+					type = in.readByte();
+				}
+				catch (EOFException ex) {
+					break;
+				}
+				long recordStart = position;
+				long offset = 1;
+				if (type == RECORD_ENTRY) {
+					long written = in.readLong();
+					long expires = in.readLong();
+					String fingerprint = readText(in);
+					offset += 16 + 4 + fingerprint.getBytes("UTF-8").length;
+					int count = in.readInt();
+					offset += 4;
+					Map<Integer, Long> positions = new HashMap<Integer, Long>();
+					for (int i = 0; i < count; ++i) {
+						int patientId = in.readInt();
+						offset += 4;
+						positions.put(patientId, recordStart + offset);
+						int length = in.readInt();
+						in.readFully(new byte[length]);
+						offset += 4 + length;
+					}
+					if (expires >= now) {
+						DiskEntry entry = index.get(fingerprint);
+						if (entry == null || entry.expires < now) {
+							removeEntry(fingerprint);
+							entry = new DiskEntry(expires, written);
+							index.put(fingerprint, entry);
+						}
+						for (Map.Entry<Integer, Long> p : positions.entrySet())
+							addPosition(fingerprint, entry, p.getKey(), p.getValue());
+					}
+				} else if (type == RECORD_TOMBSTONE) {
+					in.readLong();
+					int patientId = in.readInt();
+					offset += 12;
+					if (patientId == ALL_PATIENTS)
+						clearIndex();
+					else
+						removePatient(patientId);
+				} else {
+					break;
+				}
+				position = recordStart + offset;
+			}
+		}
+		catch (EOFException ex) {
+			// the last record was only partly written
+		}
+		finally {
+			in.close();
+		}
+		return position;
+	}
+
+	/**
+	 * Drops the results of every patient whose obs, encounters, person data or programs changed
+	 * after the oldest entry was written, see {@link LogicPersonDAO#getPersonIdsChangedSince(Date)}. If that can't be checked, all results are dropped.
+	 */
+	private void dropChangedPatients() {
+		if (index.isEmpty())
+			return;
+		long oldest = Long.MAX_VALUE;
+		for (DiskEntry entry : index.values())
+			oldest = Math.min(oldest, entry.written);
+		Set<Integer> changed;
+		try {
+			// dates are stored with a precision of a second
+			Date since = new Date(oldest - 1000);
+			changed = Context.getRegisteredComponents(LogicPersonDAO.class).get(0).getPersonIdsChangedSince(since);
+		}
+		catch (Exception ex) {
+			log.warn("Unable to find out whose data changed since the logic cache was written, discarding it", ex);
+			clear(0);
+			return;
+		}
+		// nothing has been put yet, so there are no versions to remember
+		for (Integer patientId : changed)
+			forget(patientId);
+		log.info("Loaded " + index.size() + " logic cache entries from " + file + ", dropped results of "
+		        + changed.size() + " patients whose data changed");
+	}
+
+	/**
+	 * Rewrites the file with only the live results, if most of it is dead. Must only be called when
+	 * no writes are queued.
+	 */
+	private void compactIfWasteful() throws IOException {
+		long live = 8;
+		for (DiskEntry entry : index.values())
+			live += 64 + entry.positions.size() * 64;
+		if (data.length() < MIN_COMPACTION_LENGTH || data.length() < 4 * live) {
+			nextCompactionCheck = Math.max(MIN_COMPACTION_LENGTH, data.length() + data.length() / 4);
+			return;
+		}
+
+		Map<String, Map<Integer, byte[]>> contents = new HashMap<String, Map<Integer, byte[]>>();
+		for (Map.Entry<String, DiskEntry> e : index.entrySet()) {
+			Map<Integer, byte[]> results = new HashMap<Integer, byte[]>();
+			for (Map.Entry<Integer, Long> p : e.getValue().positions.entrySet()) {
+				data.seek(p.getValue());
+				byte[] bytes = new byte[data.readInt()];
+				data.readFully(bytes);
+				results.put(p.getKey(), bytes);
+			}
+			contents.put(e.getKey(), results);
+		}
+		Map<String, DiskEntry> entries = new HashMap<String, DiskEntry>(index);
+		index.clear();
+		data.setLength(0);
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		for (Map.Entry<String, Map<Integer, byte[]>> e : contents.entrySet()) {
+			DiskEntry old = entries.get(e.getKey());
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(buffer);
+			out.writeByte(RECORD_ENTRY);
+			out.writeLong(old.written);
+			out.writeLong(old.expires);
+			writeText(out, e.getKey());
+			out.writeInt(e.getValue().size());
+			DiskEntry entry = new DiskEntry(old.expires, old.written);
+			long start = data.length();
+			for (Map.Entry<Integer, byte[]> p : e.getValue().entrySet()) {
+				out.writeInt(p.getKey());
+				entry.positions.put(p.getKey(), start + out.size());
+				out.writeInt(p.getValue().length);
+				out.write(p.getValue());
+			}
+			out.flush();
+			data.seek(start);
+			data.write(buffer.toByteArray());
+			index.put(e.getKey(), entry);
+		}
+		reservedLength = writtenLength = data.length();
+		nextCompactionCheck = Math.max(MIN_COMPACTION_LENGTH, data.length() * 2);
+		log.info("Compacted " + file + " to " + data.length() + " bytes");
+	}
+
+	/**
+	 * @return the encoded result, or null if it can't be encoded
+	 */
+	private byte[] encode(Result result) {
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(buffer);
+			if (!writeResult(out, result))
+				return null;
+			out.flush();
+			return buffer.toByteArray();
+		}
+		catch (IOException ex) {
+			return null;
+		}
+	}
+
+	private boolean writeResult(DataOutputStream out, Result result) throws IOException {
+		if (result == null || result instanceof EmptyResult) {
+			out.writeByte(RESULT_EMPTY);
+			return true;
+		}
+		if (!result.isEmpty()) {
+			out.writeByte(RESULT_LIST);
+			out.writeInt(result.size());
+			for (Result r : result) {
+				if (!writeResult(out, r))
+					return false;
+			}
+			return true;
+		}
+
+		if (hasResultObject(result))
+			return false;
+		out.writeByte(RESULT_SINGLE);
+		Datatype datatype = result.getDatatype();
+		writeText(out, datatype == null ? null : datatype.name());
+		writeDate(out, result.getResultDate());
+		if (datatype == Datatype.BOOLEAN) {
+			Boolean b = result.toBoolean();
+			out.writeByte(b == null ? -1 : (b ? 1 : 0));
+		} else if (datatype == Datatype.CODED) {
+			Concept c = result.toConcept();
+			if (c != null && c.getConceptId() == null)
+				return false;
+			out.writeInt(c == null ? -1 : c.getConceptId());
+		} else if (datatype == Datatype.DATETIME) {
+			writeDate(out, result.toDatetime());
+		} else if (datatype == Datatype.NUMERIC) {
+			Double d = result.toNumber();
+			out.writeBoolean(d != null);
+			if (d != null)
+				out.writeDouble(d);
+		} else if (datatype == Datatype.TEXT) {
+			writeText(out, result.toString());
+		}
+		return true;
+	}
+
+	/**
+	 * Checks without loading the object
+	 */
+	private static boolean hasResultObject(Result result) {
+		if (result instanceof ReadOnlyResult)
+			return ((ReadOnlyResult) result).hasResultObject();
+		if (result instanceof LazyObsResult)
+			return ((LazyObsResult) result).getObsId() != null || ((LazyObsResult) result).isLoaded();
+		return result.getResultObject() != null;
+	}
+
+	private Result readResult(DataInputStream in) throws IOException {
+		byte kind = in.readByte();
+		if (kind == RESULT_EMPTY)
+			return ImmutableEmptyResult.INSTANCE;
+		if (kind == RESULT_LIST) {
+			int size = in.readInt();
+			List<Result> list = new ArrayList<Result>(size);
+			for (int i = 0; i < size; ++i)
+				list.add(readResult(in));
+			return new Result(list);
+		}
+
+		String datatypeName = readText(in);
+		Datatype datatype = datatypeName == null ? null : Datatype.valueOf(datatypeName);
+		Date resultDate = readDate(in);
+		Boolean valueBoolean = null;
+		Concept valueCoded = null;
+		Date valueDatetime = null;
+		Double valueNumeric = null;
+		String valueText = null;
+		if (datatype == Datatype.BOOLEAN) {
+			byte b = in.readByte();
+			valueBoolean = b < 0 ? null : Boolean.valueOf(b == 1);
+		} else if (datatype == Datatype.CODED) {
+			int conceptId = in.readInt();
+			valueCoded = conceptId < 0 ? null : Context.getConceptService().getConcept(conceptId);
+		} else if (datatype == Datatype.DATETIME) {
+			valueDatetime = readDate(in);
+		} else if (datatype == Datatype.NUMERIC) {
+			if (in.readBoolean())
+				valueNumeric = in.readDouble();
+		} else if (datatype == Datatype.TEXT) {
+			valueText = readText(in);
+		}
+		return new Result(resultDate, datatype, valueBoolean, valueCoded, valueDatetime, valueNumeric, valueText, null);
+	}
+
+	private static void writeDate(DataOutputStream out, Date date) throws IOException {
+		out.writeBoolean(date != null);
+		if (date != null)
+			out.writeLong(date.getTime());
+	}
+
+	private static Date readDate(DataInputStream in) throws IOException {
+		return in.readBoolean() ? new Date(in.readLong()) : null;
+	}
+
+	private static void writeText(DataOutputStream out, String text) throws IOException {
+		if (text == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = text.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readText(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Where the results stored under one key are
+	 */
+	private static class DiskEntry {
+
+		private final long expires;
+
+		private final long written;
+
+		private final Map<Integer, Long> positions = new HashMap<Integer, Long>();
+
+		DiskEntry(long expires, long written) {
+			this.expires = expires;
+			this.written = written;
+		}
+	}
+
+	/**
+	 * A result found in the store, with the time it expires
+	 */
+	static class Hit {
+
+		private final Result result;
+
+		private final long expires;
+
+		Hit(Result result, long expires) {
+			this.result = result;
+			this.expires = expires;
+		}
+
+		Result getResult() {
+			return result;
+		}
+
+		long getExpires() {
+			return expires;
+		}
+	}
+}
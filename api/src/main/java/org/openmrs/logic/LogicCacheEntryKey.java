@@ -19,11 +19,14 @@ import java.util.Map;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.logic.datasource.LogicDataSource;
-import org.openmrs.logic.LogicCriteria;
 
 /**
  * Logic cache composite key. Keys can be created for rules or data elements. Keys contain
- * information about when the entry was last updated and when the entry expires.
+ * information about when the entry was last updated and when the entry expires. The criteria is
+ * kept in its {@link CanonicalCriteria canonical form}, which callers build once per evaluation, so
+ * creating and comparing keys does not walk expression trees. Keys also carry the
+ * index date the results were computed as of, so that contexts with different index dates can share
+ * a cache.
  */
 class LogicCacheEntryKey {
 	
@@ -35,10 +38,12 @@ class LogicCacheEntryKey {
 	
 	private LogicCacheEntryType type;//whether it comes from a rule.eval or a datasource.read
 	
-	private LogicCriteria criteria;
+	private CanonicalCriteria criteria;
 	
 	private long expires;
 	
+	private Date indexDate;
+	
 	private LogicDataSource dataSource; //specific to DATA_ELEMENT type
 	
 	private Map<String, Object> parameters; //specific to RULE type
@@ -46,14 +51,16 @@ class LogicCacheEntryKey {
 	/**
 	 * Creates a key for a rule.eval type evaluation
 	 * 
+	 * @param indexDate
 	 * @param criteria
 	 * @param parameters
-	 * @param ttl
+	 * @param ttl time to live, in seconds
 	 */
-	LogicCacheEntryKey(LogicCriteria criteria, Map<String, Object> parameters, int ttl) {
+	LogicCacheEntryKey(Date indexDate, CanonicalCriteria criteria, Map<String, Object> parameters, int ttl) {
 		this.type = LogicCacheEntryType.RULE;
+		this.indexDate = indexDate == null ? null : new Date(indexDate.getTime());
 		long modified = new Date().getTime();
-		this.expires = modified + ttl;
+		this.expires = modified + ttl * 1000L;
 		this.criteria = criteria;
 		this.parameters = parameters;
 	}
@@ -61,17 +68,55 @@ class LogicCacheEntryKey {
 	/**
 	 * Creates a key for a datasource.read type evaluation
 	 * 
+	 * @param indexDate
 	 * @param dataSource
 	 * @param critera
 	 */
-	LogicCacheEntryKey(LogicDataSource dataSource, LogicCriteria critera) {
+	LogicCacheEntryKey(Date indexDate, LogicDataSource dataSource, CanonicalCriteria critera) {
 		this.type = LogicCacheEntryType.DATA_ELEMENT;
+		this.indexDate = indexDate == null ? null : new Date(indexDate.getTime());
 		long modified = new Date().getTime();
-		this.expires = modified + dataSource.getDefaultTTL();
+		this.expires = modified + dataSource.getDefaultTTL() * 1000L;
 		this.dataSource = dataSource;
 		this.criteria = critera;
 	}
 	
+	/**
+	 * @param expires
+	 * @return a copy of this key that expires at the given time
+	 */
+	LogicCacheEntryKey expiringAt(long expires) {
+		LogicCacheEntryKey copy = new LogicCacheEntryKey();
+		copy.type = type;
+		copy.criteria = criteria;
+		copy.indexDate = indexDate;
+		copy.dataSource = dataSource;
+		copy.parameters = parameters;
+		copy.expires = expires;
+		return copy;
+	}
+	
+	private LogicCacheEntryKey() {
+	}
+	
+	/**
+	 * Gets a string identifying this key across restarts, used to find results in the
+	 * {@link LogicCacheDiskStore}. Keys of rules evaluated with parameters, and keys whose criteria
+	 * have no {@link CanonicalCriteria#getKeyString() key string}, have no fingerprint.
+	 * 
+	 * @return the fingerprint, or null if this key can't be identified by a string
+	 */
+	String getFingerprint() {
+		if (parameters != null && !parameters.isEmpty())
+			return null;
+		String criteriaKey = criteria == null ? null : criteria.getKeyString();
+		if (criteriaKey == null)
+			return null;
+		String source = dataSource == null ? "" : dataSource.getClass().getName();
+		return type + "|" + source + "|" + (indexDate == null ? "" : String.valueOf(indexDate.getTime())) + "|"
+		        + criteriaKey;
+	}
+	
 	@Override
 	public boolean equals(Object obj) {
 		if (obj == null || !(obj instanceof LogicCacheEntryKey))
@@ -83,6 +128,9 @@ class LogicCacheEntryKey {
 		//make sure the logic criteria is the same
 		if (!safeEquals(cek.criteria, criteria))
 			return false;
+		//results computed as of another date are different results
+		if (!safeEquals(cek.indexDate, indexDate))
+			return false;
 		if (type == LogicCacheEntryType.RULE) {
 			if (!safeEquals(cek.parameters, parameters))
 				return false;
@@ -104,6 +152,7 @@ class LogicCacheEntryKey {
 		int result = 1;
 		result = prime * result + ((criteria == null) ? 0 : criteria.hashCode());
 		result = prime * result + ((dataSource == null) ? 0 : dataSource.hashCode());
+		result = prime * result + ((indexDate == null) ? 0 : indexDate.hashCode());
 		result = prime * result + ((parameters == null) ? 0 : parameters.hashCode());
 		result = prime * result + ((type == null) ? 0 : type.hashCode());
 		return result;
@@ -121,9 +170,14 @@ class LogicCacheEntryKey {
 		return expires;
 	}
 	
+	public Date getIndexDate() {
+		return indexDate;
+	}
+	
 	public String toString() {
 		
-		return String.valueOf("[" + type + "," + parameters + "," + criteria.getRootToken() + "," + dataSource + "]@"
+		return String.valueOf("[" + type + "," + parameters + "," + criteria.getRootToken() + "," + dataSource + ","
+		        + indexDate + "]@"
 		        + hashCode());
 	}
 }
@@ -0,0 +1,141 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic;
+
+import java.io.File;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * Holds the {@link LogicCache} that is shared by all logic contexts, so that results outlive a
+ * single call to the logic service. The shared cache is only used if the
+ * {@link LogicConstants#CACHE_SHARED_ENABLED} global property is true; its settings are read once,
+ * the first time the cache is needed, and again after {@link #reset()}. Cached results for a
+ * patient are invalidated whenever that patient's data is changed through the API. The cache holds
+ * {@link org.openmrs.logic.util.ReadOnlyResult read-only copies} of results. <br/>
+ * If {@link LogicConstants#CACHE_DISK_ENABLED} is also true, results are kept on disk as well, so
+ * that they survive a restart.
+ * 
+ * @see org.openmrs.logic.advice.LogicCacheInvalidationAdvice
+ */
+public class LogicCacheManager {
+	
+	private static final Log log = LogFactory.getLog(LogicCacheManager.class);
+	
+	private static Boolean enabled;
+	
+	private static LogicCache sharedCache;
+	
+	private LogicCacheManager() {
+	}
+	
+	/**
+	 * @return the shared cache, or null if the shared cache is disabled
+	 */
+	public static synchronized LogicCache getSharedCache() {
+		if (enabled == null) {
+			enabled = Boolean.valueOf(getGlobalProperty(LogicConstants.CACHE_SHARED_ENABLED, "false"));
+			if (enabled) {
+				int maxEntries = Integer.parseInt(getGlobalProperty(LogicConstants.CACHE_SHARED_MAX_ENTRIES, String
+				        .valueOf(LogicCache.DEFAULT_MAX_ENTRIES)));
+				long maxMemory = Long.parseLong(getGlobalProperty(LogicConstants.CACHE_SHARED_MAX_MEMORY, String
+				        .valueOf(LogicCache.DEFAULT_MAX_MEMORY)));
+				sharedCache = new LogicCache(maxEntries, maxMemory);
+				// its results are handed to every session and thread
+				sharedCache.setReadOnlyCopies(true);
+				log.info("Shared logic cache enabled with maxEntries=" + maxEntries + " maxMemory=" + maxMemory);
+				if (Boolean.valueOf(getGlobalProperty(LogicConstants.CACHE_DISK_ENABLED, "false")))
+					sharedCache.setDiskStore(openDiskStore());
+			}
+		}
+		return sharedCache;
+	}
+	
+	/**
+	 * Removes the cached results of the given patient from the shared cache
+	 * 
+	 * @param patientId
+	 */
+	public static void invalidate(Integer patientId) {
+		LogicCache cache = getCacheIfCreated();
+		if (cache != null && patientId != null) {
+			if (log.isDebugEnabled())
+				log.debug("Invalidating logic cache for patient " + patientId);
+			cache.invalidate(patientId);
+		}
+	}
+	
+	/**
+	 * Removes all results from the shared cache, e.g. because a rule definition has changed
+	 */
+	public static void invalidateAll() {
+		LogicCache cache = getCacheIfCreated();
+		if (cache != null)
+			cache.clear();
+	}
+	
+	/**
+	 * Throws away the shared cache, so that its global properties are read again the next time it
+	 * is needed
+	 */
+	public static synchronized void reset() {
+		if (sharedCache != null) {
+			// detach the disk store first, its contents are meant to outlive this cache
+			LogicCacheDiskStore diskStore = sharedCache.getDiskStore();
+			sharedCache.setDiskStore(null);
+			if (diskStore != null)
+				diskStore.close();
+			sharedCache.clear();
+		}
+		sharedCache = null;
+		enabled = null;
+	}
+	
+	/**
+	 * Invalidation must never need a database lookup (it is called while saving data), so it only
+	 * acts on a cache that has already been created
+	 */
+	private static synchronized LogicCache getCacheIfCreated() {
+		return sharedCache;
+	}
+	
+	/**
+	 * @return the store in the application data directory, or null if it can't be opened
+	 */
+	private static LogicCacheDiskStore openDiskStore() {
+		File file = new File(OpenmrsUtil.getDirectoryInApplicationDataDirectory("logic"), "cache.dat");
+		try {
+			return new LogicCacheDiskStore(file);
+		}
+		catch (Exception ex) {
+			log.warn("Unable to open the logic cache in " + file + ", results will only be cached in memory", ex);
+			return null;
+		}
+	}
+	
+	private static String getGlobalProperty(String property, String defaultValue) {
+		String value = null;
+		try {
+			value = Context.getAdministrationService().getGlobalProperty(property);
+		}
+		catch (Exception ex) {
+			log.warn("Unable to read global property " + property, ex);
+		}
+		return StringUtils.isBlank(value) ? defaultValue : value.trim();
+	}
+}
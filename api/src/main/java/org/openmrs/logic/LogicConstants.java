@@ -24,6 +24,26 @@ public interface LogicConstants {
 	
 	public static final String RULE_DEFAULT_PACKAGE_FOLDER = "logic.default.packageName";
 	
+	public static final String CACHE_SHARED_ENABLED = "logic.cache.shared.enabled";
+	
+	public static final String CACHE_SHARED_MAX_ENTRIES = "logic.cache.shared.maxEntries";
+	
+	public static final String CACHE_SHARED_MAX_MEMORY = "logic.cache.shared.maxMemory";
+	
+	public static final String CACHE_DISK_ENABLED = "logic.cache.disk.enabled";
+	
+	public static final String EVAL_THREADS = "logic.eval.threads";
+	
+	public static final String EVAL_PARALLEL_THRESHOLD = "logic.eval.parallelThreshold";
+	
+	public static final String EVAL_PREFETCH_DEPENDENCIES = "logic.eval.prefetchDependencies";
+	
+	public static final String QUERY_CHUNK_SIZE = "logic.query.chunkSize";
+	
+	public static final String QUERY_FETCH_SIZE = "logic.query.fetchSize";
+	
+	public static final String OBS_PROJECTION_READS = "logic.obs.projectionReads";
+	
 	public static final String NEWLINE = System.getProperty("line.separator");
 	
 }
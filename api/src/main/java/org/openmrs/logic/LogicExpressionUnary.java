@@ -143,6 +143,13 @@ public class LogicExpressionUnary implements LogicExpression {
 		}
 	}
 	
+	/**
+	 * @return the transform set on this expression itself, ignoring those of nested expressions
+	 */
+	LogicTransform getOwnTransform() {
+		return transform;
+	}
+	
 	/**
 	 * @see org.openmrs.logic.LogicExpression#setTransform(org.openmrs.logic.LogicTransform)
 	 */
@@ -23,6 +23,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.openmrs.logic.LogicCriteria;
 import org.openmrs.logic.impl.LogicCriteriaImpl;
+import org.openmrs.logic.op.AggregateOperator;
 
 /**
  * Parses strings into a LogicCriteria object. This provides a convenience mechanism for logic
@@ -50,21 +51,29 @@ import org.openmrs.logic.impl.LogicCriteriaImpl;
  * <td>The first n result(s) in a list.</td>
  * </tr>
  * <tr>
- * <td><s>MAX</s></td>
- * <td>The maximum result in a list.</td>
+ * <td>MAX</td>
+ * <td>The maximum numeric value in a list.</td>
  * </tr>
  * <tr>
  * <td><s>MAX n FROM</s></td>
  * <td>The maximum n result(s) in a list.</td>
  * </tr>
  * <tr>
- * <td><s>MIN</s></td>
- * <td>The minimum result in a list.</td>
+ * <td>MIN</td>
+ * <td>The minimum numeric value in a list.</td>
  * </tr>
  * <tr>
  * <td><s>MIN n FROM</s></td>
  * <td>The minimum n result(s) in a list.</td>
  * </tr>
+ * <tr>
+ * <td>SUM</td>
+ * <td>The sum of the numeric values in a list.</td>
+ * </tr>
+ * <tr>
+ * <td>AVERAGE</td>
+ * <td>The average of the numeric values in a list.</td>
+ * </tr>
  * </table>
  * Examples of conditions:
  * <table width="50%">
@@ -134,25 +143,29 @@ public class LogicQueryParser {
 		aggregators.put(regex("SUM"), new Aggregator() {
 			
 			LogicCriteria apply(LogicCriteria criteria, Matcher match) throws LogicQueryParseException {
-				throw new LogicQueryParseException("Logic query SUM not implemented");
+				return criteria.applyTransform(AggregateOperator.SUM);
 			}
 		});
 		aggregators.put(regex("AVERAGE|AVG"), new Aggregator() {
 			
 			LogicCriteria apply(LogicCriteria criteria, Matcher match) throws LogicQueryParseException {
-				throw new LogicQueryParseException("Logic query AVERAGE not implemented");
+				return criteria.average();
 			}
 		});
 		aggregators.put(regex("MIN(IMUM)?(\\s+(\\d+) FROM)?"), new Aggregator() {
 			
 			LogicCriteria apply(LogicCriteria criteria, Matcher match) throws LogicQueryParseException {
-				throw new LogicQueryParseException("Logic query MINIMUM not implemented");
+				if (match.group(2) != null)
+					throw new LogicQueryParseException("Logic query feature not yet supported: MINIMUM " + match.group(3));
+				return criteria.applyTransform(AggregateOperator.MIN);
 			}
 		});
 		aggregators.put(regex("MAX(IMUM)?(\\s+(\\d+)\\s+FROM)?"), new Aggregator() {
 			
 			LogicCriteria apply(LogicCriteria criteria, Matcher match) throws LogicQueryParseException {
-				throw new LogicQueryParseException("Logic query MAXIMUM not implemented");
+				if (match.group(2) != null)
+					throw new LogicQueryParseException("Logic query feature not yet supported: MAXIMUM " + match.group(3));
+				return criteria.applyTransform(AggregateOperator.MAX);
 			}
 		});
 		aggregators.put(regex("(LAST|LATEST)(\\s+(\\d+)\\s+FROM)?"), new Aggregator() {
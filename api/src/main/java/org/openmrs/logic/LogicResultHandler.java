@@ -0,0 +1,36 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic;
+
+import org.openmrs.logic.result.Result;
+
+/**
+ * Receives the results of a cohort evaluation one patient at a time, so that they don't all have to
+ * be kept in memory
+ * 
+ * @see ExtendedLogicService#eval(org.openmrs.Cohort, LogicCriteria, java.util.Map,
+ *      LogicResultHandler)
+ */
+public interface LogicResultHandler {
+	
+	/**
+	 * Called once for each patient of the cohort
+	 * 
+	 * @param patientId
+	 * @param result the result of the patient, empty if there is none
+	 * @throws LogicException to stop the evaluation
+	 */
+	public void handle(Integer patientId, Result result) throws LogicException;
+	
+}
@@ -0,0 +1,146 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.advice;
+
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientProgram;
+import org.openmrs.PatientState;
+import org.openmrs.Person;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonAttribute;
+import org.openmrs.PersonName;
+import org.openmrs.logic.LogicCacheManager;
+import org.springframework.aop.AfterReturningAdvice;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Keeps the shared logic cache from serving stale results. This advice is applied to the core
+ * services that change the data logic data sources read (obs, encounters, persons, patients and
+ * program enrollments); whenever one of their methods that changes data returns, the cached results
+ * of the patients involved are removed. <br/>
+ * Until the transaction commits, other sessions still read the old data and may cache results of
+ * it again, so the patients are invalidated a second time once the transaction is over (whether it
+ * committed or rolled back). Results computed from data read before that are not stored either,
+ * see {@link org.openmrs.logic.LogicCache#getVersion()}.
+ * 
+ * @see LogicCacheManager
+ */
+public class LogicCacheInvalidationAdvice implements AfterReturningAdvice {
+	
+	private static final Log log = LogFactory.getLog(LogicCacheInvalidationAdvice.class);
+	
+	private static final String[] CHANGING_METHOD_PREFIXES = { "save", "create", "update", "void", "unvoid", "delete",
+	        "purge", "merge", "retire", "unretire", "change" };
+	
+	/**
+	 * @see org.springframework.aop.AfterReturningAdvice#afterReturning(java.lang.Object,
+	 *      java.lang.reflect.Method, java.lang.Object[], java.lang.Object)
+	 */
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		if (!changesData(method.getName()))
+			return;
+		
+		Set<Integer> patientIds = new HashSet<Integer>();
+		if (args != null) {
+			for (Object arg : args)
+				addPatientId(patientIds, arg);
+		}
+		addPatientId(patientIds, returnValue);
+		
+		if (patientIds.isEmpty())
+			return;
+		invalidate(patientIds);
+		if (TransactionSynchronizationManager.isSynchronizationActive())
+			TransactionSynchronizationManager.registerSynchronization(new InvalidateOnCompletion(patientIds));
+		if (log.isDebugEnabled())
+			log.debug(method.getName() + " invalidated logic cache for patients " + patientIds);
+	}
+	
+	private static void invalidate(Set<Integer> patientIds) {
+		for (Integer patientId : patientIds)
+			LogicCacheManager.invalidate(patientId);
+	}
+	
+	/**
+	 * Invalidates the patients again when the transaction that changed their data is over
+	 */
+	private static class InvalidateOnCompletion extends TransactionSynchronizationAdapter {
+		
+		private final Set<Integer> patientIds;
+		
+		InvalidateOnCompletion(Set<Integer> patientIds) {
+			this.patientIds = patientIds;
+		}
+		
+		/**
+		 * @see org.springframework.transaction.support.TransactionSynchronizationAdapter#afterCompletion(int)
+		 */
+		@Override
+		public void afterCompletion(int status) {
+			invalidate(patientIds);
+		}
+	}
+	
+	private boolean changesData(String methodName) {
+		for (String prefix : CHANGING_METHOD_PREFIXES) {
+			if (methodName.startsWith(prefix))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Adds the id of the patient the given object belongs to, if it is patient data
+	 * 
+	 * @param patientIds
+	 * @param o
+	 */
+	private void addPatientId(Set<Integer> patientIds, Object o) {
+		Integer patientId = null;
+		if (o instanceof Obs)
+			patientId = getPersonId(((Obs) o).getPerson());
+		else if (o instanceof Encounter)
+			patientId = getPersonId(((Encounter) o).getPatient());
+		else if (o instanceof Person)
+			patientId = ((Person) o).getPersonId();
+		else if (o instanceof PatientProgram)
+			patientId = getPersonId(((PatientProgram) o).getPatient());
+		else if (o instanceof PatientState && ((PatientState) o).getPatientProgram() != null)
+			patientId = getPersonId(((PatientState) o).getPatientProgram().getPatient());
+		else if (o instanceof PatientIdentifier)
+			patientId = getPersonId(((PatientIdentifier) o).getPatient());
+		else if (o instanceof PersonName)
+			patientId = getPersonId(((PersonName) o).getPerson());
+		else if (o instanceof PersonAttribute)
+			patientId = getPersonId(((PersonAttribute) o).getPerson());
+		else if (o instanceof PersonAddress)
+			patientId = getPersonId(((PersonAddress) o).getPerson());
+		if (patientId != null)
+			patientIds.add(patientId);
+	}
+	
+	private Integer getPersonId(Person person) {
+		return person == null ? null : person.getPersonId();
+	}
+}
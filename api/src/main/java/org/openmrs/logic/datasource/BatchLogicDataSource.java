@@ -0,0 +1,44 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.datasource;
+
+import java.util.List;
+import java.util.Map;
+
+import org.openmrs.Cohort;
+import org.openmrs.logic.LogicContext;
+import org.openmrs.logic.LogicCriteria;
+import org.openmrs.logic.LogicException;
+import org.openmrs.logic.result.Result;
+
+/**
+ * A data source that can read several criteria for a cohort with fewer queries than reading them
+ * one at a time
+ */
+public interface BatchLogicDataSource extends LogicDataSource {
+	
+	/**
+	 * Reads several criteria at once
+	 * 
+	 * @param context
+	 * @param patients
+	 * @param criteria
+	 * @return for each criteria, the same results {@link #read(LogicContext, Cohort, LogicCriteria)}
+	 *         would return
+	 * @throws LogicException
+	 */
+	public Map<LogicCriteria, Map<Integer, Result>> readAll(LogicContext context, Cohort patients,
+	                                                        List<LogicCriteria> criteria) throws LogicException;
+	
+}
@@ -27,13 +27,13 @@ import org.openmrs.logic.result.Result;
 import org.openmrs.logic.rule.provider.RuleProvider;
 import org.openmrs.logic.rule.provider.SimpleDataSourceRuleProvider;
 import org.openmrs.logic.util.LogicUtil;
+import org.openmrs.logic.util.PatientResultMap;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -110,10 +110,18 @@ public class EncounterDataSource extends SimpleDataSourceRuleProvider implements
 	 * @should return text result for encounter key and lte
 	 * @should return text result for encounter key and gte
 	 * @should return text result for encounter key and within
+	 * @should return count of encounters
 	 */
 	public Map<Integer, Result> read(LogicContext context, Cohort patients, LogicCriteria criteria) throws LogicException {
 		
-		Map<Integer, Result> finalResult = new HashMap<Integer, Result>();
+		// other tokens don't give results, so their counts are left to the aggregators
+		if (hasKey(criteria.getRootToken())) {
+			Map<Integer, Number> counts = getLogicEncounterDAO().getCounts(patients, criteria, context);
+			if (counts != null)
+				return LogicUtil.toAggregateResults(counts, criteria, patients);
+		}
+		
+		Map<Integer, Result> finalResult = new PatientResultMap(patients.size());
 		List<Encounter> encounters = getLogicEncounterDAO().getEncounters(patients, criteria, context);
 		
 		String rootToken = criteria.getRootToken();
@@ -0,0 +1,79 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.datasource;
+
+import java.util.Date;
+
+import org.openmrs.Concept;
+import org.openmrs.Obs;
+import org.openmrs.api.context.Context;
+import org.openmrs.logic.result.Result;
+
+/**
+ * The result of an observation that was read as plain values. It holds the same date and values as
+ * <code>new Result(obs)</code> would, but the {@link Obs} itself is only loaded the first time
+ * {@link #getResultObject()} is called.
+ */
+public class LazyObsResult extends Result {
+
+	private static final long serialVersionUID = 3209743915427823017L;
+
+	private final Integer obsId;
+
+	/**
+	 * @param obsId
+	 * @param obsDatetime
+	 * @param datatype the datatype of the question, as <code>new Result(obs)</code> sets it
+	 * @param valueNumeric
+	 * @param valueCoded
+	 * @param valueDatetime
+	 * @param valueText
+	 */
+	public LazyObsResult(Integer obsId, Date obsDatetime, Datatype datatype, Double valueNumeric, Concept valueCoded,
+	    Date valueDatetime, String valueText) {
+		// the boolean value of an obs is derived from its numeric value
+		super(obsDatetime, datatype, valueNumeric == null ? null : valueNumeric != 0, valueCoded, valueDatetime,
+		        valueNumeric, valueText, null);
+		this.obsId = obsId;
+	}
+
+	/**
+	 * @return the id of the observation
+	 */
+	public Integer getObsId() {
+		return obsId;
+	}
+
+	/**
+	 * @return whether the observation has been loaded
+	 */
+	public boolean isLoaded() {
+		return super.getResultObject() != null;
+	}
+
+	/**
+	 * Loads the observation if it hasn't been loaded yet
+	 *
+	 * @see org.openmrs.logic.result.Result#getResultObject()
+	 */
+	@Override
+	public Object getResultObject() {
+		Object obs = super.getResultObject();
+		if (obs == null && obsId != null) {
+			obs = Context.getObsService().getObs(obsId);
+			setResultObject(obs);
+		}
+		return obs;
+	}
+}
@@ -18,6 +18,7 @@ import org.apache.commons.lang.StringUtils;
 import org.openmrs.Cohort;
 import org.openmrs.Concept;
 import org.openmrs.ConceptClass;
+import org.openmrs.ConceptDatatype;
 import org.openmrs.ConceptName;
 import org.openmrs.Obs;
 import org.openmrs.api.context.Context;
@@ -25,15 +26,18 @@ import org.openmrs.logic.LogicContext;
 import org.openmrs.logic.LogicCriteria;
 import org.openmrs.logic.LogicException;
 import org.openmrs.logic.db.LogicObsDAO;
+import org.openmrs.logic.db.LogicRowHandler;
 import org.openmrs.logic.result.Result;
 import org.openmrs.logic.rule.provider.RegisterAtStartupDataSourceRuleProvider;
 import org.openmrs.logic.rule.provider.RuleProvider;
 import org.openmrs.logic.util.LogicUtil;
+import org.openmrs.logic.util.PatientResultMap;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -46,7 +50,7 @@ import java.util.Map;
  * TODO either make {@link RegisterAtStartupDataSourceRuleProvider} more efficient, or else write a custom {@link #afterStartup()} method.
  */
 @Repository
-public class ObsDataSource extends RegisterAtStartupDataSourceRuleProvider implements RuleProvider, LogicDataSource {
+public class ObsDataSource extends RegisterAtStartupDataSourceRuleProvider implements RuleProvider, BatchLogicDataSource {
 
 	public static final String NAME = "obs";
 
@@ -75,6 +79,7 @@ public class ObsDataSource extends RegisterAtStartupDataSourceRuleProvider imple
 	 * @should get obs eq value
 	 * @should get last obs if it is lt value
 	 * @should get last obs of those lt value
+	 * @should get the last obs of every patient when reading the cohort in slices
 	 * @should get obs before date
 	 * @should get obs after date
 	 * @should get obs gt value after date
@@ -91,35 +96,141 @@ public class ObsDataSource extends RegisterAtStartupDataSourceRuleProvider imple
 	 * @should get average of null when no obs
 	 * @should get count of obs when obs
 	 * @should get count of zero when no obs
+	 * @should get sum of obs
+	 * @should get min of obs
+	 * @should get max of obs when parsed
 	 * @should get return obs ordered by datetime
+	 * @should read the same values without loading the obs when projection reads are enabled
+	 * @should get the last n obs of every patient when streaming the rows
+	 * @should read only the values when streaming the rows unless projection reads are turned off
 	 * @see org.openmrs.logic.datasource.LogicDataSource#read(org.openmrs.logic.LogicContext,
 	 *      org.openmrs.Cohort, org.openmrs.logic.LogicCriteria)
 	 */
 	public Map<Integer, Result> read(LogicContext context, Cohort patients, LogicCriteria criteria) throws LogicException {
+		// COUNT, AVERAGE, SUM, MIN and MAX only need one number per patient, which the database
+		// computes (for the value aggregates, only of numeric concepts, see LogicObsDAO#getAggregates)
+		Map<Integer, Number> aggregates = getLogicObsDAO().getAggregates(patients, criteria, context);
+		if (aggregates != null)
+			return LogicUtil.toAggregateResults(aggregates, criteria, patients);
+		
+		// the observations are grouped by patient as they are read, so that large reads can be streamed
+		Map<Integer, Result> finalResult = new PatientResultMap(patients.size());
+		if (LogicUtil.isObsProjectionReadEnabled())
+			getLogicObsDAO().getObservationValues(patients, criteria, context, new ValuesHandler(finalResult));
+		else
+			getLogicObsDAO().getObservations(patients, criteria, context, new ObsHandler(finalResult));
+		
+		LogicUtil.applyAggregators(finalResult, criteria, patients);
+		
+		return finalResult;
+	}
 
-		Map<Integer, Result> finalResult = new HashMap<Integer, Result>();
-		// TODO: make the obs service method more efficient (so we don't have to re-organize
-		// into groupings by patient...or it can be done most expeditiously
-		List<Obs> obs = getLogicObsDAO().getObservations(patients, criteria, context);
-
-		// group the received observations by patient and convert them to
-		// Results
-		for (Obs ob : obs) {
-			int personId = ob.getPerson().getPersonId();
-			Result result = finalResult.get(personId);
-			if (result == null) {
-				result = new Result();
-				finalResult.put(personId, result);
-			}
+	/**
+	 * Concept tokens are read with a single query
+	 * 
+	 * @should read the same results as reading each criteria
+	 * @see org.openmrs.logic.datasource.BatchLogicDataSource#readAll(org.openmrs.logic.LogicContext,
+	 *      org.openmrs.Cohort, java.util.List)
+	 */
+	public Map<LogicCriteria, Map<Integer, Result>> readAll(LogicContext context, Cohort patients,
+	                                                        List<LogicCriteria> criteria) throws LogicException {
+		Map<LogicCriteria, Map<Integer, Result>> ret = new HashMap<LogicCriteria, Map<Integer, Result>>();
+		for (Map.Entry<LogicCriteria, List<Obs>> e : getLogicObsDAO().getObservations(patients, criteria, context)
+		        .entrySet()) {
+			Map<Integer, Result> finalResult = new PatientResultMap(patients.size());
+			ObsHandler handler = new ObsHandler(finalResult);
+			for (Obs ob : e.getValue())
+				handler.handle(ob);
+			LogicUtil.applyAggregators(finalResult, e.getKey(), patients);
+			ret.put(e.getKey(), finalResult);
+		}
+		return ret;
+	}
 
-			result.add(new Result(ob));
+	/**
+	 * @return the result list of a patient, added to the map if it isn't there yet
+	 */
+	private static Result getPatientResult(Map<Integer, Result> finalResult, Integer personId) {
+		Result result = finalResult.get(personId);
+		if (result == null) {
+			result = new Result();
+			finalResult.put(personId, result);
 		}
+		return result;
+	}
 
-		LogicUtil.applyAggregators(finalResult, criteria, patients);
+	/**
+	 * Groups observations by patient and converts them to results
+	 */
+	private static class ObsHandler implements LogicRowHandler<Obs> {
 
-		return finalResult;
+		private final Map<Integer, Result> finalResult;
+
+		ObsHandler(Map<Integer, Result> finalResult) {
+			this.finalResult = finalResult;
+		}
+
+		public void handle(Obs ob) {
+			getPatientResult(finalResult, ob.getPerson().getPersonId()).add(new Result(ob));
+		}
 	}
 
+	/**
+	 * Groups the values read by
+	 * {@link LogicObsDAO#getObservationValues(Cohort, LogicCriteria, LogicContext, LogicRowHandler)}
+	 * by patient and converts them to results
+	 */
+	private class ValuesHandler implements LogicRowHandler<Object[]> {
+
+		private final Map<Integer, Result> finalResult;
+
+		private final Map<Integer, Result.Datatype> datatypes = new HashMap<Integer, Result.Datatype>();
+
+		private final Map<Integer, Concept> answers = new HashMap<Integer, Concept>();
+
+		ValuesHandler(Map<Integer, Result> finalResult) {
+			this.finalResult = finalResult;
+		}
+
+		public void handle(Object[] row) {
+			Integer conceptId = (Integer) row[2];
+			if (!datatypes.containsKey(conceptId))
+				datatypes.put(conceptId, getDatatype(Context.getConceptService().getConcept(conceptId)));
+			Integer valueCodedId = (Integer) row[5];
+			Concept valueCoded = null;
+			if (valueCodedId != null) {
+				valueCoded = answers.get(valueCodedId);
+				if (valueCoded == null) {
+					valueCoded = Context.getConceptService().getConcept(valueCodedId);
+					answers.put(valueCodedId, valueCoded);
+				}
+			}
+			getPatientResult(finalResult, (Integer) row[1]).add(
+			    new LazyObsResult((Integer) row[0], (Date) row[3], datatypes.get(conceptId), (Double) row[4], valueCoded,
+			            (Date) row[6], (String) row[7]));
+		}
+	}
+	
+	/**
+	 * @return the datatype <code>new Result(obs)</code> gives the observations of a question
+	 */
+	private Result.Datatype getDatatype(Concept concept) {
+		ConceptDatatype datatype = concept == null ? null : concept.getDatatype();
+		if (datatype == null)
+			return null;
+		if (datatype.isCoded())
+			return Result.Datatype.CODED;
+		if (datatype.isNumeric())
+			return Result.Datatype.NUMERIC;
+		if (datatype.isDate())
+			return Result.Datatype.DATETIME;
+		if (datatype.isText())
+			return Result.Datatype.TEXT;
+		if (datatype.isBoolean())
+			return Result.Datatype.BOOLEAN;
+		return null;
+	}
+	
 	/**
 	 * @see org.openmrs.logic.datasource.LogicDataSource#getDefaultTTL()
 	 */
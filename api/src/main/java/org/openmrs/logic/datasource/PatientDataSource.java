@@ -15,7 +15,6 @@ package org.openmrs.logic.datasource;
 
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -29,6 +28,7 @@ import org.openmrs.logic.result.Result;
 import org.openmrs.logic.rule.provider.RuleProvider;
 import org.openmrs.logic.rule.provider.SimpleDataSourceRuleProvider;
 import org.openmrs.logic.util.LogicUtil;
+import org.openmrs.logic.util.PatientResultMap;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
@@ -68,7 +68,7 @@ public class PatientDataSource extends SimpleDataSourceRuleProvider implements L
 	 */
 	public Map<Integer, Result> read(LogicContext context, Cohort who, LogicCriteria criteria) {
 		
-		Map<Integer, Result> resultMap = new HashMap<Integer, Result>();
+		Map<Integer, Result> resultMap = new PatientResultMap(who.size());
 		// calculate
 		List<Patient> patientList = getLogicPatientDAO().getPatients(who.getMemberIds(), criteria);
 		
@@ -16,7 +16,6 @@ package org.openmrs.logic.datasource;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -31,6 +30,7 @@ import org.openmrs.logic.result.Result;
 import org.openmrs.logic.rule.provider.RuleProvider;
 import org.openmrs.logic.rule.provider.SimpleDataSourceRuleProvider;
 import org.openmrs.logic.util.LogicUtil;
+import org.openmrs.logic.util.PatientResultMap;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
@@ -92,7 +92,7 @@ public class PersonDataSource extends SimpleDataSourceRuleProvider implements Lo
 	 */
 	public Map<Integer, Result> read(LogicContext context, Cohort who, LogicCriteria criteria) {
 		
-		Map<Integer, Result> resultMap = new HashMap<Integer, Result>();
+		Map<Integer, Result> resultMap = new PatientResultMap(who.size());
 		// calculate
 		List<Person> personList = getLogicPersonDAO().getPersons(who.getMemberIds(), criteria);
 		
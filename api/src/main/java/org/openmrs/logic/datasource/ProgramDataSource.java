@@ -23,15 +23,19 @@ import org.openmrs.api.ProgramWorkflowService;
 import org.openmrs.api.context.Context;
 import org.openmrs.logic.LogicContext;
 import org.openmrs.logic.LogicCriteria;
+import org.openmrs.logic.LogicTransform;
+import org.openmrs.logic.db.LogicProgramDAO;
+import org.openmrs.logic.op.Operator;
 import org.openmrs.logic.result.Result;
 import org.openmrs.logic.rule.provider.RuleProvider;
 import org.openmrs.logic.rule.provider.SimpleDataSourceRuleProvider;
 import org.openmrs.logic.util.LogicUtil;
+import org.openmrs.logic.util.PatientResultMap;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -77,6 +81,17 @@ public class ProgramDataSource extends SimpleDataSourceRuleProvider implements L
 			keys.add(k);
 	}
 	
+	@Autowired
+	private LogicProgramDAO logicProgramDAO;
+	
+	public void setLogicProgramDAO(LogicProgramDAO logicProgramDAO) {
+		this.logicProgramDAO = logicProgramDAO;
+	}
+	
+	public LogicProgramDAO getLogicProgramDAO() {
+		return logicProgramDAO;
+	}
+	
 	/**
 	 * @see {@link org.openmrs.logic.datasource.LogicDataSource#read(LogicContext, Cohort, LogicCriteria)}
 	 */
@@ -85,7 +100,13 @@ public class ProgramDataSource extends SimpleDataSourceRuleProvider implements L
 		if (log.isInfoEnabled())
 			log.info("read patient programs for " + patients.size() + " patients, criteria " + criteria);
 		
-		Map<Integer, Result> resultSet = new HashMap<Integer, Result>();
+		// every patient program gives a result, so counting them is enough
+		LogicTransform transform = criteria.getExpression().getTransform();
+		if (transform != null && transform.getTransformOperator() == Operator.COUNT && isKey(criteria.getRootToken()))
+			return LogicUtil.toAggregateResults(getLogicProgramDAO().getPatientProgramCounts(patients), criteria,
+			    patients);
+		
+		Map<Integer, Result> resultSet = new PatientResultMap(patients.size());
 		
 		Collection<PatientProgram> patientPrograms = getPatientPrograms(patients, criteria);
 		
@@ -149,6 +170,11 @@ public class ProgramDataSource extends SimpleDataSourceRuleProvider implements L
 		return getKeys().contains(key);
 	}
 	
+	private boolean isKey(String token) {
+		return PROGRAM_ENROLLMENT_KEY.equalsIgnoreCase(token) || PROGRAM_COMPLETED_KEY.equalsIgnoreCase(token)
+		        || CURRENT_STATE_KEY.equalsIgnoreCase(token);
+	}
+	
 	/**
 	 * Convenience method to get the patient programs for the given patients for this logic query
 	 * 
@@ -14,6 +14,7 @@
 package org.openmrs.logic.db;
 
 import java.util.List;
+import java.util.Map;
 
 import org.openmrs.Cohort;
 import org.openmrs.Encounter;
@@ -33,4 +34,17 @@ public interface LogicEncounterDAO {
 	public List<Encounter> getEncounters(Cohort who, LogicCriteria logicCriteria, LogicContext context)
 	                                                                                                   throws LogicException;
 	
+	/**
+	 * Computes a COUNT transform in the database, with one grouped query (per slice of the cohort)
+	 * 
+	 * @param who
+	 * @param logicCriteria
+	 * @param context
+	 * @return the count of the encounters of each patient with matching encounters, or null if the
+	 *         criteria has no COUNT transform
+	 * @throws LogicException
+	 */
+	public Map<Integer, Number> getCounts(Cohort who, LogicCriteria logicCriteria, LogicContext context)
+	                                                                                                   throws LogicException;
+	
 }
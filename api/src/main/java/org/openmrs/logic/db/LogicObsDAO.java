@@ -14,6 +14,7 @@
 package org.openmrs.logic.db;
 
 import java.util.List;
+import java.util.Map;
 
 import org.openmrs.Cohort;
 import org.openmrs.Obs;
@@ -32,6 +33,67 @@ public interface LogicObsDAO {
 	 */
 	public List<Obs> getObservations(Cohort who, LogicCriteria logicCriteria, LogicContext logicContext) throws LogicException;
 	
+	/**
+	 * Gets the observations of several criteria at once. Criteria that consist of just a concept
+	 * token, optionally with a FIRST, LAST, COUNT or AVERAGE transform, are fetched in a single
+	 * query; any others are fetched one by one.
+	 * 
+	 * @param who
+	 * @param logicCriteria
+	 * @param logicContext
+	 * @return the observations of each criteria, as {@link #getObservations(Cohort, LogicCriteria, LogicContext)} would return them
+	 * @throws LogicException
+	 * @should get the same obs as reading each criteria
+	 */
+	public Map<LogicCriteria, List<Obs>> getObservations(Cohort who, List<LogicCriteria> logicCriteria,
+	                                                     LogicContext logicContext) throws LogicException;
+	
+	/**
+	 * Hands the observations {@link #getObservations(Cohort, LogicCriteria, LogicContext)} would
+	 * return to a handler, one at a time. The observations stay in the session, since the handler
+	 * may keep them; the {@link org.openmrs.logic.LogicConstants#QUERY_FETCH_SIZE} global property
+	 * only sets how many rows the database returns at a time.
+	 * 
+	 * @param who
+	 * @param logicCriteria
+	 * @param logicContext
+	 * @param handler
+	 * @throws LogicException
+	 */
+	public void getObservations(Cohort who, LogicCriteria logicCriteria, LogicContext logicContext,
+	                            LogicRowHandler<Obs> handler) throws LogicException;
+	
+	/**
+	 * Reads the same observations as {@link #getObservations(Cohort, LogicCriteria, LogicContext)},
+	 * but only their values, without loading the observations themselves. Each row holds, in
+	 * order: obsId, personId, conceptId, obsDatetime, valueNumeric, valueCoded conceptId,
+	 * valueDatetime and valueText.
+	 * 
+	 * @param who
+	 * @param logicCriteria
+	 * @param logicContext
+	 * @param handler receives the values of each observation, in the order they would be returned in
+	 * @throws LogicException
+	 */
+	public void getObservationValues(Cohort who, LogicCriteria logicCriteria, LogicContext logicContext,
+	                                 LogicRowHandler<Object[]> handler) throws LogicException;
+	
+	/**
+	 * Computes a COUNT, AVERAGE, SUM, MIN or MAX transform in the database, with one grouped query
+	 * (per slice of the cohort). AVERAGE, SUM, MIN and MAX are only computed for numeric concepts,
+	 * since the database would skip the observations without a numeric value.
+	 * 
+	 * @param who
+	 * @param logicCriteria
+	 * @param logicContext
+	 * @return the count of the observations, or the average, sum, minimum or maximum of their numeric
+	 *         values, of each patient with matching observations, or null if the criteria has none of
+	 *         these transforms or aggregates the values of a concept that isn't numeric
+	 * @throws LogicException
+	 */
+	public Map<Integer, Number> getAggregates(Cohort who, LogicCriteria logicCriteria, LogicContext logicContext)
+	                                                                                                    throws LogicException;
+	
 	/**
 	 * @return ids of all concepts which may be used as questions (i.e. their datatype is not N/A)
 	 */
@@ -14,7 +14,9 @@
 package org.openmrs.logic.db;
 
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 import org.openmrs.Person;
 import org.openmrs.logic.LogicCriteria;
@@ -33,4 +35,14 @@ public interface LogicPersonDAO {
 	 */
 	public List<Person> getPersons(Collection<Integer> personIds, LogicCriteria criteria);
 	
+	/**
+	 * Returns the persons whose obs, encounters, demographics (including names, identifiers,
+	 * addresses and attributes), program enrollments or program states were created, changed or
+	 * voided at or after the given date
+	 * 
+	 * @param since
+	 * @return the ids of those persons
+	 */
+	public Set<Integer> getPersonIdsChangedSince(Date since);
+	
 }
@@ -0,0 +1,33 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.db;
+
+import java.util.Map;
+
+import org.openmrs.Cohort;
+
+/**
+ * @see org.openmrs.logic.datasource.ProgramDataSource
+ */
+public interface LogicProgramDAO {
+	
+	/**
+	 * Counts the patient programs of some patients, with one grouped query (per slice of the cohort)
+	 * 
+	 * @param who
+	 * @return the number of patient programs of each patient that has any
+	 */
+	public Map<Integer, Number> getPatientProgramCounts(Cohort who);
+	
+}
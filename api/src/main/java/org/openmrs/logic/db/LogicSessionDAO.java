@@ -0,0 +1,37 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.db;
+
+import java.util.Set;
+
+/**
+ * Lets long evaluations let go of the objects they loaded into the current session, without
+ * touching the ones the caller had loaded before
+ */
+public interface LogicSessionDAO {
+	
+	/**
+	 * @return the keys of the objects the current session holds
+	 */
+	public Set<Object> getLoadedKeys();
+	
+	/**
+	 * Evicts from the current session the objects whose keys are not in the given set. Changes made
+	 * to those objects are not written to the database.
+	 * 
+	 * @param keep the keys of the objects to keep, as returned by {@link #getLoadedKeys()}
+	 */
+	public void evictAllBut(Set<Object> keep);
+	
+}
@@ -19,18 +19,23 @@ import static org.openmrs.logic.datasource.EncounterDataSource.PROVIDER_KEY;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.DetachedCriteria;
 import org.hibernate.criterion.Expression;
 import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.criterion.Subqueries;
 import org.openmrs.Cohort;
 import org.openmrs.Encounter;
 import org.openmrs.logic.LogicContext;
@@ -47,6 +52,7 @@ import org.openmrs.logic.op.OperandNumeric;
 import org.openmrs.logic.op.OperandText;
 import org.openmrs.logic.op.Operator;
 import org.openmrs.logic.util.LogicExpressionToCriterion;
+import org.openmrs.logic.util.LogicUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
@@ -270,9 +276,9 @@ public class HibernateLogicEncounterDAO extends LogicExpressionToCriterion imple
 	// Helper function, converts logic service's criteria into Hibernate's
 	// criteria
 	@SuppressWarnings("unchecked")
-	private List<Encounter> logicToHibernate(LogicExpression expression, Cohort who, LogicContext logicContext)
-	                                                                                                           throws LogicException {
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Encounter.class);
+	private List<Encounter> logicToHibernate(LogicExpression expression, Collection<Integer> patientIds,
+	                                         LogicContext logicContext) throws LogicException {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Encounter.class, "encounter");
 		
 		Date indexDate = logicContext.getIndexDate();
 		Operator transformOperator = null;
@@ -305,16 +311,20 @@ public class HibernateLogicEncounterDAO extends LogicExpressionToCriterion imple
 		if (c != null) {
 			criteria.add(c);
 		}
+		if ((transformOperator == Operator.FIRST || transformOperator == Operator.LAST) && numResults == 1
+		        && !usesAliases(expression)) {
+			criteria.add(getFirstOrLastCriterion(c, transformOperator));
+		}
 		
 		List<Encounter> results = new ArrayList<Encounter>();
 		
 		criteria.add(Restrictions.eq("voided", false));
-		criteria.add(Restrictions.in("patient.personId", who.getMemberIds()));
+		criteria.add(Restrictions.in("patient.personId", patientIds));
 		results.addAll(criteria.list());
 		
-		//return a single result per patient for these operators
-		//I don't see an easy way to do this in hibernate so I am
-		//doing some postprocessing
+		//return numResults results per patient for these operators
+		//for a single result the query usually leaves out all but the
+		//first/last ones and those tied with them, so this breaks the ties
 		if (transformOperator == Operator.FIRST || transformOperator == Operator.LAST) {
 			HashMap<Integer, ArrayList<Encounter>> nResultMap = new HashMap<Integer, ArrayList<Encounter>>();
 			
@@ -342,13 +352,83 @@ public class HibernateLogicEncounterDAO extends LogicExpressionToCriterion imple
 		return results;
 	}
 	
+	/**
+	 * Restricts the query to the first or last encounters of each patient (and those with the same
+	 * date), with a subquery correlated on the patient
+	 * 
+	 * @see HibernateLogicObsDAO
+	 */
+	private Criterion getFirstOrLastCriterion(Criterion c, Operator transformOperator) {
+		DetachedCriteria others = DetachedCriteria.forClass(Encounter.class, "other");
+		others.add(Restrictions.eqProperty("other.patient", "encounter.patient"));
+		others.add(Restrictions.eq("other.voided", false));
+		if (c != null) {
+			others.add(c);
+		}
+		if (transformOperator == Operator.LAST) {
+			others.setProjection(Projections.max("other.encounterDatetime"));
+		} else {
+			others.setProjection(Projections.min("other.encounterDatetime"));
+		}
+		return Subqueries.propertyEq("encounter.encounterDatetime", others);
+	}
+	
+	/**
+	 * Restrictions on the type, location or provider join other tables through aliases of the outer
+	 * query, so they can't be repeated in a subquery
+	 */
+	private boolean usesAliases(LogicExpression expression) {
+		Operator operator = expression.getOperator();
+		if (operator == Operator.CONTAINS || operator == Operator.IN || operator == Operator.EQUALS)
+			return true;
+		if (expression instanceof LogicExpressionBinary
+		        && ((LogicExpressionBinary) expression).getLeftOperand() instanceof LogicExpression
+		        && usesAliases((LogicExpression) ((LogicExpressionBinary) expression).getLeftOperand()))
+			return true;
+		return expression.getRightOperand() instanceof LogicExpression
+		        && usesAliases((LogicExpression) expression.getRightOperand());
+	}
+	
 	/**
 	 * @see org.openmrs.api.db.EncounterDAO#getEncounters(org.openmrs.Patient, org.openmrs.Location,
 	 *      Date, Date, java.util.Collection, java.util.Collection, java.util.Collection, boolean)
 	 */
 	public List<Encounter> getEncounters(Cohort who, LogicCriteria logicCriteria, LogicContext logicContext)
 	                                                                                                        throws LogicException {
-		return logicToHibernate(logicCriteria.getExpression(), who, logicContext);
+		// every patient falls into a single slice, so per patient transforms still apply
+		List<Encounter> results = new ArrayList<Encounter>();
+		for (List<Integer> patientIds : LogicUtil.partition(who.getMemberIds(), LogicUtil.getQueryChunkSize()))
+			results.addAll(logicToHibernate(logicCriteria.getExpression(), patientIds, logicContext));
+		return results;
+	}
+	
+	/**
+	 * @see org.openmrs.logic.db.LogicEncounterDAO#getCounts(org.openmrs.Cohort,
+	 *      org.openmrs.logic.LogicCriteria, org.openmrs.logic.LogicContext)
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Integer, Number> getCounts(Cohort who, LogicCriteria logicCriteria, LogicContext logicContext)
+	                                                                                                        throws LogicException {
+		LogicExpression expression = logicCriteria.getExpression();
+		if (expression.getTransform() == null || expression.getTransform().getTransformOperator() != Operator.COUNT)
+			return null;
+		
+		Map<Integer, Number> ret = new HashMap<Integer, Number>();
+		for (List<Integer> patientIds : LogicUtil.partition(who.getMemberIds(), LogicUtil.getQueryChunkSize())) {
+			Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Encounter.class, "encounter");
+			Criterion c = this.getCriterion(expression, logicContext.getIndexDate(), criteria);
+			if (c != null) {
+				criteria.add(c);
+			}
+			criteria.add(Restrictions.eq("voided", false));
+			criteria.add(Restrictions.in("patient.personId", patientIds));
+			criteria.setProjection(Projections.projectionList().add(Projections.groupProperty("patient.personId")).add(
+			    Projections.rowCount()));
+			for (Object[] row : (List<Object[]>) criteria.list()) {
+				ret.put((Integer) row[0], (Number) row[1]);
+			}
+		}
+		return ret;
 	}
 	
 }
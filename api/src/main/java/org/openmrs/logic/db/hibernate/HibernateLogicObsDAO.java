@@ -15,18 +15,28 @@ package org.openmrs.logic.db.hibernate;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.DetachedCriteria;
 import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projection;
+import org.hibernate.criterion.ProjectionList;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.criterion.Subqueries;
 import org.openmrs.Cohort;
 import org.openmrs.Concept;
 import org.openmrs.ConceptDatatype;
@@ -42,6 +52,8 @@ import org.openmrs.logic.LogicExpression;
 import org.openmrs.logic.LogicExpressionBinary;
 import org.openmrs.logic.LogicTransform;
 import org.openmrs.logic.db.LogicObsDAO;
+import org.openmrs.logic.db.LogicRowHandler;
+import org.openmrs.logic.op.AggregateOperator;
 import org.openmrs.logic.op.Operand;
 import org.openmrs.logic.op.OperandConcept;
 import org.openmrs.logic.op.OperandDate;
@@ -49,6 +61,7 @@ import org.openmrs.logic.op.OperandNumeric;
 import org.openmrs.logic.op.OperandText;
 import org.openmrs.logic.op.Operator;
 import org.openmrs.logic.util.LogicExpressionToCriterion;
+import org.openmrs.logic.util.LogicUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
@@ -294,10 +307,11 @@ public class HibernateLogicObsDAO extends LogicExpressionToCriterion implements
 	}
 	
 	// Helper function, converts logic service's criteria into Hibernate's
-	// criteria
-	@SuppressWarnings("unchecked")
-	private List<Obs> logicToHibernate(LogicExpression expression, Cohort who, LogicContext logicContext) throws LogicException {
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Obs.class);
+	// criteria. Hands observations, or rows of the given projection, to the handler
+	private <T> void logicToHibernate(LogicExpression expression, Collection<Integer> personIds,
+	                                  LogicContext logicContext, Projection projection, LogicRowHandler<T> handler)
+	                                                                                                               throws LogicException {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Obs.class, "obs");
 		
 		Date indexDate = logicContext.getIndexDate();
 		Operator transformOperator = null;
@@ -329,41 +343,100 @@ public class HibernateLogicObsDAO extends LogicExpressionToCriterion implements
 		if (c != null) {
 			criteria.add(c);
 		}
+		// only a single first/last date is cheap to find in the database; for more results
+		// the rows come back ordered and the handler below keeps the first numResults
+		if ((transformOperator == Operator.FIRST || transformOperator == Operator.LAST) && numResults == 1) {
+			criteria.add(getFirstOrLastCriterion(c, transformOperator));
+		}
 		
-		List<Obs> results = new ArrayList<Obs>();
+		if (projection != null) {
+			criteria.setProjection(projection);
+		}
 		
 		criteria.add(Restrictions.eq("voided", false));
-		criteria.add(Restrictions.in("person.personId", who.getMemberIds()));
-		results.addAll(criteria.list());
+		criteria.add(Restrictions.in("person.personId", personIds));
 		
-		//return a single result per patient for these operators
-		//I don't see an easy way to do this in hibernate so I am
-		//doing some postprocessing
+		//return numResults results per patient for these operators
+		//for a single result the query already leaves out all but the
+		//first/last ones and those tied with them, so this breaks the ties
+		Map<Integer, Integer> counts = null;
 		if (transformOperator == Operator.FIRST || transformOperator == Operator.LAST) {
-			HashMap<Integer, ArrayList<Obs>> nResultMap = new HashMap<Integer, ArrayList<Obs>>();
-			
-			for (Obs currResult : results) {
-				Integer currPersonId = currResult.getPersonId();
-				ArrayList<Obs> prevResults = nResultMap.get(currPersonId);
-				if (prevResults == null) {
-					prevResults = new ArrayList<Obs>();
-					nResultMap.put(currPersonId, prevResults);
-				}
-				
-				if (prevResults.size() < numResults) {
-					prevResults.add(currResult);
-				}
+			counts = new HashMap<Integer, Integer>();
+		}
+		
+		int fetchSize = LogicUtil.getQueryFetchSize();
+		if (fetchSize > 0) {
+			criteria.setFetchSize(fetchSize);
+		}
+		// the handler may keep the observations, so they stay in the session and
+		// only rows of values are streamed
+		if (fetchSize <= 0 || projection == null) {
+			for (Object row : criteria.list()) {
+				handleRow(row, numResults, counts, handler);
 			}
-			
-			if (nResultMap.values().size() > 0) {
-				results.clear();
-				
-				for (ArrayList<Obs> currPatientObs : nResultMap.values()) {
-					results.addAll(currPatientObs);
-				}
+			return;
+		}
+		
+		ScrollableResults rows = criteria.scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (rows.next()) {
+				handleRow(rows.get(), numResults, counts, handler);
 			}
 		}
-		return results;
+		finally {
+			rows.close();
+		}
+	}
+	
+	/**
+	 * Hands a row to the handler, unless its patient already had numResults rows handled
+	 * 
+	 * @param row an observation, or the values of one
+	 * @param numResults
+	 * @param counts the number of rows handled for each patient, or null if there is no limit
+	 * @param handler
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> void handleRow(Object row, int numResults, Map<Integer, Integer> counts, LogicRowHandler<T> handler)
+	                                                                                                        throws LogicException {
+		if (counts != null) {
+			Integer personId = row instanceof Obs ? ((Obs) row).getPersonId() : (Integer) ((Object[]) row)[1];
+			Integer count = counts.get(personId);
+			if (count == null) {
+				count = 0;
+			}
+			if (count >= numResults) {
+				return;
+			}
+			counts.put(personId, count + 1);
+		}
+		handler.handle((T) row);
+	}
+	
+	/**
+	 * Restricts the query to the first or last observations of each patient (and those with the
+	 * same date), with a subquery correlated on the patient. Counting the observations before
+	 * each row would do the same for more than one result, but that is quadratic in the number of
+	 * observations of a patient, so those are limited while the rows are handled instead.
+	 * 
+	 * @param c the restrictions of the query, if any
+	 * @param transformOperator FIRST or LAST
+	 * @return the restriction to add to the query
+	 */
+	private Criterion getFirstOrLastCriterion(Criterion c, Operator transformOperator) {
+		DetachedCriteria others = DetachedCriteria.forClass(Obs.class, "other");
+		others.add(Restrictions.eqProperty("other.person", "obs.person"));
+		others.add(Restrictions.eq("other.voided", false));
+		if (c != null) {
+			others.add(c);
+		}
+		// obs_datetime = (select max/min(obs_datetime) ...)
+		if (transformOperator == Operator.LAST) {
+			others.setProjection(Projections.max("other.obsDatetime"));
+		} else {
+			others.setProjection(Projections.min("other.obsDatetime"));
+		}
+		return Subqueries.propertyEq("obs.obsDatetime", others);
 	}
 	
 	/**
@@ -372,10 +445,212 @@ public class HibernateLogicObsDAO extends LogicExpressionToCriterion implements
 	 *      Integer, Integer, Date, Date, boolean)
 	 */
 	public List<Obs> getObservations(Cohort who, LogicCriteria logicCriteria, LogicContext logicContext) throws LogicException {
+		final List<Obs> results = new ArrayList<Obs>();
+		getObservations(who, logicCriteria, logicContext, new LogicRowHandler<Obs>() {
+			
+			public void handle(Obs obs) {
+				results.add(obs);
+			}
+		});
+		return results;
+	}
+	
+	/**
+	 * @see org.openmrs.logic.db.LogicObsDAO#getObservations(org.openmrs.Cohort,
+	 *      org.openmrs.logic.LogicCriteria, org.openmrs.logic.LogicContext,
+	 *      org.openmrs.logic.db.LogicRowHandler)
+	 */
+	public void getObservations(Cohort who, LogicCriteria logicCriteria, LogicContext logicContext,
+	                            LogicRowHandler<Obs> handler) throws LogicException {
 		log.debug("*** Reading observations ***");
-		return logicToHibernate(logicCriteria.getExpression(), who, logicContext);
+		// every patient falls into a single slice, so per patient transforms still apply
+		for (List<Integer> personIds : LogicUtil.partition(who.getMemberIds(), LogicUtil.getQueryChunkSize()))
+			logicToHibernate(logicCriteria.getExpression(), personIds, logicContext, null, handler);
+	}
+	
+	/**
+	 * @see org.openmrs.logic.db.LogicObsDAO#getObservationValues(org.openmrs.Cohort,
+	 *      org.openmrs.logic.LogicCriteria, org.openmrs.logic.LogicContext,
+	 *      org.openmrs.logic.db.LogicRowHandler)
+	 */
+	public void getObservationValues(Cohort who, LogicCriteria logicCriteria, LogicContext logicContext,
+	                                 LogicRowHandler<Object[]> handler) throws LogicException {
+		log.debug("*** Reading observation values ***");
+		ProjectionList values = Projections.projectionList();
+		values.add(Projections.property("obsId"));
+		values.add(Projections.property("person.personId"));
+		values.add(Projections.property("concept.conceptId"));
+		values.add(Projections.property("obsDatetime"));
+		values.add(Projections.property("valueNumeric"));
+		values.add(Projections.property("valueCoded.conceptId"));
+		values.add(Projections.property("valueDatetime"));
+		values.add(Projections.property("valueText"));
+		for (List<Integer> personIds : LogicUtil.partition(who.getMemberIds(), LogicUtil.getQueryChunkSize()))
+			logicToHibernate(logicCriteria.getExpression(), personIds, logicContext, values, handler);
 	}
 
+	/**
+	 * @see org.openmrs.logic.db.LogicObsDAO#getAggregates(org.openmrs.Cohort,
+	 *      org.openmrs.logic.LogicCriteria, org.openmrs.logic.LogicContext)
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Integer, Number> getAggregates(Cohort who, LogicCriteria logicCriteria, LogicContext logicContext)
+	                                                                                                    throws LogicException {
+		LogicExpression expression = logicCriteria.getExpression();
+		Operator transformOperator = expression.getTransform() == null ? null : expression.getTransform()
+		        .getTransformOperator();
+		if (transformOperator != Operator.COUNT && transformOperator != Operator.AVERAGE
+		        && !(transformOperator instanceof AggregateOperator))
+			return null;
+		// the database aggregates value_numeric only, skipping the rows without one, so the values
+		// of other concepts are aggregated in memory, from their results
+		if (transformOperator != Operator.COUNT && !isNumeric(getConceptForToken(logicCriteria.getRootToken())))
+			return null;
+		
+		log.debug("*** Reading observation aggregates ***");
+		Map<Integer, Number> ret = new HashMap<Integer, Number>();
+		for (List<Integer> personIds : LogicUtil.partition(who.getMemberIds(), LogicUtil.getQueryChunkSize())) {
+			Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Obs.class);
+			Criterion c = this.getCriterion(expression, logicContext.getIndexDate(), criteria);
+			if (c != null) {
+				criteria.add(c);
+			}
+			criteria.add(Restrictions.eq("voided", false));
+			criteria.add(Restrictions.in("person.personId", personIds));
+			// select person_id, count(*) / avg(value_numeric) / ... group by person_id
+			ProjectionList projection = Projections.projectionList();
+			projection.add(Projections.groupProperty("person.personId"));
+			if (transformOperator == Operator.COUNT) {
+				projection.add(Projections.rowCount());
+			} else if (transformOperator == AggregateOperator.SUM) {
+				projection.add(Projections.sum("valueNumeric"));
+			} else if (transformOperator == AggregateOperator.MIN) {
+				projection.add(Projections.min("valueNumeric"));
+			} else if (transformOperator == AggregateOperator.MAX) {
+				projection.add(Projections.max("valueNumeric"));
+			} else {
+				projection.add(Projections.avg("valueNumeric"));
+			}
+			criteria.setProjection(projection);
+			for (Object[] row : (List<Object[]>) criteria.list()) {
+				ret.put((Integer) row[0], (Number) row[1]);
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * @return whether the observations of the concept hold numeric values
+	 */
+	private boolean isNumeric(Concept concept) {
+		return concept != null && concept.getDatatype() != null && concept.getDatatype().isNumeric();
+	}
+	
+	/**
+	 * @see org.openmrs.logic.db.LogicObsDAO#getObservations(org.openmrs.Cohort, java.util.List,
+	 *      org.openmrs.logic.LogicContext)
+	 */
+	public Map<LogicCriteria, List<Obs>> getObservations(Cohort who, List<LogicCriteria> logicCriteria,
+	                                                     LogicContext logicContext) throws LogicException {
+		Map<LogicCriteria, List<Obs>> ret = new LinkedHashMap<LogicCriteria, List<Obs>>();
+		
+		// the criteria that can share one query, by concept
+		Map<Integer, List<LogicCriteria>> batched = new HashMap<Integer, List<LogicCriteria>>();
+		List<Concept> concepts = new ArrayList<Concept>();
+		for (LogicCriteria criteria : logicCriteria) {
+			if (ret.containsKey(criteria))
+				continue;
+			Concept concept = isBatchable(criteria.getExpression()) ? getConceptForToken(criteria.getRootToken()) : null;
+			if (concept == null) {
+				ret.put(criteria, getObservations(who, criteria, logicContext));
+				continue;
+			}
+			List<LogicCriteria> forConcept = batched.get(concept.getConceptId());
+			if (forConcept == null) {
+				forConcept = new ArrayList<LogicCriteria>();
+				batched.put(concept.getConceptId(), forConcept);
+				concepts.add(concept);
+			}
+			forConcept.add(criteria);
+			ret.put(criteria, new ArrayList<Obs>());
+		}
+		if (concepts.isEmpty() || who.getMemberIds().isEmpty())
+			return ret;
+		
+		log.debug("*** Reading observations of " + concepts.size() + " concepts ***");
+		// split the rows by concept, then by patient, keeping them latest first
+		Map<Integer, Map<Integer, List<Obs>>> byConcept = new HashMap<Integer, Map<Integer, List<Obs>>>();
+		for (List<Integer> personIds : LogicUtil.partition(who.getMemberIds(), LogicUtil.getQueryChunkSize()))
+			groupObservations(concepts, personIds, byConcept);
+		
+		for (Map.Entry<Integer, List<LogicCriteria>> e : batched.entrySet()) {
+			Map<Integer, List<Obs>> byPatient = byConcept.get(e.getKey());
+			if (byPatient == null)
+				continue;
+			for (LogicCriteria c : e.getValue()) {
+				LogicTransform transform = c.getExpression().getTransform();
+				Operator transformOperator = transform == null ? null : transform.getTransformOperator();
+				int numResults = transform == null || transform.getNumResults() == null ? 1 : transform.getNumResults();
+				List<Obs> results = ret.get(c);
+				for (List<Obs> patientObs : byPatient.values()) {
+					if (transformOperator == Operator.LAST) {
+						results.addAll(patientObs.subList(0, Math.min(numResults, patientObs.size())));
+					} else if (transformOperator == Operator.FIRST) {
+						for (int i = patientObs.size() - 1; i >= Math.max(0, patientObs.size() - numResults); --i)
+							results.add(patientObs.get(i));
+					} else {
+						results.addAll(patientObs);
+					}
+				}
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Reads the observations of some concepts for some patients, and adds them to the map of
+	 * observations by concept and patient, latest first
+	 */
+	@SuppressWarnings("unchecked")
+	private void groupObservations(List<Concept> concepts, Collection<Integer> personIds,
+	                               Map<Integer, Map<Integer, List<Obs>>> byConcept) {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Obs.class);
+		criteria.add(Restrictions.in("concept", concepts));
+		criteria.add(Restrictions.eq("voided", false));
+		criteria.add(Restrictions.in("person.personId", personIds));
+		criteria.addOrder(Order.desc("obsDatetime")).addOrder(Order.desc("dateCreated")).addOrder(Order.desc("obsId"));
+		for (Obs obs : (List<Obs>) criteria.list()) {
+			Map<Integer, List<Obs>> byPatient = byConcept.get(obs.getConcept().getConceptId());
+			if (byPatient == null) {
+				byPatient = new LinkedHashMap<Integer, List<Obs>>();
+				byConcept.put(obs.getConcept().getConceptId(), byPatient);
+			}
+			List<Obs> patientObs = byPatient.get(obs.getPersonId());
+			if (patientObs == null) {
+				patientObs = new ArrayList<Obs>();
+				byPatient.put(obs.getPersonId(), patientObs);
+			}
+			patientObs.add(obs);
+		}
+	}
+	
+	/**
+	 * @return whether the expression is just a token, with at most a transform that can be applied
+	 *         after fetching all of its observations
+	 */
+	private boolean isBatchable(LogicExpression expression) {
+		if (!(expression instanceof LogicExpressionBinary) || expression.getOperator() != null
+		        || ((LogicExpressionBinary) expression).getLeftOperand() != null
+		        || !(expression.getRightOperand() instanceof OperandText))
+			return false;
+		LogicTransform transform = expression.getTransform();
+		if (transform == null)
+			return true;
+		Operator operator = transform.getTransformOperator();
+		return operator == Operator.COUNT || operator == Operator.AVERAGE
+		        || ((operator == Operator.FIRST || operator == Operator.LAST) && transform.getSortColumn() == null);
+	}
+	
 	/**
 	 * @see org.openmrs.logic.db.LogicObsDAO#getAllQuestionConceptIds()
 	 */
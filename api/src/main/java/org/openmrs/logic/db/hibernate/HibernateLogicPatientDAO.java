@@ -34,6 +34,7 @@ import org.openmrs.logic.LogicTransform;
 import org.openmrs.logic.db.LogicPatientDAO;
 import org.openmrs.logic.op.Operator;
 import org.openmrs.logic.util.LogicExpressionToCriterion;
+import org.openmrs.logic.util.LogicUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
@@ -133,7 +134,11 @@ public class HibernateLogicPatientDAO extends LogicExpressionToCriterion impleme
 	 * @see org.openmrs.api.db.PatientDAO#getPeople(String, Boolean)
 	 */
 	public List<Patient> getPatients(Collection<Integer> patientIds, LogicCriteria logicCriteria) throws LogicException {
-		return logicToHibernate(logicCriteria.getExpression(), patientIds);
+		// every patient falls into a single slice, so per patient transforms still apply
+		List<Patient> results = new ArrayList<Patient>();
+		for (List<Integer> slice : LogicUtil.partition(patientIds, LogicUtil.getQueryChunkSize()))
+			results.addAll(logicToHibernate(logicCriteria.getExpression(), slice));
+		return results;
 	}
 	
 }
@@ -18,7 +18,9 @@ import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -34,6 +36,7 @@ import org.openmrs.logic.LogicTransform;
 import org.openmrs.logic.db.LogicPersonDAO;
 import org.openmrs.logic.op.Operator;
 import org.openmrs.logic.util.LogicExpressionToCriterion;
+import org.openmrs.logic.util.LogicUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
@@ -142,7 +145,42 @@ public class HibernateLogicPersonDAO extends LogicExpressionToCriterion implemen
 	 * @see org.openmrs.api.db.PersonDAO#getPeople(String, Boolean)
 	 */
 	public List<Person> getPersons(Collection<Integer> personIds, LogicCriteria logicCriteria) throws LogicException {
-		return logicToHibernate(logicCriteria.getExpression(), personIds);
+		// every person falls into a single slice, so per person transforms still apply
+		List<Person> results = new ArrayList<Person>();
+		for (List<Integer> slice : LogicUtil.partition(personIds, LogicUtil.getQueryChunkSize()))
+			results.addAll(logicToHibernate(logicCriteria.getExpression(), slice));
+		return results;
+	}
+	
+	/**
+	 * @see org.openmrs.logic.db.LogicPersonDAO#getPersonIdsChangedSince(java.util.Date)
+	 */
+	@SuppressWarnings("unchecked")
+	public Set<Integer> getPersonIdsChangedSince(Date since) {
+		String sql = "select person_id from obs where date_created >= :since or date_voided >= :since"
+		        + " union select patient_id from encounter"
+		        + " where date_created >= :since or date_changed >= :since or date_voided >= :since"
+		        + " union select person_id from person"
+		        + " where date_created >= :since or date_changed >= :since or date_voided >= :since"
+		        + " union select patient_id from patient_program"
+		        + " where date_created >= :since or date_changed >= :since or date_voided >= :since"
+		        + " union select pp.patient_id from patient_state ps"
+		        + " join patient_program pp on pp.patient_program_id = ps.patient_program_id"
+		        + " where ps.date_created >= :since or ps.date_changed >= :since or ps.date_voided >= :since"
+		        + " union select person_id from person_name"
+		        + " where date_created >= :since or date_changed >= :since or date_voided >= :since"
+		        + " union select person_id from person_attribute"
+		        + " where date_created >= :since or date_changed >= :since or date_voided >= :since"
+		        // identifiers and addresses have no date_changed column in this schema; they are voided and recreated instead
+		        + " union select patient_id from patient_identifier where date_created >= :since or date_voided >= :since"
+		        + " union select person_id from person_address where date_created >= :since or date_voided >= :since";
+		List<Object> rows = sessionFactory.getCurrentSession().createSQLQuery(sql).setTimestamp("since", since).list();
+		Set<Integer> personIds = new HashSet<Integer>();
+		for (Object row : rows) {
+			if (row != null)
+				personIds.add(((Number) row).intValue());
+		}
+		return personIds;
 	}
 	
 }
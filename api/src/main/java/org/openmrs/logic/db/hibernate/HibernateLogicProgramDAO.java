@@ -0,0 +1,71 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.db.hibernate;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.Criteria;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.openmrs.Cohort;
+import org.openmrs.PatientProgram;
+import org.openmrs.logic.db.LogicProgramDAO;
+import org.openmrs.logic.util.LogicUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+/**
+ *
+ */
+@Repository
+public class HibernateLogicProgramDAO implements LogicProgramDAO {
+	
+	/**
+	 * Hibernate session factory
+	 */
+	@Autowired
+	private SessionFactory sessionFactory;
+	
+	/**
+	 * Set session factory
+	 * 
+	 * @param sessionFactory
+	 */
+	public void setSessionFactory(SessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+	}
+	
+	/**
+	 * @see org.openmrs.logic.db.LogicProgramDAO#getPatientProgramCounts(org.openmrs.Cohort)
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Integer, Number> getPatientProgramCounts(Cohort who) {
+		Map<Integer, Number> ret = new HashMap<Integer, Number>();
+		for (List<Integer> patientIds : LogicUtil.partition(who.getMemberIds(), LogicUtil.getQueryChunkSize())) {
+			Criteria criteria = sessionFactory.getCurrentSession().createCriteria(PatientProgram.class);
+			criteria.add(Restrictions.eq("voided", false));
+			criteria.add(Restrictions.in("patient.personId", patientIds));
+			criteria.setProjection(Projections.projectionList().add(Projections.groupProperty("patient.personId")).add(
+			    Projections.rowCount()));
+			for (Object[] row : (List<Object[]>) criteria.list()) {
+				ret.put((Integer) row[0], (Number) row[1]);
+			}
+		}
+		return ret;
+	}
+	
+}
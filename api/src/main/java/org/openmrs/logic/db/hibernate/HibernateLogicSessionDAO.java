@@ -0,0 +1,76 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.db.hibernate;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionImplementor;
+import org.openmrs.logic.db.LogicSessionDAO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Finds the objects of the current session through its persistence context, keyed by Hibernate's
+ * entity keys
+ */
+@Repository
+public class HibernateLogicSessionDAO implements LogicSessionDAO {
+	
+	@Autowired
+	private SessionFactory sessionFactory;
+	
+	/**
+	 * Set session factory
+	 * 
+	 * @param sessionFactory
+	 */
+	public void setSessionFactory(SessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+	}
+	
+	/**
+	 * @see org.openmrs.logic.db.LogicSessionDAO#getLoadedKeys()
+	 */
+	public Set<Object> getLoadedKeys() {
+		return new HashSet<Object>(getEntitiesByKey(sessionFactory.getCurrentSession()).keySet());
+	}
+	
+	/**
+	 * @see org.openmrs.logic.db.LogicSessionDAO#evictAllBut(java.util.Set)
+	 */
+	public void evictAllBut(Set<Object> keep) {
+		Session session = sessionFactory.getCurrentSession();
+		List<Object> loaded = new ArrayList<Object>();
+		for (Map.Entry<?, ?> e : getEntitiesByKey(session).entrySet()) {
+			if (!keep.contains(e.getKey()))
+				loaded.add(e.getValue());
+		}
+		for (Object o : loaded) {
+			// evicting one object may have cascaded to another
+			if (session.contains(o))
+				session.evict(o);
+		}
+	}
+	
+	private static Map<?, ?> getEntitiesByKey(Session session) {
+		return ((SessionImplementor) session).getPersistenceContext().getEntitiesByKey();
+	}
+	
+}
@@ -0,0 +1,370 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.impl;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openmrs.Cohort;
+import org.openmrs.Concept;
+import org.openmrs.Obs;
+import org.openmrs.logic.Duration;
+import org.openmrs.logic.LogicCriteria;
+import org.openmrs.logic.LogicExpression;
+import org.openmrs.logic.LogicExpressionBinary;
+import org.openmrs.logic.LogicTransform;
+import org.openmrs.logic.datasource.LazyObsResult;
+import org.openmrs.logic.op.AggregateOperator;
+import org.openmrs.logic.op.Operand;
+import org.openmrs.logic.op.OperandConcept;
+import org.openmrs.logic.op.OperandDate;
+import org.openmrs.logic.op.OperandNumeric;
+import org.openmrs.logic.op.OperandText;
+import org.openmrs.logic.op.Operator;
+import org.openmrs.logic.result.EmptyResult;
+import org.openmrs.logic.result.Result;
+import org.openmrs.logic.result.Result.Datatype;
+import org.openmrs.logic.util.ImmutableEmptyResult;
+import org.openmrs.logic.util.LogicUtil;
+import org.openmrs.logic.util.PatientResultMap;
+import org.openmrs.logic.util.ReadOnlyResult;
+
+/**
+ * Answers an obs criteria from the cached results of reading its bare token, e.g.
+ * <code>CD4 COUNT.lt(200).last()</code> from <code>CD4 COUNT</code>, instead of querying the
+ * database again. This mirrors what {@link org.openmrs.logic.db.hibernate.HibernateLogicObsDAO}
+ * does with a criteria: a single restriction (a comparison, BEFORE, AFTER or WITHIN) on the token,
+ * followed by FIRST, LAST, COUNT or AVERAGE. Anything else is left to the database. <br/>
+ * Results that hold the values of an observation without it, like those of the shared cache, are
+ * matched and ordered on their date and values, and returned as they are. They don't know when
+ * their observation was created, which the database uses to order observations of the same date,
+ * so a FIRST or LAST that would have to choose between those is left to the database too.
+ */
+class CachedObsEvaluator {
+
+	private static final Comparator<Result> CHRONOLOGICAL = new Comparator<Result>() {
+
+		public int compare(Result left, Result right) {
+			int c = compareDates(getObsDatetime(left), getObsDatetime(right));
+			if (c == 0 && !isValuesOnly(left) && !isValuesOnly(right))
+				c = compareDates(((Obs) left.getResultObject()).getDateCreated(), ((Obs) right.getResultObject())
+				        .getDateCreated());
+			if (c == 0 && getObsId(left) != null && getObsId(right) != null)
+				c = getObsId(left).compareTo(getObsId(right));
+			return c;
+		}
+	};
+
+	private CachedObsEvaluator() {
+	}
+
+	/**
+	 * @param criteria
+	 * @return the criteria whose cached results the given criteria can be derived from, or null if
+	 *         it can't be derived
+	 * @should return the bare token for a restriction followed by a transform
+	 * @should return null for the bare token itself
+	 */
+	static LogicCriteria getSupersetCriteria(LogicCriteria criteria) {
+		if (criteria.getLogicParameters() != null && !criteria.getLogicParameters().isEmpty())
+			return null;
+		LogicExpression expression = criteria.getExpression();
+		if (!(expression instanceof LogicExpressionBinary) || !isSupportedTransform(expression.getTransform()))
+			return null;
+
+		String token;
+		if (isBareToken(expression)) {
+			if (expression.getTransform() == null)
+				return null;
+			token = ((OperandText) expression.getRightOperand()).asString();
+		} else {
+			Operand left = ((LogicExpressionBinary) expression).getLeftOperand();
+			if (!(left instanceof LogicExpression) || !isBareToken((LogicExpression) left)
+			        || ((LogicExpression) left).getTransform() != null)
+				return null;
+			if (!isSupportedRestriction(expression.getOperator(), expression.getRightOperand()))
+				return null;
+			token = ((OperandText) ((LogicExpression) left).getRightOperand()).asString();
+		}
+		if ("encounterId".equalsIgnoreCase(token) || "obsDatetime".equalsIgnoreCase(token))
+			return null;
+		return new LogicCriteriaImpl(token);
+	}
+
+	/**
+	 * Applies the criteria to the cached results of its {@link #getSupersetCriteria(LogicCriteria)
+	 * superset}
+	 *
+	 * @param superset the results of reading the bare token, for every patient in the cohort
+	 * @param criteria
+	 * @param indexDate
+	 * @param patients
+	 * @return the results, as the obs data source would have read them, or null if the cached
+	 *         results don't hold enough information
+	 * @should derive last n of those lt value
+	 * @should derive count of zero when nothing matches
+	 * @should derive last n from the read only results of the shared cache
+	 */
+	static Map<Integer, Result> evaluate(Map<Integer, Result> superset, LogicCriteria criteria, Date indexDate,
+	                                     Cohort patients) {
+		LogicExpression expression = criteria.getExpression();
+		Map<Integer, List<Result>> matches = new HashMap<Integer, List<Result>>();
+		for (Map.Entry<Integer, Result> e : superset.entrySet()) {
+			// the obs data source reads a list of results for each patient with data
+			if (!(e.getValue() instanceof EmptyResult) && e.getValue().isEmpty())
+				return null;
+			List<Result> results = new ArrayList<Result>();
+			for (Result r : e.getValue()) {
+				if (isValuesOnly(r)) {
+					Boolean matching = isBareToken(expression) ? Boolean.TRUE : matches(r, expression.getOperator(),
+					    expression.getRightOperand(), indexDate);
+					if (matching == null)
+						return null;
+					if (matching)
+						results.add(r);
+					continue;
+				}
+				if (!(r.getResultObject() instanceof Obs))
+					return null;
+				Obs o = (Obs) r.getResultObject();
+				if (isBareToken(expression) || matches(o, expression.getOperator(), expression.getRightOperand(), indexDate))
+					results.add(new Result(o));
+			}
+			if (!results.isEmpty())
+				matches.put(e.getKey(), results);
+		}
+
+		LogicTransform transform = expression.getTransform();
+		Operator transformOperator = transform == null ? null : transform.getTransformOperator();
+		Map<Integer, Result> finalResult = new PatientResultMap(patients.size());
+		for (Map.Entry<Integer, List<Result>> e : matches.entrySet()) {
+			List<Result> results = e.getValue();
+			if (transformOperator == Operator.FIRST || transformOperator == Operator.LAST) {
+				Comparator<Result> order = transformOperator == Operator.FIRST ? CHRONOLOGICAL : Collections
+				        .reverseOrder(CHRONOLOGICAL);
+				Collections.sort(results, order);
+				int numResults = transform.getNumResults() == null ? 1 : transform.getNumResults();
+				if (results.size() > numResults) {
+					Result kept = results.get(numResults - 1);
+					Result dropped = results.get(numResults);
+					// the database would have chosen between those by when they were created
+					if ((isValuesOnly(kept) || isValuesOnly(dropped))
+					        && compareDates(getObsDatetime(kept), getObsDatetime(dropped)) == 0)
+						return null;
+					results = results.subList(0, numResults);
+				}
+			}
+			Result result = new Result();
+			result.addAll(results);
+			finalResult.put(e.getKey(), result);
+		}
+		LogicUtil.applyAggregators(finalResult, criteria, patients);
+
+		for (Integer patientId : patients.getMemberIds()) {
+			Result r = finalResult.get(patientId);
+			if (r == null || r.getClass() == EmptyResult.class)
+				finalResult.put(patientId, ImmutableEmptyResult.INSTANCE);
+		}
+		return finalResult;
+	}
+
+	/**
+	 * @return whether the result holds the values of an observation without the observation
+	 *         itself; loading those one by one would be slower than querying them again
+	 */
+	private static boolean isValuesOnly(Result result) {
+		if (result instanceof LazyObsResult)
+			return !((LazyObsResult) result).isLoaded();
+		return result instanceof ReadOnlyResult && ((ReadOnlyResult) result).getObsId() != null;
+	}
+
+	private static Integer getObsId(Result result) {
+		if (result instanceof LazyObsResult)
+			return ((LazyObsResult) result).getObsId();
+		if (result instanceof ReadOnlyResult)
+			return ((ReadOnlyResult) result).getObsId();
+		return ((Obs) result.getResultObject()).getObsId();
+	}
+
+	/**
+	 * The date of a result read from an observation is its obs datetime
+	 */
+	private static Date getObsDatetime(Result result) {
+		if (isValuesOnly(result))
+			return result.getResultDate();
+		return ((Obs) result.getResultObject()).getObsDatetime();
+	}
+
+	private static int compareDates(Date left, Date right) {
+		if (left == null)
+			return right == null ? 0 : -1;
+		return right == null ? 1 : left.compareTo(right);
+	}
+
+	private static boolean isBareToken(LogicExpression expression) {
+		return expression instanceof LogicExpressionBinary && expression.getOperator() == null
+		        && ((LogicExpressionBinary) expression).getLeftOperand() == null
+		        && expression.getRightOperand() instanceof OperandText;
+	}
+
+	private static boolean isSupportedTransform(LogicTransform transform) {
+		if (transform == null)
+			return true;
+		Operator operator = transform.getTransformOperator();
+		if (operator == Operator.COUNT || operator == Operator.AVERAGE || operator instanceof AggregateOperator)
+			return true;
+		return (operator == Operator.FIRST || operator == Operator.LAST) && transform.getSortColumn() == null;
+	}
+
+	/**
+	 * Text comparisons are left out, since the database may compare them case-insensitively
+	 */
+	private static boolean isSupportedRestriction(Operator operator, Operand operand) {
+		if (operator == Operator.BEFORE || operator == Operator.AFTER)
+			return operand instanceof OperandDate;
+		if (operator == Operator.WITHIN)
+			return operand instanceof Duration;
+		if (operator == Operator.CONTAINS)
+			return operand instanceof OperandConcept || operand instanceof OperandNumeric;
+		if (operator == Operator.EQUALS)
+			return operand instanceof OperandNumeric || operand instanceof OperandDate
+			        || operand instanceof OperandConcept;
+		if (operator == Operator.LT || operator == Operator.LTE || operator == Operator.GT || operator == Operator.GTE)
+			return operand instanceof OperandNumeric || operand instanceof OperandDate;
+		return false;
+	}
+
+	/**
+	 * Mirrors the restrictions of HibernateLogicObsDAO#getCriterion; values that are null never
+	 * match, like in SQL
+	 */
+	private static boolean matches(Obs obs, Operator operator, Operand operand, Date indexDate) {
+		if (operator == Operator.BEFORE)
+			return obs.getObsDatetime() != null && obs.getObsDatetime().before((Date) operand);
+		if (operator == Operator.AFTER)
+			return obs.getObsDatetime() != null && obs.getObsDatetime().after((Date) operand);
+		if (operator == Operator.WITHIN) {
+			Date within = addDuration(indexDate, (Duration) operand);
+			Date from = indexDate.compareTo(within) > 0 ? within : indexDate;
+			Date to = indexDate.compareTo(within) > 0 ? indexDate : within;
+			return obs.getObsDatetime() != null && !obs.getObsDatetime().before(from) && !obs.getObsDatetime().after(to);
+		}
+		if (operator == Operator.CONTAINS || (operator == Operator.EQUALS && operand instanceof OperandConcept)) {
+			Concept valueCoded = obs.getValueCoded();
+			if (valueCoded == null)
+				return false;
+			if (operand instanceof OperandNumeric)
+				return valueCoded.getConceptId().equals(((OperandNumeric) operand).asInteger());
+			return valueCoded.equals(((OperandConcept) operand).asConcept());
+		}
+
+		int c;
+		if (operand instanceof OperandNumeric) {
+			if (obs.getValueNumeric() == null)
+				return false;
+			c = obs.getValueNumeric().compareTo(((OperandNumeric) operand).asDouble());
+		} else {
+			if (obs.getValueDatetime() == null)
+				return false;
+			c = obs.getValueDatetime().compareTo((Date) operand);
+		}
+		return compareTo(operator, c);
+	}
+
+	/**
+	 * Like {@link #matches(Obs, Operator, Operand, Date)}, on the values an observation's result
+	 * holds for the datatype of its question
+	 *
+	 * @return whether the result matches, or null if its values don't tell
+	 */
+	private static Boolean matches(Result result, Operator operator, Operand operand, Date indexDate) {
+		Date obsDatetime = result.getResultDate();
+		if (operator == Operator.BEFORE)
+			return obsDatetime != null && obsDatetime.before((Date) operand);
+		if (operator == Operator.AFTER)
+			return obsDatetime != null && obsDatetime.after((Date) operand);
+		if (operator == Operator.WITHIN) {
+			Date within = addDuration(indexDate, (Duration) operand);
+			Date from = indexDate.compareTo(within) > 0 ? within : indexDate;
+			Date to = indexDate.compareTo(within) > 0 ? indexDate : within;
+			return obsDatetime != null && !obsDatetime.before(from) && !obsDatetime.after(to);
+		}
+
+		Datatype datatype = result.getDatatype();
+		// the numeric value of a boolean question isn't kept
+		if (datatype == null || datatype == Datatype.BOOLEAN)
+			return null;
+		if (operator == Operator.CONTAINS || (operator == Operator.EQUALS && operand instanceof OperandConcept)) {
+			Concept valueCoded = datatype == Datatype.CODED ? result.toConcept() : null;
+			if (valueCoded == null)
+				return false;
+			if (operand instanceof OperandNumeric)
+				return valueCoded.getConceptId().equals(((OperandNumeric) operand).asInteger());
+			return valueCoded.equals(((OperandConcept) operand).asConcept());
+		}
+
+		int c;
+		if (operand instanceof OperandNumeric) {
+			Double valueNumeric = datatype == Datatype.NUMERIC ? result.toNumber() : null;
+			if (valueNumeric == null)
+				return false;
+			c = valueNumeric.compareTo(((OperandNumeric) operand).asDouble());
+		} else {
+			Date valueDatetime = datatype == Datatype.DATETIME ? result.toDatetime() : null;
+			if (valueDatetime == null)
+				return false;
+			c = valueDatetime.compareTo((Date) operand);
+		}
+		return compareTo(operator, c);
+	}
+
+	private static boolean compareTo(Operator operator, int c) {
+		if (operator == Operator.EQUALS)
+			return c == 0;
+		if (operator == Operator.LT)
+			return c < 0;
+		if (operator == Operator.LTE)
+			return c <= 0;
+		if (operator == Operator.GT)
+			return c > 0;
+		return c >= 0;
+	}
+
+	private static Date addDuration(Date date, Duration duration) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTime(date);
+		int amount = duration.getDuration().intValue();
+		if (duration.getUnits() == Duration.Units.YEARS)
+			cal.add(Calendar.YEAR, amount);
+		else if (duration.getUnits() == Duration.Units.MONTHS)
+			cal.add(Calendar.MONTH, amount);
+		else if (duration.getUnits() == Duration.Units.WEEKS)
+			cal.add(Calendar.WEEK_OF_YEAR, amount);
+		else if (duration.getUnits() == Duration.Units.DAYS)
+			cal.add(Calendar.DAY_OF_YEAR, amount);
+		else if (duration.getUnits() == Duration.Units.HOURS)
+			cal.add(Calendar.HOUR_OF_DAY, amount);
+		else if (duration.getUnits() == Duration.Units.MINUTES)
+			cal.add(Calendar.MINUTE, amount);
+		else if (duration.getUnits() == Duration.Units.SECONDS)
+			cal.add(Calendar.SECOND, amount);
+		return cal.getTime();
+	}
+}
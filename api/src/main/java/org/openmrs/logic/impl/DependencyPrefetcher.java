@@ -0,0 +1,140 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.logic.LogicCriteria;
+import org.openmrs.logic.LogicException;
+import org.openmrs.logic.Rule;
+import org.openmrs.logic.datasource.BatchLogicDataSource;
+import org.openmrs.logic.datasource.LogicDataSource;
+import org.openmrs.logic.rule.ReferenceRule;
+
+/**
+ * Plans the data source reads a rule depends on, by walking the tokens returned by
+ * {@link Rule#getDependencies()} (and their own dependencies), and does them for the whole cohort
+ * of a logic context up front. The rule's own reads are then cache hits. <br/>
+ * This is only an optimization: dependencies that can't be resolved to a data source read are
+ * skipped, and failing reads are left for the rule to run into.
+ */
+class DependencyPrefetcher {
+
+	private static final Log log = LogFactory.getLog(DependencyPrefetcher.class);
+
+	private final LogicContextImpl context;
+
+	/**
+	 * Tokens that were already looked at, so that cyclic dependencies end
+	 */
+	private final Set<String> visited = new HashSet<String>();
+
+	/**
+	 * The root tokens to read, grouped by data source
+	 */
+	private final Map<LogicDataSource, Set<String>> reads = new LinkedHashMap<LogicDataSource, Set<String>>();
+
+	private DependencyPrefetcher(LogicContextImpl context) {
+		this.context = context;
+	}
+
+	/**
+	 * Reads the dependencies of a rule for the whole cohort of the given context
+	 *
+	 * @param context
+	 * @param rule
+	 * @param patientId any patient of the context
+	 * @should read a dependency by the key of its reference rule
+	 */
+	static void prefetch(LogicContextImpl context, Rule rule, Integer patientId) {
+		DependencyPrefetcher prefetcher = new DependencyPrefetcher(context);
+		prefetcher.plan(rule.getDependencies());
+		prefetcher.execute(patientId);
+	}
+
+	/**
+	 * Tokens of the form <code>%%dataSource.key</code> and tokens registered to a data source are
+	 * read; the dependencies of any other rule are followed
+	 */
+	private void plan(String[] dependencies) {
+		if (dependencies == null)
+			return;
+		for (String token : dependencies) {
+			if (token == null || !visited.add(token))
+				continue;
+			Rule rule;
+			try {
+				rule = Context.getLogicService().getRule(token);
+			}
+			catch (RuntimeException ex) {
+				if (log.isDebugEnabled())
+					log.debug("Not prefetching " + token + ": " + ex.getMessage());
+				continue;
+			}
+			if (rule instanceof ReferenceRule) {
+				ReferenceRule reference = (ReferenceRule) rule;
+				// reference rules read from their data source by key, whatever token they are registered under
+				String rootToken = reference.getKey();
+				Set<String> rootTokens = reads.get(reference.getDataSource());
+				if (rootTokens == null) {
+					rootTokens = new LinkedHashSet<String>();
+					reads.put(reference.getDataSource(), rootTokens);
+				}
+				rootTokens.add(rootToken);
+			} else if (rule != null) {
+				plan(rule.getDependencies());
+			}
+		}
+	}
+
+	/**
+	 * Data sources that can read several tokens at once are asked to; if that fails, the tokens are
+	 * read one by one
+	 */
+	private void execute(Integer patientId) {
+		for (Map.Entry<LogicDataSource, Set<String>> e : reads.entrySet()) {
+			if (e.getKey() instanceof BatchLogicDataSource && e.getValue().size() > 1) {
+				List<LogicCriteria> criteria = new ArrayList<LogicCriteria>();
+				for (String rootToken : e.getValue())
+					criteria.add(new LogicCriteriaImpl(rootToken));
+				try {
+					context.prefetch((BatchLogicDataSource) e.getKey(), criteria);
+					continue;
+				}
+				catch (LogicException ex) {
+					if (log.isDebugEnabled())
+						log.debug("Unable to prefetch " + e.getValue() + " at once: " + ex.getMessage());
+				}
+			}
+			for (String rootToken : e.getValue()) {
+				try {
+					context.read(patientId, e.getKey(), new LogicCriteriaImpl(rootToken));
+				}
+				catch (LogicException ex) {
+					if (log.isDebugEnabled())
+						log.debug("Unable to prefetch " + rootToken + ": " + ex.getMessage());
+				}
+			}
+		}
+	}
+}
@@ -16,18 +16,27 @@ package org.openmrs.logic.impl;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Hashtable;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Cohort;
 import org.openmrs.Patient;
 import org.openmrs.api.context.Context;
+import org.openmrs.logic.CanonicalCriteria;
+import org.openmrs.logic.ConcurrentLogicContext;
 import org.openmrs.logic.LogicCache;
+import org.openmrs.logic.LogicCacheManager;
+import org.openmrs.logic.LogicConstants;
 import org.openmrs.logic.LogicContext;
 import org.openmrs.logic.LogicCriteria;
 import org.openmrs.logic.LogicException;
@@ -35,7 +44,9 @@ import org.openmrs.logic.LogicExpression;
 import org.openmrs.logic.LogicExpressionBinary;
 import org.openmrs.logic.LogicService;
 import org.openmrs.logic.Rule;
+import org.openmrs.logic.datasource.BatchLogicDataSource;
 import org.openmrs.logic.datasource.LogicDataSource;
+import org.openmrs.logic.datasource.ObsDataSource;
 import org.openmrs.logic.op.ComparisonOperator;
 import org.openmrs.logic.op.Operand;
 import org.openmrs.logic.op.OperandDate;
@@ -43,7 +54,12 @@ import org.openmrs.logic.op.OperandNumeric;
 import org.openmrs.logic.op.Operator;
 import org.openmrs.logic.result.EmptyResult;
 import org.openmrs.logic.result.Result;
-import org.openmrs.logic.rule.ReferenceRule;
+import org.openmrs.logic.rule.PassThroughRule;
+import org.openmrs.logic.util.ImmutableEmptyResult;
+import org.openmrs.logic.util.LogicTaskExecutor;
+import org.openmrs.logic.util.LogicUtil;
+import org.openmrs.logic.util.PatientResultMap;
+import org.openmrs.logic.util.ReadOnlyResult;
 import org.openmrs.util.OpenmrsUtil;
 
 /**
@@ -54,7 +70,7 @@ import org.openmrs.util.OpenmrsUtil;
  * retrospectively. For example, a rule calculating the "maximum CD4 count in the past six months"
  * can be calculated as if it were 4-July-2005.
  */
-public class LogicContextImpl implements LogicContext {
+public class LogicContextImpl implements ConcurrentLogicContext {
 	
 	protected final Log log = LogFactory.getLog(getClass());
 	
@@ -74,8 +90,7 @@ public class LogicContextImpl implements LogicContext {
 	 * If this context was constructed from another logic context, this references the original
 	 * context; otherwise, this is null
 	 */
-	@SuppressWarnings("unused")
-    private LogicContext parentContext = null;
+	private LogicContextImpl parentContext = null;
 	
 	/**
 	 * Patients being processed within this logic context
@@ -89,13 +104,25 @@ public class LogicContextImpl implements LogicContext {
 	 */
 	private LogicCache cache;
 	
+	/**
+	 * Tokens whose dependencies were already prefetched within this context
+	 */
+	private Set<String> prefetchedTokens;
+	
+	/**
+	 * Version of the shared cache when this context first used it. Everything this context reads
+	 * is at least that recent, so its results are put in the shared cache with this version.
+	 * 
+	 * @see LogicCache#getVersion()
+	 */
+	private Long sharedCacheVersion;
+	
 	/**
 	 * Creates a {@link LogicContext} that inherits from parentContext (meaning that it shares a
 	 * cohort of patients, and its global parameters, and changes to those in the new context will
 	 * be reflected in the parent context).
 	 * If newIndexDate is non-null, then it will override the index date from the parent context.
-	 * This LogicContext has its own cache, although eventually it should share a cache with its
-	 * parent (once caches support index dates in some way)
+	 * This LogicContext shares its parent's cache, whose keys include the index date.
 	 * @param parentContext
 	 * @param newIndexDate
 	 */
@@ -103,11 +130,30 @@ public class LogicContextImpl implements LogicContext {
 		this.parentContext = parentContext;
 		this.globalParameters = parentContext.globalParameters;
 		this.patients = parentContext.patients;
-		// once we fix the cache to also contain either the context or the index date in its cache keys, we should share our parent's cache
-		// this.cache = parentContext.cache;
 		this.indexDate = newIndexDate != null ? newIndexDate : parentContext.indexDate;
 	}
 	
+	/**
+	 * Creates a context for some of the patients of another context, to evaluate them on a thread
+	 * of their own. It starts with the index date, global parameters and shared cache version of the
+	 * other context, but has its own cohort and cache, so the two share nothing that isn't safe to
+	 * use across threads.
+	 * 
+	 * @param context
+	 * @param patientIds
+	 */
+	private LogicContextImpl(LogicContextImpl context, Collection<Integer> patientIds) {
+		this.patients = new PatientCohort(new Cohort(patientIds));
+		this.globalParameters = new HashMap<String, Object>(context.globalParameters);
+		this.indexDate = context.indexDate;
+		LogicContextImpl root = context;
+		while (root.parentContext != null)
+			root = root.parentContext;
+		synchronized (root) {
+			this.sharedCacheVersion = root.sharedCacheVersion;
+		}
+	}
+	
 	/**
 	 * Constructs a logic context applied to a single patient
 	 * 
@@ -173,9 +219,24 @@ public class LogicContextImpl implements LogicContext {
 	 *      org.openmrs.logic.LogicCriteria, java.util.Map)
 	 * @should evaluate a rule that requires a new index date in a new logic context
 	 * @should behave right when a rule and a subrule with a different index date evaluate the same criteria
+	 * @should return an empty result the caller can change
+	 * @should evaluate every chunk of patients in a context of its own when run in parallel
+	 * @should return read only results that hold only the id of an observation when run in parallel
+	 * @should pass the parameters to a rule that applies the criteria itself
+	 * @should evaluate a rule that applies the criteria itself on the calling thread
 	 */
 	public Result eval(Integer patientId, LogicCriteria criteria, Map<String, Object> parameters) throws LogicException {
-		Result result = getCache().get(patientId, criteria, parameters);
+		return eval(patientId, criteria, CanonicalCriteria.of(criteria), parameters);
+	}
+	
+	/**
+	 * Evaluates the criteria, using the canonical form the caller built of it for every cache
+	 * lookup, so that it is only built once per evaluation
+	 */
+	private Result eval(Integer patientId, LogicCriteria criteria, CanonicalCriteria key, Map<String, Object> parameters)
+	                                                                                                                  throws LogicException {
+		Result result = getCachedResult(patientId, key, parameters);
+		LogicCache sharedCache = getSharedCache();
 		
 		if (result == null) {
 			// if criteria specifies an index date, and it differs from the current index date, we need to
@@ -183,37 +244,202 @@ public class LogicContextImpl implements LogicContext {
 			Date criteriaIndexDate = getIndexDate(criteria);
 			if (criteriaIndexDate != null && !OpenmrsUtil.nullSafeEquals(criteriaIndexDate, getIndexDate())) {
 
-				return new LogicContextImpl(this, criteriaIndexDate).eval(patientId, criteria, parameters);
+				return new LogicContextImpl(this, criteriaIndexDate).eval(patientId, criteria, key, parameters);
 
 			} else {
 
 				Rule rule = Context.getLogicService().getRule(criteria.getRootToken());
-				Map<Integer, Result> resultMap = new Hashtable<Integer, Result>();
-	
-				for (Integer currPatientId : patients.getMemberIds()) {
-					Result r = Result.emptyResult();
-					if (rule instanceof ReferenceRule) {
-						// TODO: we are ignoring all the parameters here. fail!
-						r = ((ReferenceRule) rule).eval(this, currPatientId, criteria);
-					} else {
-						r = rule.eval(this, currPatientId, parameters);
-						r = applyCriteria(r, criteria);
-					}
-					
-					resultMap.put(currPatientId, r);
+				Map<Integer, Result> resultMap;
+				if (shouldEvalInParallel(rule, criteria)) {
+					resultMap = evalInParallel(rule, criteria, parameters);
+				} else {
+					if (shouldPrefetchDependencies(rule, criteria.getRootToken()))
+						DependencyPrefetcher.prefetch(this, rule, patientId);
+					resultMap = evalRule(rule, patients.getMemberIds(), criteria, parameters);
 				}
 				result = resultMap.get(patientId);
-				getCache().put(criteria, parameters, rule.getTTL(), resultMap);
+				getCache().put(getIndexDate(), key, parameters, rule.getTTL(), resultMap);
+				if (sharedCache != null)
+					sharedCache.put(getIndexDate(), key, parameters, rule.getTTL(), resultMap, getSharedCacheVersion());
 				
 			}
 		}
 		
-		return result;
+		return toCallerResult(result);
 	}
 
+	/**
+	 * @return the result of the patient from the cache of this context or the shared cache, or null
+	 *         if it is not cached
+	 */
+	private Result getCachedResult(Integer patientId, CanonicalCriteria criteria, Map<String, Object> parameters) {
+		Result result = getCache().get(patientId, getIndexDate(), criteria, parameters);
+		LogicCache sharedCache = getSharedCache();
+		if (result == null && sharedCache != null)
+			result = sharedCache.get(patientId, getIndexDate(), criteria, parameters);
+		return result;
+	}
+	
+	/**
+	 * Only the criteria that aren't cached are handed to the logic evaluation threads, each in a
+	 * context of its own
+	 * 
+	 * @see org.openmrs.logic.ConcurrentLogicContext#eval(java.lang.Integer, java.util.List,
+	 *      java.util.Map)
+	 * @should return the results in the order of the criteria
+	 * @should only evaluate criteria that are not cached
+	 * @should evaluate the criteria that are not cached on the logic evaluation threads
+	 */
+	public List<Result> eval(final Integer patientId, List<LogicCriteria> criteria, Map<String, Object> parameters)
+	                                                                                                            throws LogicException {
+		List<Result> results = new ArrayList<Result>(criteria.size());
+		List<CanonicalCriteria> keys = new ArrayList<CanonicalCriteria>(criteria.size());
+		List<Integer> misses = new ArrayList<Integer>();
+		for (LogicCriteria c : criteria) {
+			CanonicalCriteria key = CanonicalCriteria.of(c);
+			Result cached = getCachedResult(patientId, key, parameters);
+			if (cached == null)
+				misses.add(results.size());
+			results.add(cached == null ? null : toCallerResult(cached));
+			keys.add(key);
+		}
+		
+		// in a cohort, every criteria is evaluated for all patients at once, so later patients hit the cache
+		if (misses.size() < 2 || patients.size() > 1 || !LogicTaskExecutor.isParallelEnabled()) {
+			for (Integer i : misses)
+				results.set(i, eval(patientId, criteria.get(i), keys.get(i), parameters));
+			return results;
+		}
+		
+		// criteria that go straight to a data source are read right away, in a single query each
+		Iterator<Integer> pending = misses.iterator();
+		while (pending.hasNext()) {
+			Integer miss = pending.next();
+			LogicCriteria c = criteria.get(miss);
+			if (isPassedThrough(Context.getLogicService().getRule(c.getRootToken()), c)) {
+				results.set(miss, eval(patientId, c, keys.get(miss), parameters));
+				pending.remove();
+			}
+		}
+		if (misses.isEmpty())
+			return results;
+		
+		final Map<String, Object> taskParameters = parameters == null ? null : new HashMap<String, Object>(parameters);
+		List<Callable<Result>> tasks = new ArrayList<Callable<Result>>(misses.size());
+		for (Integer i : misses) {
+			final LogicCriteria c = criteria.get(i);
+			final CanonicalCriteria key = keys.get(i);
+			final LogicContextImpl taskContext = new LogicContextImpl(this, Collections.singletonList(patientId));
+			tasks.add(new Callable<Result>() {
+				
+				public Result call() throws LogicException {
+					return ReadOnlyResult.copyOf(taskContext.eval(patientId, c, key, taskParameters));
+				}
+			});
+		}
+		List<Result> evaluated = LogicTaskExecutor.invokeAll(tasks);
+		for (int j = 0; j < misses.size(); ++j)
+			results.set(misses.get(j), toCallerResult(evaluated.get(j)));
+		return results;
+	}
+	
+	/**
+	 * The dependencies of a rule are prefetched once per context, and only when evaluating it for
+	 * more than one patient
+	 * 
+	 * @see DependencyPrefetcher
+	 */
+	private boolean shouldPrefetchDependencies(Rule rule, String token) {
+		if (rule instanceof PassThroughRule || rule.getDependencies() == null || patients.size() < 2)
+			return false;
+		if (parentContext != null)
+			return parentContext.shouldPrefetchDependencies(rule, token);
+		synchronized (this) {
+			if (prefetchedTokens == null) {
+				prefetchedTokens = new HashSet<String>();
+				String enabled = Context.getAdministrationService().getGlobalProperty(
+				    LogicConstants.EVAL_PREFETCH_DEPENDENCIES, "true");
+				if (!Boolean.valueOf(enabled.trim()))
+					prefetchedTokens = null;
+			}
+			return prefetchedTokens != null && prefetchedTokens.add(token);
+		}
+	}
+	
+	/**
+	 * Rules that apply the criteria themselves, like the ones that read a data source, read the
+	 * data of all patients in one go; splitting them across threads would only multiply the queries
+	 */
+	private boolean shouldEvalInParallel(Rule rule, LogicCriteria criteria) {
+		return LogicTaskExecutor.shouldParallelize(patients.size()) && !isPassedThrough(rule, criteria);
+	}
+	
+	private static boolean isPassedThrough(Rule rule, LogicCriteria criteria) {
+		return rule instanceof PassThroughRule && ((PassThroughRule) rule).canPassThrough(criteria);
+	}
+	
+	/**
+	 * Evaluates a rule for some of the patients of this context
+	 * 
+	 * @return the results of those patients
+	 */
+	private Map<Integer, Result> evalRule(Rule rule, Collection<Integer> patientIds, LogicCriteria criteria,
+	                                      Map<String, Object> parameters) throws LogicException {
+		Map<Integer, Result> resultMap = new PatientResultMap(patientIds.size());
+		for (Integer currPatientId : patientIds) {
+			Result r;
+			if (isPassedThrough(rule, criteria)) {
+				r = ((PassThroughRule) rule).eval(this, currPatientId, criteria, parameters);
+			} else {
+				r = rule.eval(this, currPatientId, parameters);
+				r = applyCriteria(r, criteria);
+			}
+			
+			resultMap.put(currPatientId, ImmutableEmptyResult.compact(r));
+		}
+		return resultMap;
+	}
+	
+	/**
+	 * Splits the patients of this context across the logic evaluation threads. Every chunk of
+	 * patients is evaluated in a context of its own (which prefetches the dependencies of the rule
+	 * for its chunk), fills its own map, and the maps are only merged at the end. The session of a
+	 * thread is closed once its chunk is done, so the results are handed back as
+	 * {@link ReadOnlyResult}s, which load their observations in the caller's session.
+	 * 
+	 * @see LogicTaskExecutor
+	 */
+	private Map<Integer, Result> evalInParallel(final Rule rule, final LogicCriteria criteria,
+	                                            Map<String, Object> parameters) throws LogicException {
+		final Map<String, Object> chunkParameters = parameters == null ? null : new HashMap<String, Object>(parameters);
+		// a few chunks per thread, so that a thread that gets the slow patients doesn't hold up the others
+		int chunkSize = Math.max(1, patients.size() / (LogicTaskExecutor.getThreadCount() * 4));
+		List<Callable<Map<Integer, Result>>> tasks = new ArrayList<Callable<Map<Integer, Result>>>();
+		for (final List<Integer> chunk : LogicUtil.partition(patients.getMemberIds(), chunkSize)) {
+			final LogicContextImpl chunkContext = new LogicContextImpl(this, chunk);
+			tasks.add(new Callable<Map<Integer, Result>>() {
+				
+				public Map<Integer, Result> call() throws LogicException {
+					if (chunkContext.shouldPrefetchDependencies(rule, criteria.getRootToken()))
+						DependencyPrefetcher.prefetch(chunkContext, rule, chunk.get(0));
+					Map<Integer, Result> resultMap = new PatientResultMap(chunk.size());
+					for (Map.Entry<Integer, Result> e : chunkContext.evalRule(rule, chunk, criteria, chunkParameters)
+					        .entrySet())
+						resultMap.put(e.getKey(), ReadOnlyResult.copyOf(e.getValue()));
+					return resultMap;
+				}
+			});
+		}
+		Map<Integer, Result> resultMap = new PatientResultMap(patients.size());
+		for (Map<Integer, Result> partial : LogicTaskExecutor.invokeAll(tasks))
+			resultMap.putAll(partial);
+		return resultMap;
+	}
+	
 	/**
 	 * Criteria are applied to results of rules <em>after</em> the rule has been evaluated, since
-	 * rules are not expected to interpret all possible criteria
+	 * rules are not expected to interpret all possible criteria (unless they are
+	 * {@link PassThroughRule}s)
 	 * 
 	 * @param result
 	 * @param criteria
@@ -323,20 +549,153 @@ public class LogicContextImpl implements LogicContext {
 	/**
 	 * @see org.openmrs.logic.LogicContext#read(java.lang.Integer,
 	 *      org.openmrs.logic.datasource.LogicDataSource, org.openmrs.logic.LogicCriteria)
+	 * @should return an empty result the caller can change
 	 */
 	public Result read(Integer patientId, LogicDataSource dataSource, LogicCriteria criteria) throws LogicException {
-		Result result = getCache().get(patientId, dataSource, criteria);
+		CanonicalCriteria key = CanonicalCriteria.of(criteria);
+		Result result = getCache().get(patientId, getIndexDate(), dataSource, key);
+		LogicCache sharedCache = getSharedCache();
+		if (result == null && sharedCache != null)
+			result = sharedCache.get(patientId, getIndexDate(), dataSource, key);
 		if (log.isDebugEnabled())
 			log.debug("Reading from data source: " + criteria.getRootToken() + " (" + (result == null ? "NOT" : "")
 		                + " cached)");
 		if (result == null) {
-			Map<Integer, Result> resultMap = dataSource.read(this, patients, criteria);
-			getCache().put(dataSource, criteria, resultMap);
+			Map<Integer, Result> resultMap = deriveFromCachedSuperset(dataSource, criteria, sharedCache);
+			if (resultMap != null) {
+				getCache().put(getIndexDate(), dataSource, key, resultMap);
+				if (sharedCache != null)
+					sharedCache.put(getIndexDate(), dataSource, key, resultMap, getSharedCacheVersion());
+				result = resultMap.get(patientId);
+			}
+		}
+		if (result == null) {
+			// identical reads from other threads are coalesced, so the map must not be modified here
+			Map<Integer, Result> resultMap = ReadCoalescer.read(dataSource, key, getIndexDate(), patients.getMemberIds(),
+			    new DataSourceRead(dataSource, criteria, key, sharedCache));
+			getCache().put(getIndexDate(), dataSource, key, resultMap);
 			result = resultMap.get(patientId);
 		}
 		if (result == null)
-			result = Result.emptyResult();
-		return result;
+			return new EmptyResult();
+		return toCallerResult(result);
+	}
+	
+	/**
+	 * The shared empty result only stands for "no data" in result maps; callers get an empty result
+	 * of their own, as they always have, which they are free to change
+	 */
+	private static Result toCallerResult(Result result) {
+		return result == ImmutableEmptyResult.INSTANCE ? new EmptyResult() : result;
+	}
+	
+	/**
+	 * Obs criteria like <code>CD4 COUNT.lt(200).last()</code> can be answered from the cached
+	 * results of the bare token, if those are cached for the whole cohort
+	 * 
+	 * @return the results, or null if they can't be derived from the cache
+	 * @see CachedObsEvaluator
+	 */
+	private Map<Integer, Result> deriveFromCachedSuperset(LogicDataSource dataSource, LogicCriteria criteria,
+	                                                      LogicCache sharedCache) {
+		if (!(dataSource instanceof ObsDataSource))
+			return null;
+		LogicCriteria superset = CachedObsEvaluator.getSupersetCriteria(criteria);
+		if (superset == null)
+			return null;
+		Map<Integer, Result> cached = getCachedResults(dataSource, CanonicalCriteria.of(superset), sharedCache);
+		if (cached == null)
+			return null;
+		Map<Integer, Result> resultMap = CachedObsEvaluator.evaluate(cached, criteria, getIndexDate(), patients);
+		if (resultMap != null && log.isDebugEnabled())
+			log.debug("Derived " + criteria + " from the cached results of " + superset);
+		return resultMap;
+	}
+	
+	/**
+	 * Reads several criteria from a data source for the whole cohort of this context in one go, and
+	 * caches the results so that later reads of those criteria are cache hits. Criteria that are
+	 * already cached for the whole cohort are not read again.
+	 * 
+	 * @param dataSource
+	 * @param criteria
+	 * @throws LogicException
+	 */
+	void prefetch(BatchLogicDataSource dataSource, List<LogicCriteria> criteria) throws LogicException {
+		LogicCache sharedCache = getSharedCache();
+		Map<LogicCriteria, CanonicalCriteria> toRead = new LinkedHashMap<LogicCriteria, CanonicalCriteria>();
+		for (LogicCriteria c : criteria) {
+			CanonicalCriteria key = CanonicalCriteria.of(c);
+			if (getCachedResults(dataSource, key, sharedCache) == null)
+				toRead.put(c, key);
+		}
+		if (toRead.isEmpty())
+			return;
+		Map<LogicCriteria, Map<Integer, Result>> read = dataSource.readAll(this, patients, new ArrayList<LogicCriteria>(
+		        toRead.keySet()));
+		for (Map.Entry<LogicCriteria, Map<Integer, Result>> e : read.entrySet()) {
+			CanonicalCriteria key = toRead.get(e.getKey());
+			if (key == null)
+				key = CanonicalCriteria.of(e.getKey());
+			fillEmptyResults(e.getValue());
+			getCache().put(getIndexDate(), dataSource, key, e.getValue());
+			if (sharedCache != null)
+				sharedCache.put(getIndexDate(), dataSource, key, e.getValue(), getSharedCacheVersion());
+		}
+	}
+	
+	/**
+	 * @return the cached results of the criteria for the whole cohort of this context, or null if
+	 *         they are not cached for every patient
+	 */
+	private Map<Integer, Result> getCachedResults(LogicDataSource dataSource, CanonicalCriteria criteria,
+	                                              LogicCache sharedCache) {
+		Map<Integer, Result> cached = getCache().getAll(getIndexDate(), dataSource, criteria, patients.getMemberIds());
+		if (cached == null && sharedCache != null)
+			cached = sharedCache.getAll(getIndexDate(), dataSource, criteria, patients.getMemberIds());
+		return cached;
+	}
+	
+	/**
+	 * Patients without data are cached too, so they are not read again; they all share one empty
+	 * result
+	 */
+	private void fillEmptyResults(Map<Integer, Result> resultMap) {
+		for (Integer currPatientId : patients.getMemberIds()) {
+			Result r = resultMap.get(currPatientId);
+			if (r == null || r.getClass() == EmptyResult.class)
+				resultMap.put(currPatientId, ImmutableEmptyResult.INSTANCE);
+		}
+	}
+	
+	/**
+	 * Reads from a data source for the whole cohort of this context, and puts the results in the
+	 * shared cache
+	 */
+	private class DataSourceRead implements Callable<Map<Integer, Result>> {
+		
+		private final LogicDataSource dataSource;
+		
+		private final LogicCriteria criteria;
+		
+		private final CanonicalCriteria key;
+		
+		private final LogicCache sharedCache;
+		
+		DataSourceRead(LogicDataSource dataSource, LogicCriteria criteria, CanonicalCriteria key, LogicCache sharedCache) {
+			this.dataSource = dataSource;
+			this.criteria = criteria;
+			this.key = key;
+			this.sharedCache = sharedCache;
+		}
+		
+		public Map<Integer, Result> call() throws LogicException {
+			Map<Integer, Result> resultMap = dataSource.read(LogicContextImpl.this, patients, criteria);
+			fillEmptyResults(resultMap);
+			if (sharedCache != null)
+				sharedCache.put(getIndexDate(), dataSource, key, resultMap, getSharedCacheVersion());
+			return resultMap;
+		}
 	}
 	
 	/**
@@ -385,11 +744,51 @@ public class LogicContextImpl implements LogicContext {
 	 * @return the cache for this logic context
 	 */
 	private LogicCache getCache() {
+		if (parentContext != null)
+			return parentContext.getCache();
 		if (cache == null)
 			cache = new LogicCache();
 		return cache;
 	}
 
+	/**
+	 * Results that depend on global parameters of this context are not shared with other contexts
+	 * 
+	 * @return the cache shared across logic contexts, or null if it should not be used
+	 * @see LogicCacheManager
+	 */
+	private LogicCache getSharedCache() {
+		if (!globalParameters.isEmpty())
+			return null;
+		LogicCache sharedCache = LogicCacheManager.getSharedCache();
+		if (sharedCache != null)
+			startUsingSharedCache(sharedCache);
+		return sharedCache;
+	}
+	
+	/**
+	 * Takes the version of the shared cache the first time this context (or the context it was
+	 * created from) uses it, which is before it reads anything
+	 */
+	private void startUsingSharedCache(LogicCache sharedCache) {
+		if (parentContext != null) {
+			parentContext.startUsingSharedCache(sharedCache);
+			return;
+		}
+		synchronized (this) {
+			if (sharedCacheVersion == null)
+				sharedCacheVersion = sharedCache.getVersion();
+		}
+	}
+	
+	private long getSharedCacheVersion() {
+		if (parentContext != null)
+			return parentContext.getSharedCacheVersion();
+		synchronized (this) {
+			return sharedCacheVersion;
+		}
+	}
+	
 	/**
 	 * Get the indexDate specified in this criteria. (Hack: for now this means any AsOf date we can find.)
 	 * 
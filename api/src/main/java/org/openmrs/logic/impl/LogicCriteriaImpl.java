@@ -17,6 +17,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Map;
 
+import org.openmrs.logic.CanonicalCriteria;
 import org.openmrs.logic.Duration;
 import org.openmrs.logic.LogicCriteria;
 import org.openmrs.logic.LogicException;
@@ -26,6 +27,7 @@ import org.openmrs.logic.LogicExpressionUnary;
 import org.openmrs.logic.LogicQueryParseException;
 import org.openmrs.logic.LogicQueryParser;
 import org.openmrs.logic.LogicTransform;
+import org.openmrs.logic.op.AggregateOperator;
 import org.openmrs.logic.op.Operand;
 import org.openmrs.logic.op.OperandCollection;
 import org.openmrs.logic.op.OperandDate;
@@ -98,6 +100,17 @@ public class LogicCriteriaImpl implements LogicCriteria {
 		this.logicParameters = logicParameters;
 	}
 	
+	/**
+	 * Used for wrapping an already built expression, e.g. a copy of a {@link CanonicalCriteria}
+	 * 
+	 * @param expression
+	 * @param logicParameters
+	 */
+	public LogicCriteriaImpl(LogicExpression expression, Map<String, Object> logicParameters) {
+		this.expression = expression;
+		this.logicParameters = logicParameters;
+	}
+	
 	/**
 	 * @see org.openmrs.logic.LogicCriteria#appendExpression(org.openmrs.logic.op.Operator, org.openmrs.logic.op.Operand)
 	 */
@@ -155,6 +168,12 @@ public class LogicCriteriaImpl implements LogicCriteria {
 			return count();
 		} else if (operator == Operator.AVERAGE) {
 			return average();
+		} else if (operator == AggregateOperator.SUM) {
+			return sum();
+		} else if (operator == AggregateOperator.MIN) {
+			return min();
+		} else if (operator == AggregateOperator.MAX) {
+			return max();
 		}
 		
 		return this; // no valid transform
@@ -206,6 +225,33 @@ public class LogicCriteriaImpl implements LogicCriteria {
 		return this.appendTransform(Operator.AVERAGE, null, null);
 	}
 	
+	/**
+	 * Reduces the results of each patient to the sum of their numeric values
+	 * 
+	 * @return this criteria
+	 */
+	public LogicCriteria sum() {
+		return this.appendTransform(AggregateOperator.SUM, null, null);
+	}
+	
+	/**
+	 * Reduces the results of each patient to the smallest of their numeric values
+	 * 
+	 * @return this criteria
+	 */
+	public LogicCriteria min() {
+		return this.appendTransform(AggregateOperator.MIN, null, null);
+	}
+	
+	/**
+	 * Reduces the results of each patient to the largest of their numeric values
+	 * 
+	 * @return this criteria
+	 */
+	public LogicCriteria max() {
+		return this.appendTransform(AggregateOperator.MAX, null, null);
+	}
+	
 	/**
 	 * @see org.openmrs.logic.LogicCriteria#last()
 	 */
@@ -15,6 +15,7 @@ package org.openmrs.logic.impl;
 
 import java.io.ByteArrayInputStream;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
@@ -22,6 +23,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import antlr.BaseAST;
 import org.apache.commons.logging.Log;
@@ -29,12 +32,15 @@ import org.apache.commons.logging.LogFactory;
 import org.openmrs.Cohort;
 import org.openmrs.Patient;
 import org.openmrs.api.context.Context;
+import org.openmrs.logic.CanonicalCriteria;
+import org.openmrs.logic.ExtendedLogicService;
 import org.openmrs.logic.LogicContext;
 import org.openmrs.logic.LogicCriteria;
 import org.openmrs.logic.LogicException;
-import org.openmrs.logic.LogicService;
+import org.openmrs.logic.LogicResultHandler;
 import org.openmrs.logic.Rule;
 import org.openmrs.logic.datasource.LogicDataSource;
+import org.openmrs.logic.db.LogicSessionDAO;
 import org.openmrs.logic.queryparser.LogicQueryBaseParser;
 import org.openmrs.logic.queryparser.LogicQueryLexer;
 import org.openmrs.logic.queryparser.LogicQueryTreeParser;
@@ -43,6 +49,10 @@ import org.openmrs.logic.result.Result.Datatype;
 import org.openmrs.logic.rule.RuleParameterInfo;
 import org.openmrs.logic.token.TokenRegistration;
 import org.openmrs.logic.token.TokenService;
+import org.openmrs.logic.util.LogicTaskExecutor;
+import org.openmrs.logic.util.LogicUtil;
+import org.openmrs.logic.util.PatientResultMap;
+import org.openmrs.logic.util.ReadOnlyResult;
 import org.springframework.beans.factory.annotation.Autowired;
 
 /**
@@ -54,7 +64,7 @@ import org.springframework.beans.factory.annotation.Autowired;
  * @see org.openmrs.api.context.Context
  * @see org.openmrs.logic.LogicService
  */
-public class LogicServiceImpl implements LogicService {
+public class LogicServiceImpl implements ExtendedLogicService {
 	
 	protected final Log log = LogFactory.getLog(getClass());
 	
@@ -63,6 +73,28 @@ public class LogicServiceImpl implements LogicService {
 	
 	private transient Map<String, LogicDataSource> dataSources;
 	
+	@Autowired
+	private LogicSessionDAO logicSessionDAO;
+	
+	/**
+	 * Maximum number of parsed expressions remembered by {@link #parse(String)}
+	 */
+	private static final int PARSE_CACHE_SIZE = 1000;
+	
+	/**
+	 * Canonical forms of recently parsed expressions, least recently used first
+	 */
+	private final Map<String, CanonicalCriteria> parseCache = Collections
+	        .synchronizedMap(new LinkedHashMap<String, CanonicalCriteria>(16, 0.75f, true) {
+		        
+		        private static final long serialVersionUID = 1L;
+		        
+		        @Override
+		        protected boolean removeEldestEntry(Map.Entry<String, CanonicalCriteria> eldest) {
+			        return size() > PARSE_CACHE_SIZE;
+		        }
+	        });
+	
 	/**
 	 * Default constructor
 	 */
@@ -77,6 +109,7 @@ public class LogicServiceImpl implements LogicService {
 	 */
 	public void onShutdown() {
 		dataSources = null;
+		parseCache.clear();
 	}
 	
 	/**
@@ -253,6 +286,7 @@ public class LogicServiceImpl implements LogicService {
 	
 	/**
 	 * @see org.openmrs.logic.LogicService#eval(org.openmrs.Cohort, org.openmrs.logic.LogicCriteria)
+	 * @should pass restrictions on a reference token through to its data source
 	 */
 	public Map<Integer, Result> eval(Cohort who, LogicCriteria criteria) throws LogicException {
 		return eval(who, criteria, criteria.getLogicParameters());
@@ -264,28 +298,106 @@ public class LogicServiceImpl implements LogicService {
 	 */
 	public Map<Integer, Result> eval(Cohort who, LogicCriteria criteria, Map<String, Object> parameters)
 	                                                                                                    throws LogicException {
-		LogicContext context = new LogicContextImpl(who);
-		Map<Integer, Result> resultMap = new Hashtable<Integer, Result>();
-		for (Integer pid : who.getMemberIds())
-			resultMap.put(pid, context.eval(pid, criteria, parameters));
-		context = null;
-		return resultMap;
+		return eval(new LogicContextImpl(who), who, criteria, parameters);
 	}
 	
 	/**
+	 * All criteria are evaluated in one logic context, so the patients are only loaded once, and
+	 * reads that several criteria depend on are only done once
+	 * 
 	 * @see org.openmrs.logic.LogicService#eval(org.openmrs.Cohort, java.util.List)
+	 * @should evaluate every criteria for every patient
 	 */
 	public Map<LogicCriteria, Map<Integer, Result>> eval(Cohort patients, List<LogicCriteria> criterias)
 	                                                                                                    throws LogicException {
 		Map<LogicCriteria, Map<Integer, Result>> result = new HashMap<LogicCriteria, Map<Integer, Result>>();
+		LogicContext context = new LogicContextImpl(patients);
 		
 		for (LogicCriteria criteria : criterias) {
-			result.put(criteria, eval(patients, criteria));
+			result.put(criteria, eval(context, patients, criteria, criteria.getLogicParameters()));
 		}
 		
 		return result;
 	}
 	
+	/**
+	 * @see org.openmrs.logic.ExtendedLogicService#eval(org.openmrs.Cohort,
+	 *      org.openmrs.logic.LogicCriteria, org.openmrs.logic.LogicResultHandler)
+	 */
+	public void eval(Cohort who, LogicCriteria criteria, LogicResultHandler handler) throws LogicException {
+		eval(who, criteria, criteria.getLogicParameters(), handler);
+	}
+	
+	/**
+	 * @see org.openmrs.logic.ExtendedLogicService#eval(org.openmrs.Cohort,
+	 *      org.openmrs.logic.LogicCriteria, java.util.Map, org.openmrs.logic.LogicResultHandler)
+	 */
+	public void eval(Cohort who, LogicCriteria criteria, Map<String, Object> parameters, LogicResultHandler handler)
+	                                                                                                          throws LogicException {
+		for (List<Integer> slice : LogicUtil.partition(who.getMemberIds(), LogicUtil.getQueryChunkSize())) {
+			Cohort patients = new Cohort();
+			for (Integer patientId : slice)
+				patients.addMember(patientId);
+			Set<Object> loadedBefore = logicSessionDAO.getLoadedKeys();
+			Map<Integer, Result> results = eval(new LogicContextImpl(patients), patients, criteria, parameters);
+			for (Integer patientId : slice)
+				handler.handle(patientId, results.get(patientId));
+			
+			// let go of the patients, observations etc. of this slice, but not of what the caller holds
+			logicSessionDAO.evictAllBut(loadedBefore);
+		}
+	}
+	
+	/**
+	 * Goes through the service again on the worker thread, so that the evaluation gets the same
+	 * transaction handling as a direct call
+	 * 
+	 * @see org.openmrs.logic.ExtendedLogicService#evalAsync(java.lang.Integer,
+	 *      org.openmrs.logic.LogicCriteria)
+	 */
+	public Future<Result> evalAsync(final Integer patientId, LogicCriteria criteria) {
+		// the caller may change its criteria while the task waits for a thread
+		final LogicCriteria copy = CanonicalCriteria.of(criteria).toCriteria();
+		return LogicTaskExecutor.submitAsync(new Callable<Result>() {
+			
+			public Result call() throws LogicException {
+				return ReadOnlyResult.copyOf(Context.getLogicService().eval(patientId, copy));
+			}
+		});
+	}
+	
+	/**
+	 * @see org.openmrs.logic.ExtendedLogicService#evalAsync(org.openmrs.Cohort,
+	 *      org.openmrs.logic.LogicCriteria)
+	 */
+	public Future<Map<Integer, Result>> evalAsync(Cohort who, LogicCriteria criteria) {
+		final Cohort patients = new Cohort();
+		for (Integer patientId : who.getMemberIds())
+			patients.addMember(patientId);
+		final LogicCriteria copy = CanonicalCriteria.of(criteria).toCriteria();
+		return LogicTaskExecutor.submitAsync(new Callable<Map<Integer, Result>>() {
+			
+			public Map<Integer, Result> call() throws LogicException {
+				Map<Integer, Result> results = Context.getLogicService().eval(patients, copy);
+				Map<Integer, Result> copies = new PatientResultMap(results.size());
+				for (Map.Entry<Integer, Result> e : results.entrySet())
+					copies.put(e.getKey(), ReadOnlyResult.copyOf(e.getValue()));
+				return copies;
+			}
+		});
+	}
+	
+	/**
+	 * Evaluates a criteria for each patient of a cohort, in the given context
+	 */
+	private Map<Integer, Result> eval(LogicContext context, Cohort who, LogicCriteria criteria,
+	                                  Map<String, Object> parameters) throws LogicException {
+		Map<Integer, Result> resultMap = new PatientResultMap(who.size());
+		for (Integer pid : who.getMemberIds())
+			resultMap.put(pid, context.eval(pid, criteria, parameters));
+		return resultMap;
+	}
+	
 	/**
 	 * @see org.openmrs.logic.LogicService#addRule(String, String[], Rule)
 	 */
@@ -430,11 +542,19 @@ public class LogicServiceImpl implements LogicService {
 	}
 	
 	/**
+	 * Parsed expressions are remembered in their canonical form; callers always get a new copy, since
+	 * criteria can be changed after they are parsed.
+	 * 
 	 * @should correctly parse expression with only aggregator and token
+	 * @should return equal but distinct criteria when parsing the same expression twice
 	 * @see org.openmrs.logic.LogicService#parse(java.lang.String)
 	 */
 	public LogicCriteria parse(String criteria) {
+		CanonicalCriteria cached = parseCache.get(criteria);
+		if (cached != null)
+			return cached.toCriteria();
 		
+		String expression = criteria;
 		try {
 			if (!criteria.endsWith(";")) {
 				criteria += ";";
@@ -460,6 +580,7 @@ public class LogicServiceImpl implements LogicService {
 			
 			LogicCriteriaImpl lc = treeParser.query_AST(t);
 			// System.out.println(lc.toString());
+			parseCache.put(expression, CanonicalCriteria.of(lc));
 			return lc;
 		}
 		catch (Exception e) {
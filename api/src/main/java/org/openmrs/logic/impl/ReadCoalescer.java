@@ -0,0 +1,181 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.impl;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.logic.CanonicalCriteria;
+import org.openmrs.logic.LogicException;
+import org.openmrs.logic.datasource.LogicDataSource;
+import org.openmrs.logic.result.Result;
+import org.openmrs.logic.util.PatientResultMap;
+import org.openmrs.logic.util.ReadOnlyResult;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * Makes sure that a data source read is only running once at a time. If a thread asks for a read
+ * (same data source, criteria, index date and cohort) that another thread is already doing, it
+ * waits for that read to finish and gets the results instead of querying the database again. The
+ * waiting threads get {@link ReadOnlyResult read-only copies} of the results, which don't hold on
+ * to the observations of the reading thread's session. The result map the reading thread gets is
+ * shared with the waiting threads while they copy it, so it must not be modified.
+ */
+class ReadCoalescer {
+	
+	private static final Log log = LogFactory.getLog(ReadCoalescer.class);
+	
+	private static final ConcurrentMap<ReadKey, FutureTask<Map<Integer, Result>>> inFlight = new ConcurrentHashMap<ReadKey, FutureTask<Map<Integer, Result>>>();
+	
+	private ReadCoalescer() {
+	}
+	
+	/**
+	 * Runs the given read, unless an identical one is already running, in which case copies of that
+	 * one's results are returned once it finishes
+	 * 
+	 * @param dataSource
+	 * @param criteria
+	 * @param indexDate
+	 * @param patientIds
+	 * @param reader does the actual read
+	 * @return the results of the read
+	 * @throws LogicException
+	 * @should give threads waiting for the same read copies of its results
+	 */
+	static Map<Integer, Result> read(LogicDataSource dataSource, CanonicalCriteria criteria, Date indexDate,
+	                                 Collection<Integer> patientIds, Callable<Map<Integer, Result>> reader)
+	                                                                                                      throws LogicException {
+		ReadKey key = new ReadKey(dataSource, criteria, indexDate, patientIds);
+		FutureTask<Map<Integer, Result>> task = new FutureTask<Map<Integer, Result>>(reader);
+		FutureTask<Map<Integer, Result>> running = inFlight.putIfAbsent(key, task);
+		if (running == null) {
+			try {
+				task.run();
+			}
+			finally {
+				inFlight.remove(key, task);
+			}
+			return getResult(task);
+		} else {
+			if (log.isDebugEnabled())
+				log.debug("Waiting for a running read of " + criteria.getRootToken());
+			return copy(getResult(running));
+		}
+	}
+	
+	private static Map<Integer, Result> copy(Map<Integer, Result> resultMap) {
+		Map<Integer, Result> ret = new PatientResultMap(resultMap.size());
+		for (Map.Entry<Integer, Result> e : resultMap.entrySet())
+			ret.put(e.getKey(), ReadOnlyResult.copyOf(e.getValue()));
+		return ret;
+	}
+	
+	private static Map<Integer, Result> getResult(FutureTask<Map<Integer, Result>> task) throws LogicException {
+		try {
+			return task.get();
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new LogicException("Interrupted while waiting for a data source read", ex);
+		}
+		catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof LogicException)
+				throw (LogicException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new LogicException(cause);
+		}
+	}
+	
+	/**
+	 * Identifies a data source read. Cohorts are compared by a fingerprint of their members, and
+	 * only compared member by member if the fingerprints match.
+	 */
+	private static class ReadKey {
+		
+		private final LogicDataSource dataSource;
+		
+		private final CanonicalCriteria criteria;
+		
+		private final Date indexDate;
+		
+		private final Collection<Integer> patientIds;
+		
+		private final long fingerprint;
+		
+		private final int hashCode;
+		
+		ReadKey(LogicDataSource dataSource, CanonicalCriteria criteria, Date indexDate, Collection<Integer> patientIds) {
+			this.dataSource = dataSource;
+			this.criteria = criteria;
+			this.indexDate = indexDate;
+			this.patientIds = patientIds;
+			this.fingerprint = fingerprint(patientIds);
+			int hash = dataSource.hashCode();
+			hash = 31 * hash + this.criteria.hashCode();
+			hash = 31 * hash + (indexDate == null ? 0 : indexDate.hashCode());
+			hash = 31 * hash + (int) (fingerprint ^ (fingerprint >>> 32));
+			this.hashCode = hash;
+		}
+		
+		/**
+		 * @return a number that doesn't depend on the order of the patients, and is very unlikely to
+		 *         be the same for different cohorts of the same size
+		 */
+		private static long fingerprint(Collection<Integer> patientIds) {
+			long sum = patientIds.size();
+			for (Integer patientId : patientIds) {
+				long h = patientId * 0x9E3779B97F4A7C15L;
+				sum += h ^ (h >>> 29);
+			}
+			return sum;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ReadKey))
+				return false;
+			ReadKey other = (ReadKey) obj;
+			return hashCode == other.hashCode && fingerprint == other.fingerprint && dataSource.equals(other.dataSource)
+			        && criteria.equals(other.criteria) && OpenmrsUtil.nullSafeEquals(indexDate, other.indexDate)
+			        && sameMembers(other.patientIds);
+		}
+		
+		private boolean sameMembers(Collection<Integer> otherIds) {
+			if (patientIds == otherIds)
+				return true;
+			if (patientIds.size() != otherIds.size())
+				return false;
+			return otherIds instanceof Set ? otherIds.containsAll(patientIds) : patientIds.containsAll(otherIds);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.op;
+
+/**
+ * Transform operators that reduce the numeric results of each patient to a single number, next to
+ * {@link Operator#COUNT} and {@link Operator#AVERAGE}
+ *
+ * @see org.openmrs.logic.impl.LogicCriteriaImpl#sum()
+ * @see org.openmrs.logic.impl.LogicCriteriaImpl#min()
+ * @see org.openmrs.logic.impl.LogicCriteriaImpl#max()
+ */
+public enum AggregateOperator implements Operator {
+
+	SUM, MIN, MAX
+
+}
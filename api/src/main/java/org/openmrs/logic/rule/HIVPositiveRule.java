@@ -13,12 +13,16 @@
  */
 package org.openmrs.logic.rule;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.logic.ConcurrentLogicContext;
 import org.openmrs.logic.LogicContext;
+import org.openmrs.logic.LogicCriteria;
 import org.openmrs.logic.LogicException;
 import org.openmrs.logic.Rule;
 import org.openmrs.logic.impl.LogicCriteriaImpl;
@@ -46,25 +50,29 @@ public class HIVPositiveRule implements Rule {
 			if (!ageOK)
 				return Result.emptyResult();
 			
+			List<LogicCriteria> criteria = new ArrayList<LogicCriteria>();
 			// we find the first HIV diagnosis
-			allDiagnoses.add(context.eval(patientId,
-				new LogicCriteriaImpl("PROBLEM ADDED").contains("HUMAN IMMUNODEFICIENCY VIRUS").first(), null));
-			allDiagnoses.add(context.eval(patientId, 
-			    new LogicCriteriaImpl("PROBLEM ADDED").contains("HIV INFECTED").first(), null));
-			allDiagnoses.add(context.eval(patientId,
-			    new LogicCriteriaImpl("PROBLEM ADDED").contains("ASYMPTOMATIC HIV INFECTION").first(), null));
+			criteria.add(new LogicCriteriaImpl("PROBLEM ADDED").contains("HUMAN IMMUNODEFICIENCY VIRUS").first());
+			criteria.add(new LogicCriteriaImpl("PROBLEM ADDED").contains("HIV INFECTED").first());
+			criteria.add(new LogicCriteriaImpl("PROBLEM ADDED").contains("ASYMPTOMATIC HIV INFECTION").first());
 			
 			// first viral load
-			allDiagnoses.add(context.eval(patientId,
-				new LogicCriteriaImpl("HIV VIRAL LOAD").first(), null));
+			criteria.add(new LogicCriteriaImpl("HIV VIRAL LOAD").first());
 			
 			// first qualitative viral load
-			allDiagnoses.add(context.eval(patientId,
-			    new LogicCriteriaImpl("HIV VIRAL LOAD, QUALITATIVE").first(), null));
+			criteria.add(new LogicCriteriaImpl("HIV VIRAL LOAD, QUALITATIVE").first());
 			
 			// first CD4 COUNT < 200
-			allDiagnoses.add(context.eval(patientId,
-				new LogicCriteriaImpl("CD4 COUNT").lt(200).first(), null));
+			criteria.add(new LogicCriteriaImpl("CD4 COUNT").lt(200).first());
+			
+			// they don't depend on each other, so they can be evaluated at the same time
+			if (context instanceof ConcurrentLogicContext) {
+				for (Result r : ((ConcurrentLogicContext) context).eval(patientId, criteria, null))
+					allDiagnoses.add(r);
+			} else {
+				for (LogicCriteria c : criteria)
+					allDiagnoses.add(context.eval(patientId, c, null));
+			}
 			
 			return allDiagnoses.earliest();
 			
@@ -0,0 +1,55 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.rule;
+
+import java.util.Map;
+
+import org.openmrs.logic.LogicContext;
+import org.openmrs.logic.LogicCriteria;
+import org.openmrs.logic.LogicException;
+import org.openmrs.logic.Rule;
+import org.openmrs.logic.result.Result;
+
+/**
+ * A rule that is a thin wrapper around a data source, and can hand the criteria it is evaluated
+ * with down to it. Restrictions like <code>lt(200)</code> or <code>last()</code> are then applied
+ * by the data source (in the database, for most of them) instead of in memory to everything the
+ * rule returns.
+ * 
+ * @see ReferenceRule
+ */
+public interface PassThroughRule extends Rule {
+	
+	/**
+	 * @param criteria
+	 * @return whether {@link #eval(LogicContext, Integer, LogicCriteria, Map)} can apply the given
+	 *         criteria itself
+	 */
+	public boolean canPassThrough(LogicCriteria criteria);
+	
+	/**
+	 * Evaluates the rule with the criteria applied
+	 * 
+	 * @param context
+	 * @param patientId
+	 * @param criteria a criteria whose root token refers to this rule
+	 * @param parameters the parameters the rule is evaluated with, as passed to
+	 *            {@link Rule#eval(LogicContext, Integer, Map)}
+	 * @return the result
+	 * @throws LogicException
+	 */
+	public Result eval(LogicContext context, Integer patientId, LogicCriteria criteria, Map<String, Object> parameters)
+	                                                                                                                throws LogicException;
+	
+}
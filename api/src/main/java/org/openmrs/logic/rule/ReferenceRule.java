@@ -22,16 +22,21 @@ import org.openmrs.api.context.Context;
 import org.openmrs.logic.LogicContext;
 import org.openmrs.logic.LogicCriteria;
 import org.openmrs.logic.LogicException;
+import org.openmrs.logic.LogicExpression;
+import org.openmrs.logic.LogicExpressionBinary;
 import org.openmrs.logic.StatefulRule;
 import org.openmrs.logic.datasource.LogicDataSource;
 import org.openmrs.logic.impl.LogicCriteriaImpl;
+import org.openmrs.logic.op.OperandText;
+import org.openmrs.logic.op.Operator;
 import org.openmrs.logic.result.Result;
 import org.openmrs.logic.result.Result.Datatype;
 
 /**
- * 
+ * Reads a key of a logic data source. Criteria are passed through to the data source, with their
+ * root token replaced by the key.
  */
-public class ReferenceRule implements StatefulRule {
+public class ReferenceRule implements StatefulRule, PassThroughRule {
 	
 	protected final Log log = LogFactory.getLog(getClass());
 	
@@ -77,8 +82,65 @@ public class ReferenceRule implements StatefulRule {
 		return context.read(patientId, dataSource, new LogicCriteriaImpl(key));
 	}
 
-	public Result eval(LogicContext context, Integer patientId, LogicCriteria criteria) throws LogicException {
-		return context.read(patientId, dataSource, criteria);
+	/**
+	 * Data sources take no parameters, so like {@link #eval(LogicContext, Integer, Map)} this
+	 * ignores them
+	 * 
+	 * @see org.openmrs.logic.rule.PassThroughRule#eval(org.openmrs.logic.LogicContext,
+	 *      java.lang.Integer, org.openmrs.logic.LogicCriteria, java.util.Map)
+	 */
+	public Result eval(LogicContext context, Integer patientId, LogicCriteria criteria, Map<String, Object> parameters)
+	                                                                                                                throws LogicException {
+		return context.read(patientId, dataSource, toKeyCriteria(criteria));
+	}
+	
+	/**
+	 * Data sources interpret all criteria they are given
+	 * 
+	 * @see org.openmrs.logic.rule.PassThroughRule#canPassThrough(org.openmrs.logic.LogicCriteria)
+	 */
+	public boolean canPassThrough(LogicCriteria criteria) {
+		return true;
+	}
+	
+	/**
+	 * The data source knows this rule by its key, not by the token it was registered under (e.g.
+	 * <code>%%obs.CD4 COUNT</code>)
+	 * 
+	 * @return the criteria with the key as its root token, or the criteria itself if it already has
+	 *         it or can't be rewritten
+	 */
+	private LogicCriteria toKeyCriteria(LogicCriteria criteria) {
+		if (key.equals(criteria.getRootToken()))
+			return criteria;
+		LogicExpression expression = replaceRootToken(criteria.getExpression());
+		if (expression == null)
+			return criteria;
+		return new LogicCriteriaImpl(expression, criteria.getLogicParameters());
+	}
+	
+	/**
+	 * Only chains of restrictions on a single token are rewritten
+	 */
+	private LogicExpression replaceRootToken(LogicExpression expression) {
+		if (!(expression instanceof LogicExpressionBinary))
+			return null;
+		LogicExpressionBinary binary = (LogicExpressionBinary) expression;
+		LogicExpressionBinary replaced;
+		if (binary.getLeftOperand() == null && binary.getOperator() == null
+		        && binary.getRightOperand() instanceof OperandText) {
+			replaced = new LogicExpressionBinary(null, new OperandText(key), null);
+		} else if (binary.getLeftOperand() instanceof LogicExpression && binary.getOperator() != Operator.AND
+		        && binary.getOperator() != Operator.OR) {
+			LogicExpression left = replaceRootToken((LogicExpression) binary.getLeftOperand());
+			if (left == null)
+				return null;
+			replaced = new LogicExpressionBinary(left, binary.getRightOperand(), binary.getOperator());
+		} else {
+			return null;
+		}
+		replaced.setTransform(binary.getTransform());
+		return replaced;
 	}
 	
 	/**
@@ -131,4 +193,18 @@ public class ReferenceRule implements StatefulRule {
 		return reference;
 	}
 	
+	/**
+	 * @return the data source this rule reads from
+	 */
+	public LogicDataSource getDataSource() {
+		return dataSource;
+	}
+	
+	/**
+	 * @return the key this rule reads from its data source
+	 */
+	public String getKey() {
+		return key;
+	}
+	
 }
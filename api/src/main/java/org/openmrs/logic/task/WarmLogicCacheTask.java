@@ -0,0 +1,132 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.task;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Cohort;
+import org.openmrs.api.context.Context;
+import org.openmrs.logic.ExtendedLogicService;
+import org.openmrs.logic.LogicCacheManager;
+import org.openmrs.logic.LogicCriteria;
+import org.openmrs.logic.LogicException;
+import org.openmrs.logic.LogicResultHandler;
+import org.openmrs.logic.impl.LogicCriteriaImpl;
+import org.openmrs.logic.result.Result;
+import org.openmrs.logic.token.TokenService;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * Fills the shared logic cache ahead of time, e.g. every morning before clinic hours, so that the
+ * first users of the day don't pay for evaluating the heavy rules. Every token carrying the tag
+ * given by the {@value #PROPERTY_TAG} task property is evaluated for the cohort given by the
+ * {@value #PROPERTY_COHORT_ID} task property (or for all patients, if that is not set). The
+ * cohort is evaluated in slices, so the task does not hold the data of every patient at once. This
+ * task does nothing unless the shared logic cache is enabled.
+ * 
+ * @see LogicCacheManager
+ */
+public class WarmLogicCacheTask extends AbstractTask {
+	
+	private static final Log log = LogFactory.getLog(WarmLogicCacheTask.class);
+	
+	public static final String NAME = "Warm Logic Cache";
+	
+	/**
+	 * Task property holding the tag of the tokens to evaluate
+	 */
+	public static final String PROPERTY_TAG = "tag";
+	
+	/**
+	 * Task property holding the id of the cohort to evaluate the tokens for
+	 */
+	public static final String PROPERTY_COHORT_ID = "cohortId";
+	
+	/**
+	 * The results only need to end up in the shared cache
+	 */
+	private static final LogicResultHandler IGNORE_RESULTS = new LogicResultHandler() {
+		
+		public void handle(Integer patientId, Result result) {
+		}
+	};
+	
+	/**
+	 * @see org.openmrs.scheduler.tasks.AbstractTask#execute()
+	 * @should put the results of the tagged tokens in the shared cache
+	 */
+	@Override
+	public void execute() {
+		if (LogicCacheManager.getSharedCache() == null) {
+			log.info("The shared logic cache is disabled, there is nothing to warm up");
+			return;
+		}
+		
+		String tag = getTaskProperty(PROPERTY_TAG);
+		if (tag == null) {
+			log.warn(NAME + " task needs a '" + PROPERTY_TAG + "' property naming the tokens to evaluate");
+			return;
+		}
+		List<LogicCriteria> criteria = new ArrayList<LogicCriteria>();
+		for (String token : Context.getService(TokenService.class).getTokensByTag(tag))
+			criteria.add(new LogicCriteriaImpl(token));
+		
+		Cohort patients = getPatients();
+		if (patients == null)
+			return;
+		
+		log.info("Warming logic cache with " + criteria.size() + " tokens tagged '" + tag + "' for " + patients.size()
+		        + " patients");
+		long start = System.currentTimeMillis();
+		for (LogicCriteria c : criteria) {
+			try {
+				Context.getService(ExtendedLogicService.class).eval(patients, c, null, IGNORE_RESULTS);
+			}
+			catch (LogicException ex) {
+				log.warn("Unable to warm logic cache for " + c.getRootToken(), ex);
+			}
+		}
+		log.info("Warmed logic cache in " + (System.currentTimeMillis() - start) + " ms");
+	}
+	
+	/**
+	 * @return the cohort named by the task properties, or all patients
+	 */
+	private Cohort getPatients() {
+		String cohortId = getTaskProperty(PROPERTY_COHORT_ID);
+		if (cohortId == null)
+			return Context.getPatientSetService().getAllPatients();
+		try {
+			Cohort cohort = Context.getCohortService().getCohort(Integer.valueOf(cohortId));
+			if (cohort == null)
+				log.warn(NAME + " task: there is no cohort with id " + cohortId);
+			return cohort;
+		}
+		catch (NumberFormatException ex) {
+			log.warn(NAME + " task: '" + cohortId + "' is not a valid cohort id");
+			return null;
+		}
+	}
+	
+	private String getTaskProperty(String property) {
+		if (taskDefinition == null)
+			return null;
+		String value = taskDefinition.getProperty(property);
+		return StringUtils.isBlank(value) ? null : value.trim();
+	}
+}
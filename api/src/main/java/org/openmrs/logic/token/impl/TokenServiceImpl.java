@@ -26,6 +26,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
+import org.openmrs.logic.LogicCacheManager;
 import org.openmrs.logic.LogicException;
 import org.openmrs.logic.Rule;
 import org.openmrs.logic.rule.ReferenceRule;
@@ -71,6 +72,7 @@ public class TokenServiceImpl extends BaseOpenmrsService implements TokenService
 			startupProviderAsDaemon(provider);
 		}
 		ruleCache.clear();
+		LogicCacheManager.invalidateAll();
 	}
 	
 	/**
@@ -220,6 +222,7 @@ public class TokenServiceImpl extends BaseOpenmrsService implements TokenService
 			// we've already registered this token, so we overwrite that registration
 			if (existing.getConfiguration().equals(configuration)) {
 				ruleCache.remove(existing.getToken());
+				LogicCacheManager.invalidateAll();
 				// don't do an unnecessary update if nothing has changed
 				return existing;
 			}
@@ -316,6 +319,7 @@ public class TokenServiceImpl extends BaseOpenmrsService implements TokenService
 	public TokenRegistration saveTokenRegistration(TokenRegistration tokenRegistration) {
 		TokenRegistration ret = dao.saveTokenRegistration(tokenRegistration);
 		ruleCache.remove(tokenRegistration.getToken());
+		LogicCacheManager.invalidateAll();
 		return ret;
 	}
 	
@@ -325,6 +329,7 @@ public class TokenServiceImpl extends BaseOpenmrsService implements TokenService
 	public void deleteTokenRegistration(TokenRegistration tokenRegistration) {
 		dao.deleteTokenRegistration(tokenRegistration);
 		ruleCache.remove(tokenRegistration.getToken());
+		LogicCacheManager.invalidateAll();
 	}
 	
 	/**
@@ -394,6 +399,7 @@ public class TokenServiceImpl extends BaseOpenmrsService implements TokenService
 			throw new LogicException("No token registered for provider=" + provider.getClass().getName() + " providerToken="
 			        + providerToken);
 		ruleCache.remove(tr.getToken());
+		LogicCacheManager.invalidateAll();
 	}
 	
 	private <T> T justOne(Collection<T> collection) {
@@ -0,0 +1,157 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.util;
+
+import java.util.Collection;
+import java.util.Date;
+
+import org.openmrs.Concept;
+import org.openmrs.logic.result.EmptyResult;
+import org.openmrs.logic.result.Result;
+
+/**
+ * An empty result that cannot be changed, so that a single instance can stand for "no data" for
+ * every patient in cached result maps instead of allocating a new {@link EmptyResult} for each of
+ * them. It is not handed to callers of the logic context, who get an empty result of their own.
+ */
+public final class ImmutableEmptyResult extends EmptyResult {
+	
+	private static final long serialVersionUID = -4136129573512416447L;
+	
+	/**
+	 * The shared empty result
+	 */
+	public static final ImmutableEmptyResult INSTANCE = new ImmutableEmptyResult();
+	
+	private ImmutableEmptyResult() {
+	}
+	
+	/**
+	 * @param result
+	 * @return the shared empty result if result is a plain {@link EmptyResult} (or null), otherwise
+	 *         result itself
+	 */
+	public static Result compact(Result result) {
+		if (result == null || result.getClass() == EmptyResult.class)
+			return INSTANCE;
+		return result;
+	}
+	
+	@Override
+	public boolean add(Result e) {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	@Override
+	public void add(int index, Result element) {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	@Override
+	public boolean addAll(Collection<? extends Result> c) {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	@Override
+	public boolean addAll(int index, Collection<? extends Result> c) {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	@Override
+	public Result set(int index, Result element) {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	@Override
+	public Result remove(int index) {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	@Override
+	public boolean remove(Object o) {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	@Override
+	public void setDatatype(Datatype datatype) {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	@Override
+	public void setResultDate(Date resultDate) {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	@Override
+	public void setResultObject(Object object) {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	@Override
+	public void setValueBoolean(Boolean valueBoolean) {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	@Override
+	public void setValueCoded(Concept valueCoded) {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	@Override
+	public void setValueDatetime(Date valueDatetime) {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	@Override
+	public void setValueNumeric(Integer valueNumeric) {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	@Override
+	public void setValueNumeric(Double valueNumeric) {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	@Override
+	public void setValueText(String valueText) {
+		throw new UnsupportedOperationException("The shared empty result cannot be changed");
+	}
+	
+	/**
+	 * Keeps deserialization from creating more than one instance
+	 */
+	private Object readResolve() {
+		return INSTANCE;
+	}
+}
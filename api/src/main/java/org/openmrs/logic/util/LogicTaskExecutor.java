@@ -0,0 +1,243 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.logic.LogicConstants;
+import org.openmrs.logic.LogicException;
+
+/**
+ * Runs logic evaluations on a pool of worker threads. Every task runs in its own OpenMRS session, as
+ * the user who submitted it. Evaluations are only split across the pool if the
+ * {@link LogicConstants#EVAL_THREADS} global property is more than 1, while
+ * {@link #submitAsync(Callable)} always uses it; its settings are read once, the first time they
+ * are needed, and again after {@link #shutdown()}. <br/>
+ * Tasks that run on a worker thread never submit further tasks to the pool (they run them inline
+ * instead), so a rule that evaluates other rules can't exhaust the pool and deadlock.
+ */
+public class LogicTaskExecutor {
+
+	private static final Log log = LogFactory.getLog(LogicTaskExecutor.class);
+
+	private static final ThreadLocal<Boolean> workerThread = new ThreadLocal<Boolean>();
+
+	private static Integer threads;
+
+	private static Integer parallelThreshold;
+
+	private static ExecutorService executor;
+
+	private LogicTaskExecutor() {
+	}
+
+	/**
+	 * @return the number of worker threads, 1 if evaluations are not run in parallel
+	 */
+	public static synchronized int getThreadCount() {
+		if (threads == null) {
+			threads = Math.max(1, getGlobalProperty(LogicConstants.EVAL_THREADS, 1));
+			parallelThreshold = getGlobalProperty(LogicConstants.EVAL_PARALLEL_THRESHOLD, 1000);
+		}
+		return threads;
+	}
+
+	/**
+	 * @return whether the current thread is one of the worker threads
+	 */
+	public static boolean isWorkerThread() {
+		return Boolean.TRUE.equals(workerThread.get());
+	}
+
+	/**
+	 * @return whether tasks submitted from the current thread will run in parallel
+	 */
+	public static boolean isParallelEnabled() {
+		return !isWorkerThread() && getThreadCount() > 1;
+	}
+
+	/**
+	 * @param cohortSize
+	 * @return whether a cohort of the given size is large enough to be split across the worker
+	 *         threads
+	 */
+	public static boolean shouldParallelize(int cohortSize) {
+		if (!isParallelEnabled())
+			return false;
+		synchronized (LogicTaskExecutor.class) {
+			return cohortSize >= parallelThreshold;
+		}
+	}
+
+	/**
+	 * Submits a task to the worker threads, or runs it right away if evaluations are not run in
+	 * parallel (or if this is a worker thread)
+	 *
+	 * @param task
+	 * @return the result of the task
+	 */
+	public static <T> Future<T> submit(Callable<T> task) {
+		if (!isParallelEnabled()) {
+			FutureTask<T> inline = new FutureTask<T>(task);
+			inline.run();
+			return inline;
+		}
+		return getExecutor().submit(inContext(task));
+	}
+
+	/**
+	 * Submits a task to the worker threads even if evaluations are not run in parallel (there is
+	 * always at least one worker thread), so that the caller doesn't have to wait for it. Tasks
+	 * submitted from a worker thread still run right away.
+	 *
+	 * @param task
+	 * @return the result of the task
+	 */
+	public static <T> Future<T> submitAsync(Callable<T> task) {
+		if (isWorkerThread()) {
+			FutureTask<T> inline = new FutureTask<T>(task);
+			inline.run();
+			return inline;
+		}
+		return getExecutor().submit(inContext(task));
+	}
+	
+	/**
+	 * Runs all tasks and waits for their results. If a task fails, the ones that haven't started
+	 * yet are cancelled.
+	 *
+	 * @param tasks
+	 * @return the results, in the order of the tasks
+	 * @throws LogicException if a task failed
+	 */
+	public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws LogicException {
+		List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+		for (Callable<T> task : tasks)
+			futures.add(submit(task));
+		List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			for (Future<T> future : futures)
+				results.add(getResult(future));
+		}
+		finally {
+			for (Future<T> future : futures)
+				future.cancel(false);
+		}
+		return results;
+	}
+
+	/**
+	 * Waits for the result of a task
+	 *
+	 * @param future
+	 * @return the result
+	 * @throws LogicException if the task failed, or the wait was interrupted
+	 */
+	public static <T> T getResult(Future<T> future) throws LogicException {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new LogicException("Interrupted while waiting for a logic evaluation", ex);
+		}
+		catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof LogicException)
+				throw (LogicException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new LogicException(cause);
+		}
+	}
+
+	/**
+	 * Stops the worker threads, so that the global properties are read again the next time they are
+	 * needed
+	 */
+	public static synchronized void shutdown() {
+		if (executor != null)
+			executor.shutdownNow();
+		executor = null;
+		threads = null;
+		parallelThreshold = null;
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			log.info("Starting " + getThreadCount() + " logic evaluation threads");
+			executor = Executors.newFixedThreadPool(getThreadCount(), new ThreadFactory() {
+
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "logic-eval-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Wraps a task so that it runs in its own session, as the current user
+	 */
+	private static <T> Callable<T> inContext(final Callable<T> task) {
+		final UserContext userContext = Context.getUserContext();
+		return new Callable<T>() {
+
+			public T call() throws Exception {
+				workerThread.set(Boolean.TRUE);
+				Context.openSession();
+				try {
+					Context.setUserContext(userContext);
+					return task.call();
+				}
+				finally {
+					Context.closeSession();
+					workerThread.remove();
+				}
+			}
+		};
+	}
+
+	private static int getGlobalProperty(String property, int defaultValue) {
+		try {
+			String value = Context.getAdministrationService().getGlobalProperty(property);
+			if (StringUtils.isNotBlank(value))
+				return Integer.parseInt(value.trim());
+		}
+		catch (Exception ex) {
+			log.warn("Unable to read global property " + property, ex);
+		}
+		return defaultValue;
+	}
+}
@@ -14,7 +14,10 @@
 package org.openmrs.logic.util;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -35,8 +38,10 @@ import org.openmrs.calculation.result.EncounterResult;
 import org.openmrs.calculation.result.ListResult;
 import org.openmrs.calculation.result.ObsResult;
 import org.openmrs.calculation.result.SimpleResult;
+import org.openmrs.logic.LogicConstants;
 import org.openmrs.logic.LogicCriteria;
 import org.openmrs.logic.LogicTransform;
+import org.openmrs.logic.op.AggregateOperator;
 import org.openmrs.logic.op.Operator;
 import org.openmrs.logic.result.EmptyResult;
 import org.openmrs.logic.result.Result;
@@ -45,6 +50,7 @@ import org.openmrs.logic.rule.HIVPositiveRule;
 import org.openmrs.logic.rule.InvalidReferenceRuleException;
 import org.openmrs.logic.rule.provider.ClassRuleProvider;
 import org.openmrs.logic.task.InitializeLogicRuleProvidersTask;
+import org.openmrs.logic.task.WarmLogicCacheTask;
 import org.openmrs.logic.token.TokenService;
 import org.openmrs.scheduler.SchedulerException;
 import org.openmrs.scheduler.TaskDefinition;
@@ -57,6 +63,21 @@ public class LogicUtil {
 	
 	private static final Log log = LogFactory.getLog(LogicUtil.class);
 	
+	/**
+	 * Stays below the 1000 item limit of IN lists in Oracle
+	 */
+	private static final int DEFAULT_QUERY_CHUNK_SIZE = 1000;
+	
+	/**
+	 * The query settings are needed by every data source read, so their global properties are only
+	 * read the first time, until {@link #resetQuerySettings()}
+	 */
+	private static volatile Integer queryChunkSize;
+	
+	private static volatile Integer queryFetchSize;
+	
+	private static volatile Boolean obsProjectionReads;
+	
 	/**
 	 * Programmatically applies aggregators like COUNT, AVERAGE, etc
 	 * 
@@ -77,6 +98,8 @@ public class LogicUtil {
 				} else if (transform != null && transform.getTransformOperator() == Operator.AVERAGE) {
 					Result newResult = Result.emptyResult();
 					finalResult.put(personId, newResult);
+				} else if (transform != null && transform.getTransformOperator() instanceof AggregateOperator) {
+					finalResult.put(personId, Result.emptyResult());
 				}
 			}
 			return;
@@ -107,8 +130,174 @@ public class LogicUtil {
 				Result newResult = new Result();
 				newResult.add(new Result(average));
 				finalResult.put(personId, newResult);
+			} else if (transform != null && transform.getTransformOperator() instanceof AggregateOperator) {
+				AggregateOperator operator = (AggregateOperator) transform.getTransformOperator();
+				Double value = null;
+				for (Result currResult : r) {
+					Double number = currResult instanceof EmptyResult ? null : currResult.toNumber();
+					if (number == null)
+						continue;
+					if (value == null)
+						value = number;
+					else if (operator == AggregateOperator.SUM)
+						value += number;
+					else if (operator == AggregateOperator.MIN)
+						value = Math.min(value, number);
+					else
+						value = Math.max(value, number);
+				}
+				finalResult.put(personId, toAggregateResult(value));
+			}
+		}
+	}
+	
+	/**
+	 * @return a list holding the value of a SUM, MIN or MAX transform, or an empty result if there
+	 *         were no numeric values to aggregate
+	 */
+	private static Result toAggregateResult(Number value) {
+		if (value == null)
+			return Result.emptyResult();
+		Result newResult = new Result();
+		newResult.add(new Result(value.doubleValue()));
+		return newResult;
+	}
+	
+	/**
+	 * Builds the results {@link #applyAggregators(Map, LogicCriteria, Cohort)} would have computed,
+	 * from COUNT, AVERAGE, SUM, MIN or MAX values that were computed by the database
+	 * 
+	 * @param aggregates the value of each patient that has any data
+	 * @param criteria provides type of transform
+	 * @param patients
+	 * @return result map of patient id to result list
+	 */
+	public static Map<Integer, Result> toAggregateResults(Map<Integer, ? extends Number> aggregates,
+	                                                      LogicCriteria criteria, Cohort patients) {
+		Operator operator = criteria.getExpression().getTransform().getTransformOperator();
+		Map<Integer, Result> finalResult = new PatientResultMap(patients.size());
+		for (Map.Entry<Integer, ? extends Number> e : aggregates.entrySet()) {
+			Result newResult = new Result();
+			if (operator == Operator.COUNT) {
+				newResult.add(new Result(e.getValue().intValue()));
+			} else if (operator instanceof AggregateOperator) {
+				newResult = toAggregateResult(e.getValue());
+			} else {
+				// averages that aren't positive are 0, as above
+				double average = e.getValue() == null ? 0 : e.getValue().doubleValue();
+				newResult.add(new Result(average > 0 ? average : 0));
+			}
+			finalResult.put(e.getKey(), newResult);
+		}
+		// patients without data only get a count/average if no patient has any
+		if (finalResult.isEmpty())
+			applyAggregators(finalResult, criteria, patients);
+		return finalResult;
+	}
+	
+	/**
+	 * Splits a collection into consecutive lists of (at most) the given size
+	 * 
+	 * @param items
+	 * @param size the maximum size of each part
+	 * @return the parts, in the iteration order of items
+	 */
+	public static <T> List<List<T>> partition(Collection<T> items, int size) {
+		List<List<T>> parts = new ArrayList<List<T>>();
+		List<T> part = null;
+		for (T item : items) {
+			if (part == null || part.size() >= size) {
+				part = new ArrayList<T>(Math.min(size, items.size()));
+				parts.add(part);
+			}
+			part.add(item);
+		}
+		return parts;
+	}
+	
+	/**
+	 * @return the maximum number of patients to read in a single data source query
+	 * @see LogicConstants#QUERY_CHUNK_SIZE
+	 */
+	public static int getQueryChunkSize() {
+		Integer chunkSize = queryChunkSize;
+		if (chunkSize == null) {
+			chunkSize = readQueryChunkSize();
+			queryChunkSize = chunkSize;
+		}
+		return chunkSize;
+	}
+	
+	private static int readQueryChunkSize() {
+		String value = Context.getAdministrationService().getGlobalProperty(LogicConstants.QUERY_CHUNK_SIZE);
+		if (value != null && value.trim().length() > 0) {
+			try {
+				int chunkSize = Integer.parseInt(value.trim());
+				if (chunkSize > 0)
+					return chunkSize;
+			}
+			catch (NumberFormatException ex) {
+				log.warn("Invalid value for global property " + LogicConstants.QUERY_CHUNK_SIZE + ": " + value);
 			}
 		}
+		return DEFAULT_QUERY_CHUNK_SIZE;
+	}
+	
+	/**
+	 * @return the number of rows to fetch at a time when streaming query results, or 0 if they are
+	 *         not streamed
+	 * @see LogicConstants#QUERY_FETCH_SIZE
+	 */
+	public static int getQueryFetchSize() {
+		Integer fetchSize = queryFetchSize;
+		if (fetchSize == null) {
+			fetchSize = readQueryFetchSize();
+			queryFetchSize = fetchSize;
+		}
+		return fetchSize;
+	}
+	
+	private static int readQueryFetchSize() {
+		String value = Context.getAdministrationService().getGlobalProperty(LogicConstants.QUERY_FETCH_SIZE);
+		if (value != null && value.trim().length() > 0) {
+			try {
+				return Math.max(0, Integer.parseInt(value.trim()));
+			}
+			catch (NumberFormatException ex) {
+				log.warn("Invalid value for global property " + LogicConstants.QUERY_FETCH_SIZE + ": " + value);
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * @return whether the obs data source reads only the values of observations; unless the global
+	 *         property is set, it does when reads are streamed, since observations themselves stay
+	 *         in the session (see LogicObsDAO#getObservations(Cohort, LogicCriteria, LogicContext,
+	 *         LogicRowHandler))
+	 * @see LogicConstants#OBS_PROJECTION_READS
+	 */
+	public static boolean isObsProjectionReadEnabled() {
+		Boolean enabled = obsProjectionReads;
+		if (enabled == null) {
+			String value = Context.getAdministrationService().getGlobalProperty(LogicConstants.OBS_PROJECTION_READS);
+			if (value == null || value.trim().length() == 0)
+				enabled = getQueryFetchSize() > 0;
+			else
+				enabled = Boolean.valueOf(value.trim());
+			obsProjectionReads = enabled;
+		}
+		return enabled;
+	}
+	
+	/**
+	 * Forgets the query settings, so that their global properties are read again the next time
+	 * they are needed
+	 */
+	public static void resetQuerySettings() {
+		queryChunkSize = null;
+		queryFetchSize = null;
+		obsProjectionReads = null;
 	}
 	
 	/**
@@ -198,12 +387,34 @@ public class LogicUtil {
 				log.error("Error scheduling logic initialization task at startup", ex);
 			}
 			
+			registerWarmLogicCacheTask();
 		}
 		finally {
 			Context.removeProxyPrivilege(OpenmrsConstants.PRIV_MANAGE_SCHEDULER);
 		}
 	}
 	
+	/**
+	 * Creates the (not started) definition of the task that warms the shared logic cache, so that an
+	 * administrator only has to fill in its properties and schedule it
+	 */
+	private static void registerWarmLogicCacheTask() {
+		if (Context.getSchedulerService().getTaskByName(WarmLogicCacheTask.NAME) != null)
+			return;
+		TaskDefinition def = new TaskDefinition();
+		def.setName(WarmLogicCacheTask.NAME);
+		def.setDescription("Evaluates the tokens with the given tag for the given cohort (all patients if blank), to fill the shared logic cache before clinic hours");
+		def.setTaskClass(WarmLogicCacheTask.class.getName());
+		def.setStartOnStartup(false);
+		def.setStarted(false);
+		def.setRepeatInterval(24 * 60 * 60l);
+		def.setProperty(WarmLogicCacheTask.PROPERTY_TAG, "");
+		def.setProperty(WarmLogicCacheTask.PROPERTY_COHORT_ID, "");
+		if (def.getUuid() == null)
+			def.setUuid(UUID.randomUUID().toString());
+		Context.getSchedulerService().saveTask(def);
+	}
+	
 	/**
 	 * Utility method that converts a logic result to a calculation result
 	 * 
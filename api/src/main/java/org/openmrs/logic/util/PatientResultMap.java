@@ -0,0 +1,374 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.openmrs.logic.result.Result;
+
+/**
+ * A map from patient id to result that keeps the ids in an <code>int[]</code> (open addressing with
+ * linear probing) instead of boxing each of them and allocating an entry per patient like
+ * {@link java.util.HashMap} does. It takes less than half the memory of a HashMap for large
+ * cohorts. <br/>
+ * Like HashMap, it is not synchronized. Null values are allowed, null keys are not.
+ */
+public class PatientResultMap extends AbstractMap<Integer, Result> {
+
+	private static final byte FREE = 0;
+
+	private static final byte FULL = 1;
+
+	private static final byte REMOVED = 2;
+
+	private static final int MIN_CAPACITY = 8;
+
+	private int[] keys;
+
+	private Result[] values;
+
+	private byte[] states;
+
+	private int size;
+
+	/**
+	 * Slots of removed entries, which are only reclaimed when the table is rebuilt
+	 */
+	private int removed;
+
+	private int modCount;
+
+	private Set<Map.Entry<Integer, Result>> entrySet;
+
+	public PatientResultMap() {
+		this(0);
+	}
+
+	/**
+	 * @param expectedSize the number of patients the map will hold, e.g. the size of a cohort
+	 */
+	public PatientResultMap(int expectedSize) {
+		allocate(capacityFor(expectedSize));
+	}
+
+	public PatientResultMap(Map<Integer, ? extends Result> map) {
+		this(map.size());
+		putAll(map);
+	}
+
+	/**
+	 * @param patientId
+	 * @return the result of the patient, or null if there is none
+	 */
+	public Result get(int patientId) {
+		int i = indexOf(patientId);
+		return i < 0 ? null : values[i];
+	}
+
+	/**
+	 * @param patientId
+	 * @param result
+	 * @return the previous result of the patient, or null if there was none
+	 * @should keep every result when growing past its initial capacity
+	 */
+	public Result put(int patientId, Result result) {
+		int mask = keys.length - 1;
+		int i = hash(patientId) & mask;
+		int firstRemoved = -1;
+		while (states[i] != FREE) {
+			if (states[i] == FULL && keys[i] == patientId) {
+				Result previous = values[i];
+				values[i] = result;
+				return previous;
+			}
+			if (states[i] == REMOVED && firstRemoved < 0)
+				firstRemoved = i;
+			i = (i + 1) & mask;
+		}
+		if (firstRemoved >= 0) {
+			i = firstRemoved;
+			removed--;
+		}
+		keys[i] = patientId;
+		values[i] = result;
+		states[i] = FULL;
+		size++;
+		modCount++;
+		// always leave free slots, so that lookups of missing keys end
+		if (size + removed > keys.length * 3 / 4)
+			rehash(capacityFor(size));
+		return null;
+	}
+
+	/**
+	 * @param patientId
+	 * @return the removed result of the patient, or null if there was none
+	 */
+	public Result remove(int patientId) {
+		int i = indexOf(patientId);
+		if (i < 0)
+			return null;
+		Result previous = values[i];
+		removeAt(i);
+		return previous;
+	}
+
+	/**
+	 * @param patientId
+	 * @return whether the map holds a result for the patient
+	 */
+	public boolean containsKey(int patientId) {
+		return indexOf(patientId) >= 0;
+	}
+
+	/**
+	 * @see java.util.AbstractMap#get(java.lang.Object)
+	 */
+	@Override
+	public Result get(Object key) {
+		return key instanceof Integer ? get(((Integer) key).intValue()) : null;
+	}
+
+	/**
+	 * @see java.util.AbstractMap#put(java.lang.Object, java.lang.Object)
+	 */
+	@Override
+	public Result put(Integer key, Result value) {
+		if (key == null)
+			throw new NullPointerException("Patient id cannot be null");
+		return put(key.intValue(), value);
+	}
+
+	/**
+	 * @see java.util.AbstractMap#remove(java.lang.Object)
+	 */
+	@Override
+	public Result remove(Object key) {
+		return key instanceof Integer ? remove(((Integer) key).intValue()) : null;
+	}
+
+	/**
+	 * @see java.util.AbstractMap#containsKey(java.lang.Object)
+	 */
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof Integer && containsKey(((Integer) key).intValue());
+	}
+
+	/**
+	 * @see java.util.AbstractMap#size()
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @see java.util.AbstractMap#clear()
+	 */
+	@Override
+	public void clear() {
+		Arrays.fill(states, FREE);
+		Arrays.fill(values, null);
+		size = 0;
+		removed = 0;
+		modCount++;
+	}
+
+	/**
+	 * @see java.util.AbstractMap#entrySet()
+	 * @should visit every remaining entry once when removing while iterating
+	 */
+	@Override
+	public Set<Map.Entry<Integer, Result>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new AbstractSet<Map.Entry<Integer, Result>>() {
+
+				@Override
+				public Iterator<Map.Entry<Integer, Result>> iterator() {
+					return new EntryIterator();
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+
+				@Override
+				public void clear() {
+					PatientResultMap.this.clear();
+				}
+			};
+		}
+		return entrySet;
+	}
+
+	/**
+	 * Patient ids are mostly consecutive, so they are spread over the table before probing
+	 */
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static int capacityFor(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity * 3 / 4 < expectedSize)
+			capacity <<= 1;
+		return capacity;
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		values = new Result[capacity];
+		states = new byte[capacity];
+	}
+
+	private int indexOf(int key) {
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (states[i] != FREE) {
+			if (states[i] == FULL && keys[i] == key)
+				return i;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Removed entries leave a marker behind instead of shifting the entries after them, so that
+	 * iterators don't skip or repeat entries when they remove one
+	 */
+	private void removeAt(int i) {
+		values[i] = null;
+		states[i] = REMOVED;
+		size--;
+		removed++;
+		modCount++;
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKeys = keys;
+		Result[] oldValues = values;
+		byte[] oldStates = states;
+		allocate(capacity);
+		int mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldStates[j] != FULL)
+				continue;
+			int i = hash(oldKeys[j]) & mask;
+			while (states[i] != FREE)
+				i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+			states[i] = FULL;
+		}
+		removed = 0;
+	}
+
+	private class EntryIterator implements Iterator<Map.Entry<Integer, Result>> {
+
+		private int next = -1;
+
+		private int current = -1;
+
+		private int expectedModCount = modCount;
+
+		EntryIterator() {
+			advance();
+		}
+
+		private void advance() {
+			do {
+				next++;
+			} while (next < states.length && states[next] != FULL);
+		}
+
+		public boolean hasNext() {
+			return next < states.length;
+		}
+
+		public Map.Entry<Integer, Result> next() {
+			if (modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+			if (!hasNext())
+				throw new NoSuchElementException();
+			current = next;
+			advance();
+			return new Entry(current);
+		}
+
+		public void remove() {
+			if (current < 0 || states[current] != FULL)
+				throw new IllegalStateException();
+			if (modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+			removeAt(current);
+			expectedModCount = modCount;
+		}
+	}
+
+	/**
+	 * Reads and writes through to the slot of the map it was returned for
+	 */
+	private class Entry implements Map.Entry<Integer, Result> {
+
+		private final int index;
+
+		Entry(int index) {
+			this.index = index;
+		}
+
+		public Integer getKey() {
+			return keys[index];
+		}
+
+		public Result getValue() {
+			return values[index];
+		}
+
+		public Result setValue(Result value) {
+			Result previous = values[index];
+			values[index] = value;
+			return previous;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry))
+				return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			Object value = getValue();
+			return getKey().equals(e.getKey()) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+		}
+
+		@Override
+		public int hashCode() {
+			Object value = getValue();
+			return keys[index] ^ (value == null ? 0 : value.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return getKey() + "=" + getValue();
+		}
+	}
+}
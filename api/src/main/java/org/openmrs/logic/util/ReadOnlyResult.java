@@ -0,0 +1,255 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.util;
+
+import java.util.Collection;
+import java.util.Date;
+
+import org.openmrs.Concept;
+import org.openmrs.Obs;
+import org.openmrs.api.context.Context;
+import org.openmrs.logic.datasource.LazyObsResult;
+import org.openmrs.logic.result.EmptyResult;
+import org.openmrs.logic.result.Result;
+
+/**
+ * A copy of a result that cannot be changed, as kept by the shared logic cache. Results in the
+ * shared cache are handed to every session and thread that asks for them, so one caller must not be
+ * able to change them for the others, and they must not hold on to the observations of the session
+ * that computed them. The copy keeps the value of the result (datatype, date, value and nested
+ * results); of an observation it only keeps the id, and {@link #getResultObject()} loads the
+ * observation in the caller's session. Any other result object, and the concept of a coded value,
+ * is shared as it is: it may not be attached to the caller's session and must only be read.
+ */
+public final class ReadOnlyResult extends Result {
+
+	private static final long serialVersionUID = -2296410742271458327L;
+
+	private final Integer obsId;
+
+	/**
+	 * Set once the copy is made; Result's own constructors may use the setters
+	 */
+	private boolean sealed = false;
+
+	/**
+	 * @param result
+	 * @return a read-only copy of the result, the shared empty result if it is empty, or the result
+	 *         itself if it is already read-only
+	 * @should copy the value and nested results
+	 * @should keep only the id of an observation
+	 * @should not allow the copy to be changed
+	 */
+	public static Result copyOf(Result result) {
+		if (result == null || result instanceof EmptyResult)
+			return ImmutableEmptyResult.INSTANCE;
+		if (result instanceof ReadOnlyResult)
+			return result;
+		if (!result.isEmpty())
+			return new ReadOnlyResult(result);
+		return new ReadOnlyResult(result, result.getDatatype());
+	}
+
+	/**
+	 * Copies a list of results
+	 */
+	private ReadOnlyResult(Result list) {
+		super();
+		for (Result r : list)
+			super.add(copyOf(r));
+		this.obsId = null;
+		this.sealed = true;
+	}
+
+	/**
+	 * Copies a single result, the same way the disk tier of the cache stores it
+	 */
+	private ReadOnlyResult(Result result, Datatype datatype) {
+		super(result.getResultDate(), datatype, datatype == Datatype.BOOLEAN || datatype == Datatype.NUMERIC ? result
+		        .toBoolean() : null, datatype == Datatype.CODED ? result.toConcept() : null,
+		        datatype == Datatype.DATETIME ? result.toDatetime() : null, datatype == Datatype.NUMERIC ? result
+		                .toNumber() : null, datatype == Datatype.TEXT ? result.toString() : null, getSharedObject(result));
+		this.obsId = getObsId(result);
+		this.sealed = true;
+	}
+
+	/**
+	 * @return the id of the observation the result was created from, without loading it
+	 */
+	private static Integer getObsId(Result result) {
+		if (result instanceof LazyObsResult)
+			return ((LazyObsResult) result).getObsId();
+		Object o = result.getResultObject();
+		return o instanceof Obs ? ((Obs) o).getObsId() : null;
+	}
+
+	private static Object getSharedObject(Result result) {
+		if (result instanceof LazyObsResult)
+			return null;
+		Object o = result.getResultObject();
+		return o instanceof Obs ? null : o;
+	}
+
+	/**
+	 * @return the id of the observation this result was created from, or null
+	 */
+	public Integer getObsId() {
+		return obsId;
+	}
+
+	/**
+	 * @return whether this result was created from an observation or another object, without
+	 *         loading it
+	 */
+	public boolean hasResultObject() {
+		return obsId != null || super.getResultObject() != null;
+	}
+
+	/**
+	 * Loads the observation of this result in the caller's session
+	 *
+	 * @see org.openmrs.logic.result.Result#getResultObject()
+	 */
+	@Override
+	public Object getResultObject() {
+		if (obsId != null)
+			return Context.getObsService().getObs(obsId);
+		return super.getResultObject();
+	}
+
+	private void checkNotSealed() {
+		if (sealed)
+			throw new UnsupportedOperationException("Results of the shared logic cache cannot be changed");
+	}
+
+	@Override
+	public boolean add(Result e) {
+		checkNotSealed();
+		return super.add(e);
+	}
+
+	@Override
+	public void add(int index, Result element) {
+		checkNotSealed();
+		super.add(index, element);
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends Result> c) {
+		checkNotSealed();
+		return super.addAll(c);
+	}
+
+	@Override
+	public boolean addAll(int index, Collection<? extends Result> c) {
+		checkNotSealed();
+		return super.addAll(index, c);
+	}
+
+	@Override
+	public Result set(int index, Result element) {
+		checkNotSealed();
+		return super.set(index, element);
+	}
+
+	@Override
+	public Result remove(int index) {
+		checkNotSealed();
+		return super.remove(index);
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		checkNotSealed();
+		return super.remove(o);
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		checkNotSealed();
+		return super.removeAll(c);
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		checkNotSealed();
+		return super.retainAll(c);
+	}
+
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		checkNotSealed();
+		super.removeRange(fromIndex, toIndex);
+	}
+
+	@Override
+	public void clear() {
+		checkNotSealed();
+		super.clear();
+	}
+
+	@Override
+	public void setDatatype(Datatype datatype) {
+		checkNotSealed();
+		super.setDatatype(datatype);
+	}
+
+	@Override
+	public void setResultDate(Date resultDate) {
+		checkNotSealed();
+		super.setResultDate(resultDate);
+	}
+
+	@Override
+	public void setResultObject(Object object) {
+		checkNotSealed();
+		super.setResultObject(object);
+	}
+
+	@Override
+	public void setValueBoolean(Boolean valueBoolean) {
+		checkNotSealed();
+		super.setValueBoolean(valueBoolean);
+	}
+
+	@Override
+	public void setValueCoded(Concept valueCoded) {
+		checkNotSealed();
+		super.setValueCoded(valueCoded);
+	}
+
+	@Override
+	public void setValueDatetime(Date valueDatetime) {
+		checkNotSealed();
+		super.setValueDatetime(valueDatetime);
+	}
+
+	@Override
+	public void setValueNumeric(Integer valueNumeric) {
+		checkNotSealed();
+		super.setValueNumeric(valueNumeric);
+	}
+
+	@Override
+	public void setValueNumeric(Double valueNumeric) {
+		checkNotSealed();
+		super.setValueNumeric(valueNumeric);
+	}
+
+	@Override
+	public void setValueText(String valueText) {
+		checkNotSealed();
+		super.setValueText(valueText);
+	}
+}
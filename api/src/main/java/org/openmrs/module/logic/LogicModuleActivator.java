@@ -16,7 +16,9 @@ package org.openmrs.module.logic;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
+import org.openmrs.logic.LogicCacheManager;
 import org.openmrs.logic.LogicConstants;
+import org.openmrs.logic.util.LogicTaskExecutor;
 import org.openmrs.logic.util.LogicUtil;
 import org.openmrs.module.Activator;
 import org.openmrs.util.OpenmrsUtil;
@@ -50,6 +52,9 @@ public class LogicModuleActivator implements Activator {
 	 */
 	public void shutdown() {
 		log.debug("Shutting down logic module ...");
+		LogicCacheManager.reset();
+		LogicTaskExecutor.shutdown();
+		LogicUtil.resetQuerySettings();
 	}
 	
 }
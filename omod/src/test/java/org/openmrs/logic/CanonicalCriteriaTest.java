@@ -0,0 +1,74 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic;
+
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.logic.impl.LogicCriteriaImpl;
+import org.openmrs.logic.op.Operator;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+public class CanonicalCriteriaTest extends BaseModuleContextSensitiveTest {
+	
+	/**
+	 * @see {@link CanonicalCriteria#of(LogicCriteria)}
+	 */
+	@Test
+	@Verifies(value = "should return the same instance for equal criteria", method = "of(LogicCriteria)")
+	public void of_shouldReturnTheSameInstanceForEqualCriteria() throws Exception {
+		LogicCriteria first = new LogicCriteriaImpl("CD4 COUNT").lt(200).last();
+		LogicCriteria second = new LogicCriteriaImpl("CD4 COUNT").lt(200).last();
+		CanonicalCriteria canonical = CanonicalCriteria.of(first);
+		Assert.assertSame(canonical, CanonicalCriteria.of(second));
+		Assert.assertEquals(first, canonical.toCriteria());
+	}
+	
+	/**
+	 * @see {@link CanonicalCriteria#of(LogicCriteria)}
+	 */
+	@Test
+	@Verifies(value = "should distinguish criteria with different transforms", method = "of(LogicCriteria)")
+	public void of_shouldDistinguishCriteriaWithDifferentTransforms() throws Exception {
+		LogicCriteria criteria = new LogicCriteriaImpl("CD4 COUNT").lt(200);
+		CanonicalCriteria unfiltered = CanonicalCriteria.of(criteria);
+		criteria.last();
+		CanonicalCriteria last = CanonicalCriteria.of(criteria);
+		Assert.assertNotSame(unfiltered, last);
+		Assert.assertFalse(last.equals(CanonicalCriteria.of(new LogicCriteriaImpl("CD4 COUNT").lt(200).first())));
+	}
+	
+	/**
+	 * @see {@link CanonicalCriteria#of(LogicCriteria)}
+	 */
+	@Test
+	@Verifies(value = "should reflect changes made to the expression and parameters of the criteria", method = "of(LogicCriteria)")
+	public void of_shouldReflectChangesMadeToTheExpressionAndParametersOfTheCriteria() throws Exception {
+		LogicCriteria criteria = new LogicCriteriaImpl("CD4 COUNT").lt(200);
+		criteria.setLogicParameters(new HashMap<String, Object>());
+		CanonicalCriteria before = CanonicalCriteria.of(criteria);
+		
+		criteria.getExpression().setTransform(new LogicTransform(Operator.LAST));
+		CanonicalCriteria last = CanonicalCriteria.of(criteria);
+		Assert.assertNotSame(before, last);
+		Assert.assertSame(last, CanonicalCriteria.of(new LogicCriteriaImpl("CD4 COUNT").lt(200).last()));
+		
+		criteria.getLogicParameters().put("limit", 2);
+		CanonicalCriteria withParameter = CanonicalCriteria.of(criteria);
+		Assert.assertFalse(last.equals(withParameter));
+		Assert.assertEquals(2, withParameter.getLogicParameters().get("limit"));
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Obs;
+import org.openmrs.logic.result.Result;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+public class LogicCacheDiskStoreTest extends BaseModuleContextSensitiveTest {
+
+	private static final long IN_AN_HOUR = System.currentTimeMillis() + 60 * 60 * 1000;
+
+	private File file;
+
+	private LogicCacheDiskStore store;
+
+	@Before
+	public void openStore() throws Exception {
+		file = File.createTempFile("logic-cache", ".dat");
+		file.delete();
+		store = new LogicCacheDiskStore(file);
+	}
+
+	@After
+	public void closeStore() throws Exception {
+		store.close();
+		file.delete();
+	}
+
+	/**
+	 * @see {@link LogicCacheDiskStore#put(String,long,Map<QInteger;QResult;>,long)}
+	 */
+	@Test
+	@Verifies(value = "should make results readable once they are written", method = "put(String,long,Map<QInteger;QResult;>,long)")
+	public void put_shouldMakeResultsReadableOnceTheyAreWritten() throws Exception {
+		Map<Integer, Result> results = new HashMap<Integer, Result>();
+		results.put(2, new Result(200));
+		results.put(7, new Result(new Date(), "text", null));
+		store.put("key", IN_AN_HOUR, results, 0);
+		store.flush();
+
+		Assert.assertEquals(200d, store.get("key", 2).getResult().toNumber(), 0);
+		Assert.assertEquals("text", store.get("key", 7).getResult().toString());
+		Assert.assertEquals(IN_AN_HOUR, store.get("key", 2).getExpires());
+		Assert.assertNull(store.get("key", 3));
+		Assert.assertNull(store.get("other key", 2));
+	}
+
+	/**
+	 * @see {@link LogicCacheDiskStore#put(String,long,Map<QInteger;QResult;>,long)}
+	 */
+	@Test
+	@Verifies(value = "should not store results created from an object", method = "put(String,long,Map<QInteger;QResult;>,long)")
+	public void put_shouldNotStoreResultsCreatedFromAnObject() throws Exception {
+		Obs obs = new Obs();
+		obs.setObsId(7);
+		Result list = new Result();
+		list.add(new Result(300));
+		list.add(new Result(new Date(), "text", obs));
+		Map<Integer, Result> results = new HashMap<Integer, Result>();
+		results.put(2, new Result(new Date(), "text", obs));
+		results.put(3, list);
+		results.put(4, new Result(400));
+		store.put("key", IN_AN_HOUR, results, 0);
+		store.flush();
+
+		Assert.assertNull(store.get("key", 2));
+		Assert.assertNull(store.get("key", 3));
+		Assert.assertEquals(400d, store.get("key", 4).getResult().toNumber(), 0);
+	}
+
+	/**
+	 * @see {@link LogicCacheDiskStore#put(String,long,Map<QInteger;QResult;>,long)}
+	 */
+	@Test
+	@Verifies(value = "should compact the file once most of it is dead", method = "put(String,long,Map<QInteger;QResult;>,long)")
+	public void put_shouldCompactTheFileOnceMostOfItIsDead() throws Exception {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 10000; ++i)
+			text.append('x');
+		// every put replaces the result of the one before
+		for (int i = 0; i < 150; ++i)
+			store.put("key", IN_AN_HOUR, Collections.singletonMap(2, new Result(new Date(), text.toString() + i, null)), 0);
+		store.flush();
+
+		Assert.assertTrue(file.length() < 1024 * 1024);
+		Assert.assertEquals(text.toString() + 149, store.get("key", 2).getResult().toString());
+	}
+
+	/**
+	 * @see {@link LogicCacheDiskStore#put(String,long,Map<QInteger;QResult;>,long)}
+	 */
+	@Test
+	@Verifies(value = "should not store results of patients invalidated after the version", method = "put(String,long,Map<QInteger;QResult;>,long)")
+	public void put_shouldNotStoreResultsOfPatientsInvalidatedAfterTheVersion() throws Exception {
+		store.invalidate(2, 2);
+		Map<Integer, Result> results = new HashMap<Integer, Result>();
+		results.put(2, new Result(200));
+		results.put(7, new Result(700));
+		// computed before the invalidation, but only put after it
+		store.put("key", IN_AN_HOUR, results, 1);
+		store.put("other key", IN_AN_HOUR, Collections.singletonMap(2, new Result(201)), 2);
+		store.flush();
+
+		Assert.assertNull(store.get("key", 2));
+		Assert.assertEquals(700d, store.get("key", 7).getResult().toNumber(), 0);
+		Assert.assertEquals(201d, store.get("other key", 2).getResult().toNumber(), 0);
+		store.close();
+
+		store = new LogicCacheDiskStore(file);
+		Assert.assertNull(store.get("key", 2));
+		Assert.assertEquals(201d, store.get("other key", 2).getResult().toNumber(), 0);
+	}
+
+	/**
+	 * @see {@link LogicCacheDiskStore#invalidate(Integer,long)}
+	 */
+	@Test
+	@Verifies(value = "should forget the results of the patient also after a restart", method = "invalidate(Integer,long)")
+	public void invalidate_shouldForgetTheResultsOfThePatientAlsoAfterARestart() throws Exception {
+		Map<Integer, Result> results = new HashMap<Integer, Result>();
+		results.put(2, new Result(200));
+		results.put(7, new Result(700));
+		store.put("key", IN_AN_HOUR, results, 0);
+		store.invalidate(2, 1);
+		Assert.assertNull(store.get("key", 2));
+		store.close();
+
+		store = new LogicCacheDiskStore(file);
+		Assert.assertNull(store.get("key", 2));
+		Assert.assertEquals(700d, store.get("key", 7).getResult().toNumber(), 0);
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.logic.impl.LogicCriteriaImpl;
+import org.openmrs.logic.result.Result;
+import org.openmrs.logic.util.ReadOnlyResult;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+public class LogicCacheTest extends BaseModuleContextSensitiveTest {
+	
+	private Map<Integer, Result> resultMap(Integer... patientIds) {
+		Map<Integer, Result> ret = new HashMap<Integer, Result>();
+		for (Integer patientId : patientIds)
+			ret.put(patientId, new Result(patientId.doubleValue()));
+		return ret;
+	}
+	
+	/**
+	 * @see {@link LogicCache#put(LogicCacheEntryKey,Map<Integer,Result>)}
+	 */
+	@Test
+	@Verifies(value = "should not cache results with a zero ttl", method = "put(LogicCacheEntryKey,Map<QInteger;QResult;>)")
+	public void put_shouldNotCacheResultsWithAZeroTtl() throws Exception {
+		LogicCache cache = new LogicCache();
+		Date indexDate = new Date();
+		LogicCriteria criteria = new LogicCriteriaImpl("CD4 COUNT");
+		cache.put(indexDate, criteria, null, 0, resultMap(2));
+		Assert.assertNull(cache.get(2, indexDate, criteria, null));
+		cache.put(indexDate, criteria, null, 60, resultMap(2));
+		Assert.assertEquals(2d, cache.get(2, indexDate, criteria, null).toNumber(), 0);
+	}
+	
+	/**
+	 * @see {@link LogicCache#put(LogicCacheEntryKey,Map<Integer,Result>)}
+	 */
+	@Test
+	@Verifies(value = "should not return results for patients that were not put", method = "put(LogicCacheEntryKey,Map<QInteger;QResult;>)")
+	public void put_shouldNotReturnResultsForPatientsThatWereNotPut() throws Exception {
+		LogicCache cache = new LogicCache();
+		Date indexDate = new Date();
+		LogicCriteria criteria = new LogicCriteriaImpl("CD4 COUNT");
+		cache.put(indexDate, criteria, null, 60, resultMap(2, 7));
+		Assert.assertNull(cache.get(8, indexDate, criteria, null));
+		cache.put(indexDate, criteria, null, 60, resultMap(8));
+		Assert.assertNotNull(cache.get(2, indexDate, criteria, null));
+		Assert.assertNotNull(cache.get(8, indexDate, criteria, null));
+		Assert.assertNull(cache.get(2, new Date(indexDate.getTime() - 1000), criteria, null));
+	}
+	
+	/**
+	 * @see {@link LogicCache#put(LogicCacheEntryKey,Map<Integer,Result>)}
+	 */
+	@Test
+	@Verifies(value = "should evict the least recently used entry when full", method = "put(LogicCacheEntryKey,Map<QInteger;QResult;>)")
+	public void put_shouldEvictTheLeastRecentlyUsedEntryWhenFull() throws Exception {
+		LogicCache cache = new LogicCache(2, LogicCache.DEFAULT_MAX_MEMORY);
+		Date indexDate = new Date();
+		LogicCriteria first = new LogicCriteriaImpl("CD4 COUNT");
+		LogicCriteria second = new LogicCriteriaImpl("WEIGHT (KG)");
+		LogicCriteria third = new LogicCriteriaImpl("HEIGHT (CM)");
+		cache.put(indexDate, first, null, 60, resultMap(2));
+		cache.put(indexDate, second, null, 60, resultMap(2));
+		cache.get(2, indexDate, first, null);
+		cache.put(indexDate, third, null, 60, resultMap(2));
+		Assert.assertEquals(2, cache.size());
+		Assert.assertNotNull(cache.get(2, indexDate, first, null));
+		Assert.assertNull(cache.get(2, indexDate, second, null));
+		Assert.assertNotNull(cache.get(2, indexDate, third, null));
+	}
+	
+	/**
+	 * @see {@link LogicCache#invalidate(Integer)}
+	 */
+	@Test
+	@Verifies(value = "should only remove results of the given patient", method = "invalidate(Integer)")
+	public void invalidate_shouldOnlyRemoveResultsOfTheGivenPatient() throws Exception {
+		LogicCache cache = new LogicCache();
+		Date indexDate = new Date();
+		LogicCriteria criteria = new LogicCriteriaImpl("CD4 COUNT");
+		cache.put(indexDate, criteria, null, 60, resultMap(2, 7));
+		cache.invalidate(7);
+		Assert.assertNull(cache.get(7, indexDate, criteria, null));
+		Assert.assertNotNull(cache.get(2, indexDate, criteria, null));
+	}
+	
+	/**
+	 * @see {@link LogicCache#getVersion()}
+	 */
+	@Test
+	@Verifies(value = "should not store results of patients invalidated after the version was taken", method = "getVersion()")
+	public void getVersion_shouldNotStoreResultsOfPatientsInvalidatedAfterTheVersionWasTaken() throws Exception {
+		LogicCache cache = new LogicCache();
+		Date indexDate = new Date();
+		LogicCriteria criteria = new LogicCriteriaImpl("CD4 COUNT");
+		long version = cache.getVersion();
+		cache.invalidate(7);
+		cache.put(indexDate, criteria, null, 60, resultMap(2, 7), version);
+		Assert.assertNotNull(cache.get(2, indexDate, criteria, null));
+		Assert.assertNull(cache.get(7, indexDate, criteria, null));
+		
+		cache.put(indexDate, criteria, null, 60, resultMap(7), cache.getVersion());
+		Assert.assertNotNull(cache.get(7, indexDate, criteria, null));
+		
+		version = cache.getVersion();
+		cache.clear();
+		cache.put(indexDate, criteria, null, 60, resultMap(2), version);
+		Assert.assertNull(cache.get(2, indexDate, criteria, null));
+	}
+	
+	/**
+	 * @see {@link LogicCache#put(LogicCacheEntryKey,Map<Integer,Result>)}
+	 */
+	@Test
+	@Verifies(value = "should store read only copies of the results", method = "put(LogicCacheEntryKey,Map<QInteger;QResult;>)")
+	public void put_shouldStoreReadOnlyCopiesOfTheResults() throws Exception {
+		LogicCache cache = new LogicCache();
+		cache.setReadOnlyCopies(true);
+		Date indexDate = new Date();
+		LogicCriteria criteria = new LogicCriteriaImpl("CD4 COUNT");
+		Map<Integer, Result> resultMap = resultMap(2);
+		cache.put(indexDate, criteria, null, 60, resultMap);
+		resultMap.get(2).setValueNumeric(3);
+		
+		Result cached = cache.get(2, indexDate, criteria, null);
+		Assert.assertTrue(cached instanceof ReadOnlyResult);
+		Assert.assertEquals(2d, cached.toNumber(), 0);
+	}
+}
@@ -309,4 +309,17 @@ public class EncounterDataSourceTest extends BaseModuleContextSensitiveTest {
 		assertEquals("2008-08-01 00:00:00.0", results.get(7).get(2).getResultDate().toString());
 	}
 	
+	/**
+	 * @verifies {@link EncounterDataSource#read(LogicContext,Cohort,LogicCriteria)} test = should
+	 *           return count of encounters
+	 */
+	@Test
+	public void read_shouldReturnCountOfEncounters() throws Exception {
+		Cohort patients = new Cohort("7");
+		LogicContext context = new LogicContextImpl(patients);
+		
+		Map<Integer, Result> results = dataSource.read(context, patients, new LogicCriteriaImpl("encounter").count());
+		assertEquals(1, results.size());
+		assertEquals(Double.valueOf(3d), results.get(7).toNumber());
+	}
 }
@@ -1,16 +1,25 @@
 package org.openmrs.logic.datasource;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.openmrs.Cohort;
+import org.openmrs.GlobalProperty;
+import org.openmrs.Obs;
 import org.openmrs.Patient;
 import org.openmrs.api.context.Context;
+import org.openmrs.logic.LogicConstants;
 import org.openmrs.logic.LogicContext;
 import org.openmrs.logic.LogicCriteria;
 import org.openmrs.logic.impl.LogicContextImpl;
 import org.openmrs.logic.impl.LogicCriteriaImpl;
 import org.openmrs.logic.result.Result;
+import org.openmrs.logic.util.LogicUtil;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.test.SkipBaseSetup;
 import org.openmrs.test.Verifies;
@@ -29,6 +38,11 @@ public class ObsDataSourceTest extends BaseModuleContextSensitiveTest {
 		authenticate();
 	}
 	
+	@After
+	public void runAfterEachTest() throws Exception {
+		LogicUtil.resetQuerySettings();
+	}
+	
 	/**
 	 * @verifies {@link ObsDataSource#read(LogicContext,Cohort,LogicCriteria)} test = should get all
 	 *           obs
@@ -431,4 +445,195 @@ public class ObsDataSourceTest extends BaseModuleContextSensitiveTest {
 		}
     }
 	
+	/**
+	 * @see {@link ObsDataSource#readAll(LogicContext,Cohort,List)}
+	 */
+	@Test
+	@Verifies(value = "should read the same results as reading each criteria", method = "readAll(LogicContext,Cohort,List)")
+	public void readAll_shouldReadTheSameResultsAsReadingEachCriteria() throws Exception {
+		LogicContext context = new LogicContextImpl(3);
+		Cohort patients = new Cohort();
+		patients.addMember(3);
+		List<LogicCriteria> criteria = new ArrayList<LogicCriteria>();
+		criteria.add(new LogicCriteriaImpl("CD4 COUNT"));
+		criteria.add(new LogicCriteriaImpl("CD4 COUNT").first());
+		criteria.add(new LogicCriteriaImpl("CD4 COUNT").last());
+		
+		ObsDataSource dataSource = (ObsDataSource) context.getLogicDataSource("obs");
+		Map<LogicCriteria, Map<Integer, Result>> results = dataSource.readAll(context, patients, criteria);
+		Assert.assertEquals(2, results.get(criteria.get(0)).get(3).size());
+		Assert.assertEquals(Double.valueOf(100d), results.get(criteria.get(1)).get(3).toNumber());
+		Assert.assertEquals(Double.valueOf(600d), results.get(criteria.get(2)).get(3).toNumber());
+	}
+	
+	/**
+	 * @see {@link ObsDataSource#read(LogicContext,Cohort,LogicCriteria)}
+	 */
+	@Test
+	@Verifies(value = "should get the last obs of every patient when reading the cohort in slices", method = "read(LogicContext,Cohort,LogicCriteria)")
+	public void read_shouldGetTheLastObsOfEveryPatientWhenReadingTheCohortInSlices() throws Exception {
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(LogicConstants.QUERY_CHUNK_SIZE, "1"));
+		LogicUtil.resetQuerySettings();
+		Cohort patients = new Cohort();
+		patients.addMember(3);
+		patients.addMember(4);
+		LogicContext context = new LogicContextImpl(patients);
+		
+		Map<Integer, Result> results = context.getLogicDataSource("obs").read(context, patients,
+		    new LogicCriteriaImpl("CD4 COUNT").last());
+		Assert.assertEquals(Double.valueOf(600d), results.get(3).toNumber());
+		Assert.assertEquals(Double.valueOf(400d), results.get(4).toNumber());
+	}
+	
+	/**
+	 * @see {@link ObsDataSource#read(LogicContext,Cohort,LogicCriteria)}
+	 */
+	@Test
+	@Verifies(value = "should read the same values without loading the obs when projection reads are enabled", method = "read(LogicContext,Cohort,LogicCriteria)")
+	public void read_shouldReadTheSameValuesWithoutLoadingTheObsWhenProjectionReadsAreEnabled() throws Exception {
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(LogicConstants.OBS_PROJECTION_READS, "true"));
+		LogicUtil.resetQuerySettings();
+		Cohort patients = new Cohort();
+		patients.addMember(3);
+		LogicContext context = new LogicContextImpl(patients);
+		
+		Map<Integer, Result> results = context.getLogicDataSource("obs").read(context, patients,
+		    new LogicCriteriaImpl("CD4 COUNT").last());
+		Result result = results.get(3).get(0);
+		Assert.assertTrue(result instanceof LazyObsResult);
+		Assert.assertFalse(((LazyObsResult) result).isLoaded());
+		Assert.assertEquals(Double.valueOf(600d), result.toNumber());
+		Assert.assertEquals(((LazyObsResult) result).getObsId(), ((Obs) result.getResultObject()).getObsId());
+	}
+	
+	/**
+	 * @see {@link ObsDataSource#read(LogicContext,Cohort,LogicCriteria)}
+	 */
+	@Test
+	@Verifies(value = "should get the last n obs of every patient when streaming the rows", method = "read(LogicContext,Cohort,LogicCriteria)")
+	public void read_shouldGetTheLastNObsOfEveryPatientWhenStreamingTheRows() throws Exception {
+		Cohort patients = new Cohort();
+		patients.addMember(3);
+		patients.addMember(4);
+		LogicCriteria criteria = new LogicCriteriaImpl("CD4 COUNT").last(2);
+		LogicContext context = new LogicContextImpl(patients);
+		Map<Integer, Result> expected = context.getLogicDataSource("obs").read(context, patients, criteria);
+		
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(LogicConstants.QUERY_FETCH_SIZE, "1"));
+		LogicUtil.resetQuerySettings();
+		context = new LogicContextImpl(patients);
+		Map<Integer, Result> results = context.getLogicDataSource("obs").read(context, patients, criteria);
+		for (Integer patientId : patients.getMemberIds()) {
+			Assert.assertEquals(2, results.get(patientId).size());
+			for (int i = 0; i < 2; i++)
+				Assert.assertEquals(expected.get(patientId).get(i).toNumber(), results.get(patientId).get(i).toNumber());
+		}
+	}
+	
+	/**
+	 * @see {@link ObsDataSource#read(LogicContext,Cohort,LogicCriteria)}
+	 */
+	@Test
+	@Verifies(value = "should read only the values when streaming the rows unless projection reads are turned off", method = "read(LogicContext,Cohort,LogicCriteria)")
+	public void read_shouldReadOnlyTheValuesWhenStreamingTheRowsUnlessProjectionReadsAreTurnedOff() throws Exception {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(LogicConstants.QUERY_FETCH_SIZE, "1"));
+		LogicUtil.resetQuerySettings();
+		LogicContext context = new LogicContextImpl(4);
+		Result result = context.read(4, new LogicCriteriaImpl("CD4 COUNT").last(2));
+		Assert.assertTrue(result.get(0) instanceof LazyObsResult);
+		Assert.assertFalse(((LazyObsResult) result.get(0)).isLoaded());
+		
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(LogicConstants.OBS_PROJECTION_READS, "false"));
+		LogicUtil.resetQuerySettings();
+		context = new LogicContextImpl(4);
+		result = context.read(4, new LogicCriteriaImpl("CD4 COUNT").last(2));
+		Assert.assertFalse(result.get(0) instanceof LazyObsResult);
+	}
+	
+	/**
+	 * @see {@link ObsDataSource#read(LogicContext,Cohort,LogicCriteria)}
+	 */
+	@Test
+	@Verifies(value = "should keep the obs of the results in the session when a fetch size is set", method = "read(LogicContext,Cohort,LogicCriteria)")
+	public void read_shouldKeepTheObsOfTheResultsInTheSessionWhenAFetchSizeIsSet() throws Exception {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(LogicConstants.QUERY_FETCH_SIZE, "1"));
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(LogicConstants.OBS_PROJECTION_READS, "false"));
+		LogicUtil.resetQuerySettings();
+		LogicContext context = new LogicContextImpl(4);
+		
+		Result result = context.read(4, new LogicCriteriaImpl("CD4 COUNT").last(2));
+		Obs obs = (Obs) result.get(0).getResultObject();
+		Assert.assertSame(obs, Context.getObsService().getObs(obs.getObsId()));
+	}
+	
+	/**
+	 * @see {@link ObsDataSource#read(LogicContext,Cohort,LogicCriteria)}
+	 */
+	@Test
+	@Verifies(value = "should get exactly n obs when some have the same date", method = "read(LogicContext,Cohort,LogicCriteria)")
+	public void read_shouldGetExactlyNObsWhenSomeHaveTheSameDate() throws Exception {
+		// created after the obs of the data set, on the dates of the first and the last of patient 4
+		saveObsLike(Context.getObsService().getObs(7), 50d);
+		saveObsLike(Context.getObsService().getObs(10), 500d);
+		LogicContext context = new LogicContextImpl(4);
+		
+		Result result = context.read(4, new LogicCriteriaImpl("CD4 COUNT").last(2));
+		Assert.assertEquals("Wrong number of CD4s returned", 2, result.size());
+		Assert.assertEquals("Result incorrectly ordered", Double.valueOf(500d), result.get(0).toNumber());
+		Assert.assertEquals("Result incorrectly ordered", Double.valueOf(400d), result.get(1).toNumber());
+		
+		result = context.read(4, new LogicCriteriaImpl("CD4 COUNT").first(2));
+		Assert.assertEquals("Wrong number of CD4s returned", 2, result.size());
+		Assert.assertEquals("Result incorrectly ordered", Double.valueOf(100d), result.get(0).toNumber());
+		Assert.assertEquals("Result incorrectly ordered", Double.valueOf(50d), result.get(1).toNumber());
+		
+		result = context.read(4, new LogicCriteriaImpl("CD4 COUNT").last());
+		Assert.assertEquals("Wrong number of CD4s returned", 1, result.size());
+		Assert.assertEquals("Result incorrect", Double.valueOf(500d), result.toNumber());
+	}
+	
+	private void saveObsLike(Obs obs, Double value) {
+		Obs copy = new Obs(obs.getPerson(), obs.getConcept(), obs.getObsDatetime(), obs.getLocation());
+		copy.setValueNumeric(value);
+		Context.getObsService().saveObs(copy, null);
+	}
+	
+	/**
+	 * @verifies {@link ObsDataSource#read(LogicContext,Cohort,LogicCriteria)} test = should get sum
+	 *           of obs
+	 */
+	@Test
+	public void read_shouldGetSumOfObs() throws Exception {
+		LogicContext context = new LogicContextImpl(4);
+		Result result = context.read(4, new LogicCriteriaImpl("CD4 COUNT").sum());
+		Assert.assertEquals("Wrong number of results returned", 1, result.size());
+		Assert.assertEquals("Result incorrect", Double.valueOf(1000d), result.toNumber());
+	}
+	
+	/**
+	 * @verifies {@link ObsDataSource#read(LogicContext,Cohort,LogicCriteria)} test = should get min
+	 *           of obs
+	 */
+	@Test
+	public void read_shouldGetMinOfObs() throws Exception {
+		LogicContext context = new LogicContextImpl(4);
+		Result result = context.read(4, new LogicCriteriaImpl("CD4 COUNT").min());
+		Assert.assertEquals("Result incorrect", Double.valueOf(100d), result.toNumber());
+	}
+	
+	/**
+	 * @verifies {@link ObsDataSource#read(LogicContext,Cohort,LogicCriteria)} test = should get max
+	 *           of obs when parsed
+	 */
+	@Test
+	public void read_shouldGetMaxOfObsWhenParsed() throws Exception {
+		LogicContext context = new LogicContextImpl(4);
+		Result result = context.read(4, LogicCriteriaImpl.parse("MAX {CD4 COUNT}"));
+		Assert.assertEquals("Result incorrect", Double.valueOf(400d), result.toNumber());
+	}
+	
 }
@@ -0,0 +1,98 @@
+package org.openmrs.logic.impl;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Cohort;
+import org.openmrs.logic.LogicContext;
+import org.openmrs.logic.LogicCriteria;
+import org.openmrs.logic.result.Result;
+import org.openmrs.logic.util.ReadOnlyResult;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.SkipBaseSetup;
+import org.openmrs.test.Verifies;
+
+@SkipBaseSetup
+public class CachedObsEvaluatorTest extends BaseModuleContextSensitiveTest {
+
+	@Before
+	public void runBeforeEachTest() throws Exception {
+		initializeInMemoryDatabase();
+		executeDataSet("org/openmrs/logic/include/LogicTests-patients.xml");
+		executeDataSet("org/openmrs/logic/include/LogicBasicTest.concepts.xml");
+		authenticate();
+	}
+
+	/**
+	 * @see {@link CachedObsEvaluator#getSupersetCriteria(LogicCriteria)}
+	 */
+	@Test
+	@Verifies(value = "should return the bare token for a restriction followed by a transform", method = "getSupersetCriteria(LogicCriteria)")
+	public void getSupersetCriteria_shouldReturnTheBareTokenForARestrictionFollowedByATransform() throws Exception {
+		LogicCriteria superset = CachedObsEvaluator.getSupersetCriteria(new LogicCriteriaImpl("CD4 COUNT").lt(200).last());
+		Assert.assertEquals(new LogicCriteriaImpl("CD4 COUNT"), superset);
+	}
+
+	/**
+	 * @see {@link CachedObsEvaluator#getSupersetCriteria(LogicCriteria)}
+	 */
+	@Test
+	@Verifies(value = "should return null for the bare token itself", method = "getSupersetCriteria(LogicCriteria)")
+	public void getSupersetCriteria_shouldReturnNullForTheBareTokenItself() throws Exception {
+		Assert.assertNull(CachedObsEvaluator.getSupersetCriteria(new LogicCriteriaImpl("CD4 COUNT")));
+	}
+
+	/**
+	 * @see {@link CachedObsEvaluator#evaluate(Map,LogicCriteria,Date,Cohort)}
+	 */
+	@Test
+	@Verifies(value = "should derive last n of those lt value", method = "evaluate(Map,LogicCriteria,Date,Cohort)")
+	public void evaluate_shouldDeriveLastNOfThoseLtValue() throws Exception {
+		LogicContext context = new LogicContextImpl(3);
+		Result all = context.read(3, new LogicCriteriaImpl("CD4 COUNT"));
+		Cohort cohort = new Cohort();
+		cohort.addMember(3);
+
+		Map<Integer, Result> derived = CachedObsEvaluator.evaluate(Collections.singletonMap(3, all),
+		    new LogicCriteriaImpl("CD4 COUNT").lt(200).last(5), context.getIndexDate(), cohort);
+		Assert.assertEquals(1, derived.get(3).size());
+		Assert.assertEquals(Double.valueOf(100d), derived.get(3).toNumber());
+	}
+
+	/**
+	 * @see {@link CachedObsEvaluator#evaluate(Map,LogicCriteria,Date,Cohort)}
+	 */
+	@Test
+	@Verifies(value = "should derive count of zero when nothing matches", method = "evaluate(Map,LogicCriteria,Date,Cohort)")
+	public void evaluate_shouldDeriveCountOfZeroWhenNothingMatches() throws Exception {
+		LogicContext context = new LogicContextImpl(3);
+		Result all = context.read(3, new LogicCriteriaImpl("CD4 COUNT"));
+		Cohort cohort = new Cohort();
+		cohort.addMember(3);
+
+		Map<Integer, Result> derived = CachedObsEvaluator.evaluate(Collections.singletonMap(3, all),
+		    new LogicCriteriaImpl("CD4 COUNT").gt(1000).count(), context.getIndexDate(), cohort);
+		Assert.assertEquals(Double.valueOf(0d), derived.get(3).toNumber());
+	}
+
+	/**
+	 * @see {@link CachedObsEvaluator#evaluate(Map,LogicCriteria,Date,Cohort)}
+	 */
+	@Test
+	@Verifies(value = "should derive last n from the read only results of the shared cache", method = "evaluate(Map,LogicCriteria,Date,Cohort)")
+	public void evaluate_shouldDeriveLastNFromTheReadOnlyResultsOfTheSharedCache() throws Exception {
+		LogicContext context = new LogicContextImpl(3);
+		Result all = ReadOnlyResult.copyOf(context.read(3, new LogicCriteriaImpl("CD4 COUNT")));
+		Cohort cohort = new Cohort();
+		cohort.addMember(3);
+
+		Map<Integer, Result> derived = CachedObsEvaluator.evaluate(Collections.singletonMap(3, all),
+		    new LogicCriteriaImpl("CD4 COUNT").lt(200).last(5), context.getIndexDate(), cohort);
+		Assert.assertEquals(1, derived.get(3).size());
+		Assert.assertEquals(Double.valueOf(100d), derived.get(3).toNumber());
+		Assert.assertTrue(derived.get(3).get(0) instanceof ReadOnlyResult);
+	}
+}
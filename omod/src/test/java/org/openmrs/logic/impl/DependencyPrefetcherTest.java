@@ -0,0 +1,88 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.impl;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Cohort;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.logic.LogicCache;
+import org.openmrs.logic.LogicCacheManager;
+import org.openmrs.logic.LogicConstants;
+import org.openmrs.logic.LogicContext;
+import org.openmrs.logic.LogicException;
+import org.openmrs.logic.datasource.LogicDataSource;
+import org.openmrs.logic.result.Result;
+import org.openmrs.logic.rule.AbstractRule;
+import org.openmrs.logic.rule.provider.RuleProvider;
+import org.openmrs.logic.token.TokenService;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+public class DependencyPrefetcherTest extends BaseModuleContextSensitiveTest {
+
+	@Before
+	public void runBeforeEachTest() throws Exception {
+		executeDataSet("org/openmrs/logic/include/LogicStandardDatasets.xml");
+		executeDataSet("org/openmrs/logic/include/LogicTests-patients.xml");
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(LogicConstants.CACHE_SHARED_ENABLED, "true"));
+		LogicCacheManager.reset();
+	}
+
+	@After
+	public void runAfterEachTest() throws Exception {
+		LogicCacheManager.reset();
+	}
+
+	/**
+	 * @see {@link DependencyPrefetcher#prefetch(LogicContextImpl,Rule,Integer)}
+	 */
+	@Test
+	@Verifies(value = "should read a dependency by the key of its reference rule", method = "prefetch(LogicContextImpl,Rule,Integer)")
+	public void prefetch_shouldReadADependencyByTheKeyOfItsReferenceRule() throws Exception {
+		LogicDataSource obs = Context.getLogicService().getLogicDataSource("obs");
+		Context.getService(TokenService.class).registerToken("CD4", (RuleProvider) obs, "CD4 COUNT");
+		LogicContextImpl context = new LogicContextImpl(new Cohort(Arrays.asList(3, 4)));
+
+		DependencyPrefetcher.prefetch(context, new AbstractRule() {
+
+			@Override
+			public Result eval(LogicContext context, Integer patientId, Map<String, Object> parameters)
+			                                                                                          throws LogicException {
+				return context.eval(patientId, "CD4");
+			}
+
+			@Override
+			public String[] getDependencies() {
+				return new String[] { "CD4" };
+			}
+		}, 3);
+
+		LogicCache cache = LogicCacheManager.getSharedCache();
+		Result cached = cache.get(4, context.getIndexDate(), obs, new LogicCriteriaImpl("CD4 COUNT"));
+		Assert.assertNotNull(cached);
+		Assert.assertEquals(4, cached.size());
+		// the reference rule of the token reads the same key, so the only new entry is the rule's result
+		int entries = cache.size();
+		Assert.assertEquals(4, context.eval(4, "CD4").size());
+		Assert.assertEquals(entries + 1, cache.size());
+	}
+}
@@ -1,21 +1,35 @@
 package org.openmrs.logic.impl;
 
 
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.openmrs.Cohort;
+import org.openmrs.GlobalProperty;
 import org.openmrs.api.context.Context;
+import org.openmrs.logic.LogicConstants;
 import org.openmrs.logic.LogicContext;
 import org.openmrs.logic.LogicCriteria;
 import org.openmrs.logic.LogicException;
 import org.openmrs.logic.Rule;
+import org.openmrs.logic.datasource.LogicDataSource;
+import org.openmrs.logic.result.EmptyResult;
 import org.openmrs.logic.result.Result;
 import org.openmrs.logic.rule.AbstractRule;
 import org.openmrs.logic.rule.provider.ClassRuleProvider;
 import org.openmrs.logic.token.TokenService;
+import org.openmrs.logic.util.LogicTaskExecutor;
+import org.openmrs.logic.util.ReadOnlyResult;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.test.Verifies;
 
@@ -27,6 +41,26 @@ public class LogicContextImplTest extends BaseModuleContextSensitiveTest {
 		executeDataSet("org/openmrs/logic/include/LogicTests-patients.xml");
 	}
 	
+	@After
+	public void runAfterEachTest() throws Exception {
+		LogicTaskExecutor.shutdown();
+	}
+	
+	/**
+	 * Has cohorts of two or more patients evaluated by two threads, and registers a rule that
+	 * remembers where it was evaluated
+	 */
+	private void evalInParallel() throws Exception {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(LogicConstants.EVAL_THREADS, "2"));
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(LogicConstants.EVAL_PARALLEL_THRESHOLD, "2"));
+		LogicTaskExecutor.shutdown();
+		Context.getService(TokenService.class).registerToken("recording", new ClassRuleProvider(),
+		    RuleThatRecordsItsContext.class.getName());
+		RuleThatRecordsItsContext.contexts.clear();
+		RuleThatRecordsItsContext.threads.clear();
+	}
+	
 	/**
 	 * This test is a bit hacky, and doesn't quite test what it advertises, but it should definitely break
 	 * if the behavior changes.
@@ -81,4 +115,168 @@ public class LogicContextImplTest extends BaseModuleContextSensitiveTest {
 		}
 	}
 	
-}
\ No newline at end of file
+	/**
+	 * @see {@link LogicContextImpl#eval(Integer,List,Map)}
+	 */
+	@Test
+	@Verifies(value = "should return the results in the order of the criteria", method = "eval(Integer,List,Map)")
+	public void eval_shouldReturnTheResultsInTheOrderOfTheCriteria() throws Exception {
+		Calendar before = Calendar.getInstance();
+		before.add(Calendar.YEAR, -7);
+		LogicCriteria ageBefore = new LogicCriteriaImpl("age");
+		ageBefore.asOf(before.getTime());
+		
+		List<Result> results = new LogicContextImpl(7).eval(7, Arrays.asList(new LogicCriteriaImpl("age"), ageBefore),
+		    null);
+		Assert.assertEquals(2, results.size());
+		Assert.assertEquals(Double.valueOf(7), Double.valueOf(results.get(0).toNumber() - results.get(1).toNumber()));
+	}
+	
+	/**
+	 * @verifies return an empty result the caller can change
+	 * @see LogicContextImpl#read(Integer, LogicDataSource, LogicCriteria)
+	 */
+	@Test
+	public void read_shouldReturnAnEmptyResultTheCallerCanChange() throws Exception {
+		LogicContextImpl context = new LogicContextImpl(7);
+		LogicDataSource obs = context.getLogicDataSource("obs");
+		Result first = context.read(7, obs, new LogicCriteriaImpl("CD4 COUNT").gt(100000));
+		Result second = context.read(7, obs, new LogicCriteriaImpl("CD4 COUNT").gt(100000));
+		Assert.assertTrue(first instanceof EmptyResult);
+		Assert.assertNotSame(first, second);
+		first.add(new Result(1));
+		Assert.assertTrue(second.isEmpty());
+	}
+	
+	/**
+	 * @verifies return an empty result the caller can change
+	 * @see LogicContextImpl#eval(Integer, LogicCriteria, Map)
+	 */
+	@Test
+	public void eval_shouldReturnAnEmptyResultTheCallerCanChange() throws Exception {
+		LogicContextImpl context = new LogicContextImpl(7);
+		Result first = context.eval(7, new LogicCriteriaImpl("CD4 COUNT").gt(100000), null);
+		Result second = context.eval(7, new LogicCriteriaImpl("CD4 COUNT").gt(100000), null);
+		Assert.assertNotSame(first, second);
+		first.add(new Result(1));
+		Assert.assertTrue(second.isEmpty());
+	}
+	
+	/**
+	 * @verifies evaluate every chunk of patients in a context of its own when run in parallel
+	 * @see LogicContextImpl#eval(Integer, LogicCriteria, Map)
+	 */
+	@Test
+	public void eval_shouldEvaluateEveryChunkOfPatientsInAContextOfItsOwnWhenRunInParallel() throws Exception {
+		evalInParallel();
+		LogicContextImpl context = new LogicContextImpl(new Cohort(Arrays.asList(2, 3, 4, 5, 6, 7, 8, 9)));
+		context.eval(2, new LogicCriteriaImpl("recording"), null);
+		
+		Assert.assertEquals(8, RuleThatRecordsItsContext.contexts.size());
+		Set<LogicContext> chunkContexts = new HashSet<LogicContext>(RuleThatRecordsItsContext.contexts.values());
+		Assert.assertTrue(chunkContexts.size() > 1);
+		Assert.assertFalse(chunkContexts.contains(context));
+		for (String thread : RuleThatRecordsItsContext.threads.values())
+			Assert.assertTrue(thread, thread.startsWith("logic-eval-"));
+	}
+	
+	/**
+	 * @verifies evaluate a rule that applies the criteria itself on the calling thread
+	 * @see LogicContextImpl#eval(Integer, LogicCriteria, Map)
+	 */
+	@Test
+	public void eval_shouldEvaluateARuleThatAppliesTheCriteriaItselfOnTheCallingThread() throws Exception {
+		evalInParallel();
+		Context.getService(TokenService.class).registerToken("recording pass through", new ClassRuleProvider(),
+		    PassThroughRuleThatRecordsItsContext.class.getName());
+		LogicContextImpl context = new LogicContextImpl(new Cohort(Arrays.asList(2, 3, 4, 5, 6, 7, 8, 9)));
+		context.eval(2, new LogicCriteriaImpl("recording pass through"), null);
+		
+		Assert.assertEquals(8, RuleThatRecordsItsContext.contexts.size());
+		Assert.assertEquals(Collections.singleton(context), new HashSet<LogicContext>(RuleThatRecordsItsContext.contexts
+		        .values()));
+		for (String thread : RuleThatRecordsItsContext.threads.values())
+			Assert.assertEquals(Thread.currentThread().getName(), thread);
+	}
+	
+	/**
+	 * @verifies return read only results that hold only the id of an observation when run in parallel
+	 * @see LogicContextImpl#eval(Integer, LogicCriteria, Map)
+	 */
+	@Test
+	public void eval_shouldReturnReadOnlyResultsThatHoldOnlyTheIdOfAnObservationWhenRunInParallel() throws Exception {
+		evalInParallel();
+		LogicContextImpl context = new LogicContextImpl(new Cohort(Arrays.asList(2, 3, 4, 5)));
+		Result result = context.eval(3, new LogicCriteriaImpl("recording"), null);
+		
+		Assert.assertTrue(result instanceof ReadOnlyResult);
+		Assert.assertEquals(Integer.valueOf(3), ((ReadOnlyResult) result).getObsId());
+		Assert.assertEquals("patient 3", result.toString());
+		// the other patients are cached by the calling context
+		Assert.assertEquals("patient 5", context.eval(5, new LogicCriteriaImpl("recording"), null).toString());
+		Assert.assertEquals(4, RuleThatRecordsItsContext.contexts.size());
+	}
+	
+	/**
+	 * @verifies pass the parameters to a rule that applies the criteria itself
+	 * @see LogicContextImpl#eval(Integer, LogicCriteria, Map)
+	 */
+	@Test
+	public void eval_shouldPassTheParametersToARuleThatAppliesTheCriteriaItself() throws Exception {
+		Context.getService(TokenService.class).registerToken("parameter", new ClassRuleProvider(),
+		    PassThroughRuleThatReturnsAParameter.class.getName());
+		Map<String, Object> parameters = new HashMap<String, Object>();
+		parameters.put("value", "passed");
+		Result result = new LogicContextImpl(7).eval(7, new LogicCriteriaImpl("parameter"), parameters);
+		Assert.assertEquals("passed", result.toString());
+	}
+	
+	/**
+	 * @verifies only evaluate criteria that are not cached
+	 * @see LogicContextImpl#eval(Integer, List, Map)
+	 */
+	@Test
+	public void eval_shouldOnlyEvaluateCriteriaThatAreNotCached() throws Exception {
+		evalInParallel();
+		Context.getService(TokenService.class).registerToken("recording too", new ClassRuleProvider(),
+		    RuleThatRecordsItsContext.class.getName());
+		LogicContextImpl context = new LogicContextImpl(7);
+		context.eval(7, new LogicCriteriaImpl("recording"), null);
+		RuleThatRecordsItsContext.threads.clear();
+		
+		List<Result> results = context.eval(7, Arrays.<LogicCriteria> asList(new LogicCriteriaImpl("recording"),
+		    new LogicCriteriaImpl("recording too")), null);
+		Assert.assertEquals(2, results.size());
+		Assert.assertEquals("patient 7", results.get(0).toString());
+		Assert.assertEquals("patient 7", results.get(1).toString());
+		// the only criteria left is evaluated right away
+		Assert.assertEquals(Thread.currentThread().getName(), RuleThatRecordsItsContext.threads.get(7));
+	}
+	
+	/**
+	 * @verifies evaluate the criteria that are not cached on the logic evaluation threads
+	 * @see LogicContextImpl#eval(Integer, List, Map)
+	 */
+	@Test
+	public void eval_shouldEvaluateTheCriteriaThatAreNotCachedOnTheLogicEvaluationThreads() throws Exception {
+		evalInParallel();
+		Context.getService(TokenService.class).registerToken("recording too", new ClassRuleProvider(),
+		    RuleThatRecordsItsContext.class.getName());
+		// the worker threads can't see the data of this test's transaction, so the rules are looked up
+		// (and cached) here
+		Context.getLogicService().getRule("recording");
+		Context.getLogicService().getRule("recording too");
+		LogicContextImpl context = new LogicContextImpl(7);
+		
+		List<Result> results = context.eval(7, Arrays.<LogicCriteria> asList(new LogicCriteriaImpl("recording"),
+		    new LogicCriteriaImpl("recording too")), null);
+		Assert.assertEquals(2, results.size());
+		for (Result result : results) {
+			Assert.assertTrue(result instanceof ReadOnlyResult);
+			Assert.assertEquals(Integer.valueOf(7), ((ReadOnlyResult) result).getObsId());
+		}
+		Assert.assertTrue(RuleThatRecordsItsContext.threads.get(7).startsWith("logic-eval-"));
+		Assert.assertNotSame(context, RuleThatRecordsItsContext.contexts.get(7));
+	}
+	
+}
@@ -1,14 +1,35 @@
 package org.openmrs.logic.impl;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.openmrs.Cohort;
+import org.openmrs.GlobalProperty;
+import org.openmrs.Patient;
 import org.openmrs.api.context.Context;
+import org.openmrs.logic.ExtendedLogicService;
+import org.openmrs.logic.LogicConstants;
 import org.openmrs.logic.LogicCriteria;
+import org.openmrs.logic.LogicResultHandler;
 import org.openmrs.logic.LogicService;
 import org.openmrs.logic.Rule;
 import org.openmrs.logic.datasource.ObsDataSource;
 import org.openmrs.logic.result.Result;
+import org.openmrs.logic.rule.provider.ClassRuleProvider;
+import org.openmrs.logic.token.TokenService;
+import org.openmrs.logic.util.LogicTaskExecutor;
+import org.openmrs.logic.util.LogicUtil;
+import org.openmrs.logic.util.ReadOnlyResult;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.test.SkipBaseSetup;
 import org.openmrs.test.Verifies;
@@ -26,6 +47,11 @@ public class LogicServiceImplTest extends BaseModuleContextSensitiveTest {
 		authenticate();	
 	}
 	
+	@After
+	public void resetQuerySettings() throws Exception {
+		LogicUtil.resetQuerySettings();
+	}
+	
 	/**
 	 * @see {@link LogicServiceImpl#parse(String)}
 	 */
@@ -52,6 +78,23 @@ public class LogicServiceImplTest extends BaseModuleContextSensitiveTest {
 		Assert.assertEquals(60.0d, firstResult.toNumber().doubleValue(), 0);
 	}
 	
+	/**
+	 * @see {@link LogicServiceImpl#parse(String)}
+	 */
+	@Test
+	@SkipBaseSetup
+	@Verifies(value = "should return equal but distinct criteria when parsing the same expression twice", method = "parse(String)")
+	public void parse_shouldReturnEqualButDistinctCriteriaWhenParsingTheSameExpressionTwice() throws Exception {
+		LogicCriteria first = Context.getLogicService().parse("LAST \"WEIGHT (KG)\"");
+		LogicCriteria second = Context.getLogicService().parse("LAST \"WEIGHT (KG)\"");
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals(first, second);
+		
+		second.setLogicParameters(new HashMap<String, Object>());
+		LogicCriteria third = Context.getLogicService().parse("LAST \"WEIGHT (KG)\"");
+		Assert.assertNull(third.getLogicParameters());
+	}
+	
 	/**
 	 * @see {@link LogicServiceImpl#getRule(String)}
 	 */
@@ -76,4 +119,147 @@ public class LogicServiceImplTest extends BaseModuleContextSensitiveTest {
 		Assert.assertNotNull(rule);
 	}
 	
+	/**
+	 * @see {@link LogicServiceImpl#eval(Cohort,List)}
+	 */
+	@Test
+	@SkipBaseSetup
+	@Verifies(value = "should evaluate every criteria for every patient", method = "eval(Cohort,List)")
+	public void eval_shouldEvaluateEveryCriteriaForEveryPatient() throws Exception {
+		Cohort patients = new Cohort();
+		patients.addMember(2);
+		patients.addMember(3);
+		LogicCriteria all = new LogicCriteriaImpl("CD4 COUNT");
+		LogicCriteria last = new LogicCriteriaImpl("CD4 COUNT").last();
+		
+		Map<LogicCriteria, Map<Integer, Result>> results = Context.getLogicService().eval(patients,
+		    Arrays.asList(all, last));
+		Assert.assertEquals(2, results.size());
+		Assert.assertEquals(2, results.get(all).size());
+		Assert.assertEquals(2, results.get(all).get(3).size());
+		Assert.assertEquals(Double.valueOf(600d), results.get(last).get(3).toNumber());
+	}
+	
+	/**
+	 * @see {@link LogicServiceImpl#eval(Cohort,LogicCriteria)}
+	 */
+	@Test
+	@SkipBaseSetup
+	@Verifies(value = "should pass restrictions on a reference token through to its data source", method = "eval(Cohort,LogicCriteria)")
+	public void eval_shouldPassRestrictionsOnAReferenceTokenThroughToItsDataSource() throws Exception {
+		Cohort patients = new Cohort();
+		patients.addMember(3);
+		
+		Map<Integer, Result> results = Context.getLogicService().eval(patients,
+		    new LogicCriteriaImpl("%%obs.CD4 COUNT").gt(500));
+		Assert.assertEquals(1, results.get(3).size());
+		Assert.assertEquals(Double.valueOf(600d), results.get(3).toNumber());
+	}
+	
+	/**
+	 * @see {@link LogicServiceImpl#eval(Cohort,LogicCriteria,Map,LogicResultHandler)}
+	 */
+	@Test
+	@SkipBaseSetup
+	@Verifies(value = "should hand the result of every patient to the handler", method = "eval(Cohort,LogicCriteria,Map,LogicResultHandler)")
+	public void eval_shouldHandTheResultOfEveryPatientToTheHandler() throws Exception {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(LogicConstants.QUERY_CHUNK_SIZE, "1"));
+		LogicUtil.resetQuerySettings();
+		Cohort patients = new Cohort();
+		patients.addMember(2);
+		patients.addMember(3);
+		final Map<Integer, Result> handled = new HashMap<Integer, Result>();
+		
+		Context.getService(ExtendedLogicService.class).eval(patients, new LogicCriteriaImpl("CD4 COUNT").last(), null,
+		    new LogicResultHandler() {
+			    
+			    public void handle(Integer patientId, Result result) {
+				    handled.put(patientId, result);
+			    }
+		    });
+		Assert.assertEquals(2, handled.size());
+		Assert.assertEquals(Double.valueOf(600d), handled.get(3).toNumber());
+	}
+	
+	/**
+	 * @see {@link LogicServiceImpl#eval(Cohort,LogicCriteria,Map,LogicResultHandler)}
+	 */
+	@Test
+	@SkipBaseSetup
+	@Verifies(value = "should keep the objects the session held before", method = "eval(Cohort,LogicCriteria,Map,LogicResultHandler)")
+	public void eval_shouldKeepTheObjectsTheSessionHeldBefore() throws Exception {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(LogicConstants.QUERY_CHUNK_SIZE, "1"));
+		LogicUtil.resetQuerySettings();
+		Patient patient = Context.getPatientService().getPatient(2);
+		Cohort patients = new Cohort();
+		patients.addMember(2);
+		patients.addMember(3);
+		
+		Context.getService(ExtendedLogicService.class).eval(patients, new LogicCriteriaImpl("CD4 COUNT").last(), null,
+		    new LogicResultHandler() {
+			    
+			    public void handle(Integer patientId, Result result) {
+			    }
+		    });
+		Assert.assertSame(patient, Context.getPatientService().getPatient(2));
+	}
+	
+	/**
+	 * @see {@link LogicServiceImpl#evalAsync(Integer,LogicCriteria)}
+	 */
+	@Test
+	@SkipBaseSetup
+	@Verifies(value = "should evaluate the criteria as it was when called", method = "evalAsync(Integer,LogicCriteria)")
+	public void evalAsync_shouldEvaluateTheCriteriaAsItWasWhenCalled() throws Exception {
+		Context.getService(TokenService.class).registerToken("recording", new ClassRuleProvider(),
+		    RuleThatRecordsItsContext.class.getName());
+		ExtendedLogicService service = Context.getService(ExtendedLogicService.class);
+		LogicCriteria criteria = new LogicCriteriaImpl("recording");
+		// the worker thread can't see the data of this test's transaction, so the rule is looked up
+		// (and cached) here
+		service.eval(2, criteria);
+		
+		final CountDownLatch release = new CountDownLatch(1);
+		try {
+			// keep the only worker thread busy until the criteria has been changed
+			LogicTaskExecutor.submitAsync(new Callable<Boolean>() {
+				
+				public Boolean call() throws Exception {
+					return release.await(10, TimeUnit.SECONDS);
+				}
+			});
+			Future<Result> future = service.evalAsync(3, criteria);
+			criteria.lt(5);
+			release.countDown();
+			
+			Result result = future.get(10, TimeUnit.SECONDS);
+			Assert.assertEquals("patient 3", result.toString());
+		}
+		finally {
+			release.countDown();
+			LogicTaskExecutor.shutdown();
+		}
+	}
+	
+	/**
+	 * @see {@link LogicServiceImpl#evalAsync(Integer,LogicCriteria)}
+	 */
+	@Test
+	@SkipBaseSetup
+	@Verifies(value = "should return a read only copy of the result", method = "evalAsync(Integer,LogicCriteria)")
+	public void evalAsync_shouldReturnAReadOnlyCopyOfTheResult() throws Exception {
+		Context.getService(TokenService.class).registerToken("recording", new ClassRuleProvider(),
+		    RuleThatRecordsItsContext.class.getName());
+		ExtendedLogicService service = Context.getService(ExtendedLogicService.class);
+		service.eval(2, new LogicCriteriaImpl("recording"));
+		try {
+			Result result = service.evalAsync(3, new LogicCriteriaImpl("recording")).get(10, TimeUnit.SECONDS);
+			Assert.assertTrue(result instanceof ReadOnlyResult);
+			Assert.assertEquals(Integer.valueOf(3), ((ReadOnlyResult) result).getObsId());
+		}
+		finally {
+			LogicTaskExecutor.shutdown();
+		}
+	}
+	
 }
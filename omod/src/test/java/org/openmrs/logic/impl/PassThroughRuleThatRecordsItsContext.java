@@ -0,0 +1,46 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.impl;
+
+import java.util.Map;
+
+import org.openmrs.logic.LogicContext;
+import org.openmrs.logic.LogicCriteria;
+import org.openmrs.logic.LogicException;
+import org.openmrs.logic.result.Result;
+import org.openmrs.logic.rule.PassThroughRule;
+
+/**
+ * A {@link RuleThatRecordsItsContext} that applies every criteria itself, like a rule that reads a
+ * data source
+ */
+public class PassThroughRuleThatRecordsItsContext extends RuleThatRecordsItsContext implements PassThroughRule {
+
+	/**
+	 * @see org.openmrs.logic.rule.PassThroughRule#canPassThrough(org.openmrs.logic.LogicCriteria)
+	 */
+	public boolean canPassThrough(LogicCriteria criteria) {
+		return true;
+	}
+
+	/**
+	 * @see org.openmrs.logic.rule.PassThroughRule#eval(org.openmrs.logic.LogicContext, java.lang.Integer,
+	 *      org.openmrs.logic.LogicCriteria, java.util.Map)
+	 */
+	public Result eval(LogicContext context, Integer patientId, LogicCriteria criteria, Map<String, Object> parameters)
+	                                                                                                                throws LogicException {
+		return eval(context, patientId, parameters);
+	}
+
+}
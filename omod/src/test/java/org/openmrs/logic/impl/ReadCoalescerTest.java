@@ -0,0 +1,100 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.impl;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.logic.CanonicalCriteria;
+import org.openmrs.logic.datasource.LogicDataSource;
+import org.openmrs.logic.result.Result;
+import org.openmrs.logic.util.PatientResultMap;
+import org.openmrs.logic.util.ReadOnlyResult;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+public class ReadCoalescerTest extends BaseModuleContextSensitiveTest {
+
+	/**
+	 * @see {@link ReadCoalescer#read(LogicDataSource,CanonicalCriteria,Date,Collection<Integer>,Callable<Map<Integer,Result>>)}
+	 */
+	@Test
+	@Verifies(value = "should give threads waiting for the same read copies of its results", method = "read(LogicDataSource,CanonicalCriteria,Date,Collection<QInteger;>,Callable<QMap<QInteger;QResult;>;>)")
+	public void read_shouldGiveThreadsWaitingForTheSameReadCopiesOfItsResults() throws Exception {
+		final LogicDataSource dataSource = Context.getLogicService().getLogicDataSource("obs");
+		final CanonicalCriteria criteria = CanonicalCriteria.of(new LogicCriteriaImpl("CD4 COUNT"));
+		final Date indexDate = new Date();
+		final CountDownLatch reading = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger reads = new AtomicInteger();
+		final Callable<Map<Integer, Result>> reader = new Callable<Map<Integer, Result>>() {
+
+			public Map<Integer, Result> call() throws Exception {
+				reads.incrementAndGet();
+				reading.countDown();
+				release.await(10, TimeUnit.SECONDS);
+				Map<Integer, Result> resultMap = new PatientResultMap();
+				resultMap.put(2, new Result(200));
+				return resultMap;
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<Map<Integer, Result>> first = executor.submit(new Callable<Map<Integer, Result>>() {
+
+				public Map<Integer, Result> call() throws Exception {
+					return ReadCoalescer.read(dataSource, criteria, indexDate, new HashSet<Integer>(Arrays.asList(2, 7)),
+					    reader);
+				}
+			});
+			Assert.assertTrue(reading.await(10, TimeUnit.SECONDS));
+			// the same cohort, in another collection
+			Future<Map<Integer, Result>> second = executor.submit(new Callable<Map<Integer, Result>>() {
+
+				public Map<Integer, Result> call() throws Exception {
+					return ReadCoalescer.read(dataSource, criteria, indexDate, new TreeSet<Integer>(Arrays.asList(7, 2)),
+					    reader);
+				}
+			});
+			// give the second thread the time to find the running read
+			Thread.sleep(200);
+			release.countDown();
+
+			Result read = first.get(10, TimeUnit.SECONDS).get(2);
+			Result copy = second.get(10, TimeUnit.SECONDS).get(2);
+			Assert.assertEquals(1, reads.get());
+			Assert.assertFalse(read instanceof ReadOnlyResult);
+			Assert.assertTrue(copy instanceof ReadOnlyResult);
+			Assert.assertEquals(200d, copy.toNumber(), 0);
+		}
+		finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.impl;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openmrs.Obs;
+import org.openmrs.logic.LogicContext;
+import org.openmrs.logic.LogicException;
+import org.openmrs.logic.result.Result;
+import org.openmrs.logic.rule.AbstractRule;
+
+/**
+ * Remembers the context and thread every patient was evaluated in, without reading any data. The
+ * result of a patient is a text result made from an observation with the id of the patient.
+ */
+public class RuleThatRecordsItsContext extends AbstractRule {
+
+	public static final Map<Integer, LogicContext> contexts = new ConcurrentHashMap<Integer, LogicContext>();
+
+	public static final Map<Integer, String> threads = new ConcurrentHashMap<Integer, String>();
+
+	/**
+	 * @see org.openmrs.logic.rule.AbstractRule#eval(org.openmrs.logic.LogicContext, java.lang.Integer, java.util.Map)
+	 */
+	@Override
+	public Result eval(LogicContext context, Integer patientId, Map<String, Object> parameters) throws LogicException {
+		contexts.put(patientId, context);
+		threads.put(patientId, Thread.currentThread().getName());
+		Obs obs = new Obs();
+		obs.setObsId(patientId);
+		return new Result(new Date(), "patient " + patientId, obs);
+	}
+
+}
@@ -0,0 +1,83 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.task;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.logic.LogicCache;
+import org.openmrs.logic.LogicCacheManager;
+import org.openmrs.logic.LogicConstants;
+import org.openmrs.logic.impl.LogicCriteriaImpl;
+import org.openmrs.logic.util.LogicUtil;
+import org.openmrs.scheduler.TaskDefinition;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+public class WarmLogicCacheTaskTest extends BaseModuleContextSensitiveTest {
+	
+	@Before
+	public void runBeforeEachTest() throws Exception {
+		executeDataSet("org/openmrs/logic/include/LogicStandardDatasets.xml");
+		executeDataSet("org/openmrs/logic/include/LogicTests-patients.xml");
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(LogicConstants.CACHE_SHARED_ENABLED, "true"));
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(LogicConstants.QUERY_CHUNK_SIZE, "2"));
+		LogicUtil.resetQuerySettings();
+		LogicCacheManager.reset();
+	}
+	
+	@After
+	public void runAfterEachTest() throws Exception {
+		LogicCacheManager.reset();
+		LogicUtil.resetQuerySettings();
+	}
+	
+	/**
+	 * @see {@link WarmLogicCacheTask#execute()}
+	 */
+	@Test
+	@Verifies(value = "should put the results of the tagged tokens in the shared cache", method = "execute()")
+	public void execute_shouldPutTheResultsOfTheTaggedTokensInTheSharedCache() throws Exception {
+		Context.getLogicService().addTokenTag("CD4 COUNT", "morning");
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put(WarmLogicCacheTask.PROPERTY_TAG, "morning");
+		TaskDefinition definition = new TaskDefinition();
+		definition.setName(WarmLogicCacheTask.NAME);
+		definition.setProperties(properties);
+		WarmLogicCacheTask task = new WarmLogicCacheTask();
+		task.initialize(definition);
+		
+		task.execute();
+		
+		// the index date logic contexts use by default
+		Calendar indexDate = Calendar.getInstance();
+		indexDate.set(Calendar.HOUR_OF_DAY, 23);
+		indexDate.set(Calendar.MINUTE, 59);
+		indexDate.set(Calendar.SECOND, 59);
+		indexDate.set(Calendar.MILLISECOND, 999);
+		LogicCache cache = LogicCacheManager.getSharedCache();
+		for (Integer patientId : Context.getPatientSetService().getAllPatients().getMemberIds())
+			Assert.assertNotNull("patient " + patientId, cache.get(patientId, indexDate.getTime(), new LogicCriteriaImpl(
+			        "CD4 COUNT"), null));
+		Assert.assertEquals(2, cache.get(3, indexDate.getTime(), new LogicCriteriaImpl("CD4 COUNT"), null).size());
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.util;
+
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.logic.result.EmptyResult;
+import org.openmrs.logic.result.Result;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+/**
+ * @see ImmutableEmptyResult
+ */
+public class ImmutableEmptyResultTest extends BaseModuleContextSensitiveTest {
+	
+	@Test
+	public void shouldNotAllowTheSharedEmptyResultToBeChanged() throws Exception {
+		Result empty = ImmutableEmptyResult.INSTANCE;
+		assertUnchangeable(new Runnable() {
+			
+			public void run() {
+				ImmutableEmptyResult.INSTANCE.add(new Result(1));
+			}
+		});
+		assertUnchangeable(new Runnable() {
+			
+			public void run() {
+				ImmutableEmptyResult.INSTANCE.addAll(Collections.singletonList(new Result(1)));
+			}
+		});
+		assertUnchangeable(new Runnable() {
+			
+			public void run() {
+				ImmutableEmptyResult.INSTANCE.clear();
+			}
+		});
+		assertUnchangeable(new Runnable() {
+			
+			public void run() {
+				ImmutableEmptyResult.INSTANCE.setValueText("changed");
+			}
+		});
+		assertUnchangeable(new Runnable() {
+			
+			public void run() {
+				ImmutableEmptyResult.INSTANCE.setValueNumeric(1d);
+			}
+		});
+		assertUnchangeable(new Runnable() {
+			
+			public void run() {
+				ImmutableEmptyResult.INSTANCE.setResultDate(new Date());
+			}
+		});
+		Assert.assertTrue(empty.isEmpty());
+		Assert.assertNull(empty.getResultDate());
+		Assert.assertSame(empty, ImmutableEmptyResult.compact(new EmptyResult()));
+	}
+	
+	private void assertUnchangeable(Runnable change) {
+		try {
+			change.run();
+			Assert.fail("the shared empty result was changed");
+		}
+		catch (UnsupportedOperationException ex) {
+			// expected
+		}
+	}
+}
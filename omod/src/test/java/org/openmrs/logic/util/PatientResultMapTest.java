@@ -0,0 +1,68 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.logic.result.Result;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+public class PatientResultMapTest extends BaseModuleContextSensitiveTest {
+	
+	/**
+	 * @see {@link PatientResultMap#put(int,Result)}
+	 */
+	@Test
+	@Verifies(value = "should keep every result when growing past its initial capacity", method = "put(int,Result)")
+	public void put_shouldKeepEveryResultWhenGrowingPastItsInitialCapacity() throws Exception {
+		PatientResultMap map = new PatientResultMap(2);
+		for (int patientId = 1; patientId <= 1000; patientId++)
+			map.put(patientId, new Result(patientId));
+		Assert.assertEquals(1000, map.size());
+		for (int patientId = 1; patientId <= 1000; patientId++)
+			Assert.assertEquals(Double.valueOf(patientId), map.get(Integer.valueOf(patientId)).toNumber());
+		Assert.assertNull(map.get(1001));
+	}
+	
+	/**
+	 * @see {@link PatientResultMap#entrySet()}
+	 */
+	@Test
+	@Verifies(value = "should visit every remaining entry once when removing while iterating", method = "entrySet()")
+	public void entrySet_shouldVisitEveryRemainingEntryOnceWhenRemovingWhileIterating() throws Exception {
+		PatientResultMap map = new PatientResultMap();
+		Map<Integer, Result> expected = new HashMap<Integer, Result>();
+		for (int patientId = 1; patientId <= 100; patientId++) {
+			Result result = new Result(patientId);
+			map.put(patientId, result);
+			if (patientId % 3 != 0)
+				expected.put(patientId, result);
+		}
+		int visited = 0;
+		for (Iterator<Map.Entry<Integer, Result>> i = map.entrySet().iterator(); i.hasNext();) {
+			if (i.next().getKey() % 3 == 0)
+				i.remove();
+			visited++;
+		}
+		Assert.assertEquals(100, visited);
+		Assert.assertEquals(expected, map);
+		Assert.assertEquals(expected.hashCode(), map.hashCode());
+	}
+	
+}
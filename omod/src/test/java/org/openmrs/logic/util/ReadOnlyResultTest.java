@@ -0,0 +1,82 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.util;
+
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Obs;
+import org.openmrs.logic.result.EmptyResult;
+import org.openmrs.logic.result.Result;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+public class ReadOnlyResultTest extends BaseModuleContextSensitiveTest {
+
+	/**
+	 * @see {@link ReadOnlyResult#copyOf(Result)}
+	 */
+	@Test
+	@Verifies(value = "should copy the value and nested results", method = "copyOf(Result)")
+	public void copyOf_shouldCopyTheValueAndNestedResults() throws Exception {
+		Date date = new Date();
+		Result list = new Result();
+		list.add(new Result(date, "first", null));
+		list.add(new Result(200));
+		list.add(new EmptyResult());
+
+		Result copy = ReadOnlyResult.copyOf(list);
+		Assert.assertTrue(copy instanceof ReadOnlyResult);
+		Assert.assertEquals(3, copy.size());
+		Assert.assertEquals("first", copy.get(0).toString());
+		Assert.assertEquals(date, copy.get(0).getResultDate());
+		Assert.assertEquals(200d, copy.get(1).toNumber(), 0);
+		Assert.assertSame(ImmutableEmptyResult.INSTANCE, copy.get(2));
+		Assert.assertSame(copy, ReadOnlyResult.copyOf(copy));
+	}
+
+	/**
+	 * @see {@link ReadOnlyResult#copyOf(Result)}
+	 */
+	@Test
+	@Verifies(value = "should keep only the id of an observation", method = "copyOf(Result)")
+	public void copyOf_shouldKeepOnlyTheIdOfAnObservation() throws Exception {
+		Obs obs = new Obs();
+		obs.setObsId(7);
+		Result copy = ReadOnlyResult.copyOf(new Result(new Date(), "text", obs));
+		Assert.assertEquals(Integer.valueOf(7), ((ReadOnlyResult) copy).getObsId());
+		Assert.assertEquals(Integer.valueOf(7), ((Obs) copy.getResultObject()).getObsId());
+		Assert.assertNotSame(obs, copy.getResultObject());
+	}
+
+	/**
+	 * @see {@link ReadOnlyResult#copyOf(Result)}
+	 */
+	@Test(expected = UnsupportedOperationException.class)
+	@Verifies(value = "should not allow the copy to be changed", method = "copyOf(Result)")
+	public void copyOf_shouldNotAllowTheCopyToBeChanged() throws Exception {
+		Result list = new Result();
+		list.add(new Result(200));
+		Result copy = ReadOnlyResult.copyOf(list);
+		try {
+			copy.get(0).setValueNumeric(300);
+			Assert.fail("a nested result could be changed");
+		}
+		catch (UnsupportedOperationException ex) {
+			Assert.assertEquals(200d, copy.get(0).toNumber(), 0);
+		}
+		copy.clear();
+	}
+}